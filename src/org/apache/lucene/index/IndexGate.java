@@ -284,7 +284,95 @@ public class IndexGate {
     Collections.sort(names);
     return names;
   }
-  
+
+  /**
+   * Combine the results of checking subsets of segments with
+   * {@link CheckIndex#checkIndex(List)} into one status, as if the segments
+   * were checked together. If all segments were checked the status is not
+   * partial, and can be used to fix the index.
+   * @param sis segments of the index that were checked
+   * @param parts results of checking the subsets
+   * @throws IOException if the parts checked a different commit
+   */
+  public static CheckIndex.Status mergeCheckStatus(Directory dir, SegmentInfos sis,
+      List<CheckIndex.Status> parts) throws IOException {
+    CheckIndex.Status res = new CheckIndex.Status();
+    res.dir = dir;
+    res.segmentsFileName = sis.getSegmentsFileName();
+    res.numSegments = sis.size();
+    res.userData = sis.getUserData();
+    res.newSegments = sis.clone();
+    res.newSegments.clear();
+    res.maxSegmentName = -1;
+    HashMap<String, CheckIndex.Status.SegmentInfoStatus> checked =
+      new HashMap<String, CheckIndex.Status.SegmentInfoStatus>();
+    HashMap<String, SegmentInfoPerCommit> kept = new HashMap<String, SegmentInfoPerCommit>();
+    for (CheckIndex.Status part : parts) {
+      if (part.segmentsFileName != null && !part.segmentsFileName.equals(res.segmentsFileName)) {
+        throw new IOException("Index changed while checking: " +
+            part.segmentsFileName + " != " + res.segmentsFileName);
+      }
+      res.missingSegments |= part.missingSegments;
+      res.cantOpenSegments |= part.cantOpenSegments;
+      res.missingSegmentVersion |= part.missingSegmentVersion;
+      res.toolOutOfDate |= part.toolOutOfDate;
+      res.numBadSegments += part.numBadSegments;
+      res.totLoseDocCount += part.totLoseDocCount;
+      res.maxSegmentName = Math.max(res.maxSegmentName, part.maxSegmentName);
+      for (CheckIndex.Status.SegmentInfoStatus ssi : part.segmentInfos) {
+        checked.put(ssi.name, ssi);
+      }
+      if (part.newSegments != null) {
+        for (SegmentInfoPerCommit info : part.newSegments) {
+          kept.put(info.info.name, info);
+        }
+      }
+    }
+    // keep the order of segments in the commit
+    for (SegmentInfoPerCommit info : sis) {
+      String name = info.info.name;
+      CheckIndex.Status.SegmentInfoStatus ssi = checked.get(name);
+      if (ssi == null) {
+        continue;
+      }
+      res.segmentInfos.add(ssi);
+      res.segmentsChecked.add(name);
+      if (kept.containsKey(name)) {
+        res.newSegments.add(kept.get(name));
+      }
+    }
+    res.partial = res.segmentInfos.size() < sis.size();
+    if (!res.partial) {
+      res.segmentsChecked.clear();
+    }
+    res.validCounter = res.maxSegmentName < sis.counter;
+    if (!res.validCounter) {
+      res.newSegments.counter = res.maxSegmentName + 1;
+    }
+    res.clean = res.numBadSegments == 0 && res.validCounter && !res.missingSegments &&
+      !res.cantOpenSegments && !res.missingSegmentVersion && !res.toolOutOfDate;
+    return res;
+  }
+
+  /**
+   * @param i index in {@link MultiTermsEnum#getMatchArray()}, less than
+   * {@link MultiTermsEnum#getMatchCount()}
+   * @return index of the slice of the i-th sub-enum positioned on the
+   * current term
+   */
+  public static int getMatchIndex(MultiTermsEnum te, int i) {
+    return te.getMatchArray()[i].index;
+  }
+
+  /**
+   * @param i index in {@link MultiTermsEnum#getMatchArray()}, less than
+   * {@link MultiTermsEnum#getMatchCount()}
+   * @return the i-th sub-enum positioned on the current term
+   */
+  public static TermsEnum getMatchTermsEnum(MultiTermsEnum te, int i) {
+    return te.getMatchArray()[i].terms;
+  }
+
   public static class FormatDetails {
     public String genericName = "N/A";
     public String capabilities = "N/A";
@@ -1,5 +1,8 @@
 package org.getopt.luke;
 
+import java.io.IOException;
+import java.util.List;
+
 import org.apache.lucene.search.Collector;
 import org.apache.lucene.search.Scorer;
 
@@ -16,4 +19,32 @@ public abstract class AccessibleHitCollector extends Collector {
   public abstract float getScore(int pos);
   
   public abstract void reset();
+  
+  /**
+   * @return true if this collector can be split into parts, with
+   * {@link #newPartCollector()} and {@link #merge(List)}
+   * @see ConcurrentIndexSearcher
+   */
+  public boolean canSplit() {
+    return false;
+  }
+  
+  /**
+   * Create an empty collector with the same settings, to collect some of
+   * the index segments concurrently with other parts. Called only if
+   * {@link #canSplit()} returns true.
+   * @return new collector, or null if a part can't be created now
+   */
+  public AccessibleHitCollector newPartCollector() {
+    return null;
+  }
+  
+  /**
+   * Merge the results of collectors created by {@link #newPartCollector()}
+   * into this collector. Called only if {@link #canSplit()} returns true,
+   * so collectors that can't be split don't need to implement it.
+   * @param parts collectors of consecutive segments, in the order of segments
+   */
+  public void merge(List<AccessibleHitCollector> parts) throws IOException {
+  }
 }
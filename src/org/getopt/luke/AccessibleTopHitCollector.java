@@ -1,6 +1,7 @@
 package org.getopt.luke;
 
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
@@ -12,6 +13,7 @@ public class AccessibleTopHitCollector extends AccessibleHitCollector {
   private TopScoreDocCollector tdc;
   private TopDocs topDocs = null;
   private int size;
+  private int mergedHits = -1;
   
   public AccessibleTopHitCollector(int size, boolean outOfOrder, boolean shouldScore) {
     tdc = TopScoreDocCollector.create(size, outOfOrder);
@@ -38,7 +40,7 @@ public class AccessibleTopHitCollector extends AccessibleHitCollector {
 
   @Override
   public int getTotalHits() {
-    return tdc.getTotalHits();
+    return mergedHits >= 0 ? mergedHits : tdc.getTotalHits();
   }
 
   @Override
@@ -70,6 +72,27 @@ public class AccessibleTopHitCollector extends AccessibleHitCollector {
   public void reset() {
     tdc = TopScoreDocCollector.create(size, outOfOrder);
     topDocs = null;
+    mergedHits = -1;
+  }
+
+  @Override
+  public boolean canSplit() {
+    return true;
+  }
+
+  @Override
+  public AccessibleHitCollector newPartCollector() {
+    return new AccessibleTopHitCollector(size, outOfOrder, shouldScore);
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> parts) throws IOException {
+    TopDocs[] shards = new TopDocs[parts.size()];
+    for (int i = 0; i < shards.length; i++) {
+      shards[i] = ((AccessibleTopHitCollector)parts.get(i)).tdc.topDocs();
+    }
+    topDocs = TopDocs.merge(null, size, shards);
+    mergedHits = topDocs.totalHits;
   }
 
 }
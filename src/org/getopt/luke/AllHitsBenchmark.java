@@ -0,0 +1,139 @@
+package org.getopt.luke;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.FSDirectory;
+
+/**
+ * Compares time and memory allocated when collecting all hits of a term
+ * with {@link AllHitsCollector}, and with a collector that allocates an
+ * object per hit (as AllHitsCollector used to).
+ */
+public class AllHitsBenchmark {
+
+  /** Collects one object per hit into a list. */
+  private static class ObjectHitsCollector extends AccessibleHitCollector {
+    private ArrayList<Hit> hits = new ArrayList<Hit>();
+
+    private static class Hit {
+      int docId;
+      float score;
+
+      Hit(int docId, float score) {
+        this.docId = docId;
+        this.score = score;
+      }
+    }
+
+    ObjectHitsCollector(boolean shouldScore) {
+      this.shouldScore = shouldScore;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      hits.add(new Hit(docBase + doc, shouldScore ? scorer.score() : 1.0f));
+    }
+
+    @Override
+    public int getTotalHits() {
+      return hits.size();
+    }
+
+    @Override
+    public int getDocId(int pos) {
+      return hits.get(pos).docId;
+    }
+
+    @Override
+    public float getScore(int pos) {
+      return hits.get(pos).score;
+    }
+
+    @Override
+    public void reset() {
+      hits.clear();
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+      return true;
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+      docBase = context.docBase;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+      this.scorer = scorer;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 3) {
+      System.err.println("Usage: AllHitsBenchmark <indexDir> <field> <term> [iterations]");
+      System.exit(-1);
+    }
+    int iters = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(args[0])));
+    IndexSearcher searcher = new IndexSearcher(reader);
+    Query q = new TermQuery(new Term(args[1], args[2]));
+    for (boolean score : new boolean[]{true, false}) {
+      run(false, score, searcher, q, iters);
+      run(true, score, searcher, q, iters);
+    }
+    reader.close();
+  }
+
+  private static AccessibleHitCollector newCollector(boolean arrays, boolean score) {
+    return arrays ? new AllHitsCollector(true, score) : new ObjectHitsCollector(score);
+  }
+
+  private static void run(boolean arrays, boolean score, IndexSearcher searcher,
+      Query q, int iters) throws IOException {
+    searcher.search(q, newCollector(arrays, score)); // warm up
+    long time = 0;
+    long allocated = 0;
+    int hits = 0;
+    for (int i = 0; i < iters; i++) {
+      // a new collector for each search, as Luke does
+      AccessibleHitCollector c = newCollector(arrays, score);
+      long alloc = allocatedBytes();
+      long start = System.nanoTime();
+      searcher.search(q, c);
+      time += System.nanoTime() - start;
+      allocated += allocatedBytes() - alloc;
+      hits = c.getTotalHits();
+    }
+    System.out.println((arrays ? "arrays" : "objects") + (score ? ", scores" : ", no scores") +
+        ": " + hits + " hits, " + (time / iters / 1000) + " us, " +
+        (allocatedBytes() < 0 ? "n/a" : String.valueOf(allocated / iters)) +
+        " bytes allocated per search");
+  }
+
+  /**
+   * @return bytes allocated by the current thread, or a negative number
+   * if not supported by the JVM
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+    if (mx instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean)mx).getThreadAllocatedBytes(
+          Thread.currentThread().getId());
+    }
+    return -1;
+  }
+}
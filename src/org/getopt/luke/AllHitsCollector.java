@@ -1,56 +1,107 @@
 /**
- * 
+ *
  */
 package org.getopt.luke;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.OpenBitSet;
 
+/**
+ * Collects all hits. Doc ids and scores are kept in pages of primitive
+ * arrays, so that no objects are allocated per hit. When scoring is off
+ * only a bitset of matching docs is kept, and hits are returned in the
+ * order of doc ids.
+ */
 class AllHitsCollector extends AccessibleHitCollector {
-  private ArrayList<AllHit> hits = new ArrayList<AllHit>();
-  
+  private static final int PAGE_SHIFT = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  private int[][] docPages = new int[0][];
+  private float[][] scorePages = new float[0][];
+  private OpenBitSet bits;
+  private int count = 0;
+  // last position returned from the bitset, for sequential access
+  private int lastPos = -1;
+  private int lastDoc = -1;
+
   public AllHitsCollector(boolean outOfOrder, boolean shouldScore) {
     this.outOfOrder = outOfOrder;
     this.shouldScore = shouldScore;
+    if (!shouldScore) {
+      bits = new OpenBitSet();
+    }
   }
-  
+
   public void collect(int doc) {
+    if (!shouldScore) {
+      bits.set(docBase + doc);
+      count++;
+      return;
+    }
     float score = 1.0f;
-    if (shouldScore) {
-      try {
-        score = scorer.score();
-      } catch (IOException e) {
-        // TODO Auto-generated catch block
-        e.printStackTrace();
-      }
+    try {
+      score = scorer.score();
+    } catch (IOException e) {
+      // TODO Auto-generated catch block
+      e.printStackTrace();
     }
-    hits.add(new AllHit(docBase + doc, score));
+    add(docBase + doc, score);
   }
-  
+
+  private void add(int doc, float score) {
+    int page = count >>> PAGE_SHIFT;
+    if (page == docPages.length) {
+      addPage();
+    }
+    docPages[page][count & PAGE_MASK] = doc;
+    scorePages[page][count & PAGE_MASK] = score;
+    count++;
+  }
+
+  private void addPage() {
+    int n = docPages.length;
+    int[][] newDocs = new int[n + 1][];
+    float[][] newScores = new float[n + 1][];
+    System.arraycopy(docPages, 0, newDocs, 0, n);
+    System.arraycopy(scorePages, 0, newScores, 0, n);
+    newDocs[n] = new int[PAGE_SIZE];
+    newScores[n] = new float[PAGE_SIZE];
+    docPages = newDocs;
+    scorePages = newScores;
+  }
+
   public int getTotalHits() {
-    return hits.size();
+    return count;
   }
-  
+
   public int getDocId(int i) {
-    return ((AllHitsCollector.AllHit)hits.get(i)).docId;
+    if (i < 0 || i >= count) {
+      throw new IndexOutOfBoundsException("Hit " + i + " of " + count);
+    }
+    if (shouldScore) {
+      return docPages[i >>> PAGE_SHIFT][i & PAGE_MASK];
+    }
+    if (i < lastPos) {
+      lastPos = -1;
+      lastDoc = -1;
+    }
+    while (lastPos < i) {
+      lastDoc = bits.nextSetBit(lastDoc + 1);
+      lastPos++;
+    }
+    return lastDoc;
   }
 
   public float getScore(int i) {
-    return ((AllHitsCollector.AllHit)hits.get(i)).score;
-  }
-
-  private static class AllHit {
-    public int docId;
-    public float score;
-    
-    public AllHit(int docId, float score) {
-      this.docId = docId;
-      this.score = score;
+    if (!shouldScore) {
+      return 1.0f;
     }
+    return scorePages[i >>> PAGE_SHIFT][i & PAGE_MASK];
   }
 
   @Override
@@ -61,6 +112,9 @@ class AllHitsCollector extends AccessibleHitCollector {
   @Override
   public void setNextReader(AtomicReaderContext context) throws IOException {
     this.docBase = context.docBase;
+    if (!shouldScore) {
+      bits.ensureCapacity(docBase + context.reader().maxDoc());
+    }
   }
 
   @Override
@@ -68,8 +122,38 @@ class AllHitsCollector extends AccessibleHitCollector {
     this.scorer = scorer;
   }
 
+  @Override
+  public boolean canSplit() {
+    return true;
+  }
+
+  @Override
+  public AccessibleHitCollector newPartCollector() {
+    return new AllHitsCollector(outOfOrder, shouldScore);
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> parts) throws IOException {
+    for (AccessibleHitCollector c : parts) {
+      AllHitsCollector part = (AllHitsCollector)c;
+      if (shouldScore) {
+        for (int i = 0; i < part.count; i++) {
+          add(part.getDocId(i), part.getScore(i));
+        }
+      } else {
+        bits.union(part.bits);
+        count += part.count;
+      }
+    }
+  }
+
   @Override
   public void reset() {
-    hits.clear();
+    count = 0;
+    lastPos = -1;
+    lastDoc = -1;
+    if (!shouldScore) {
+      bits = new OpenBitSet();
+    }
   }
-}
\ No newline at end of file
+}
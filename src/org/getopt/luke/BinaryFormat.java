@@ -0,0 +1,118 @@
+package org.getopt.luke;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.FieldInfo;
+
+/**
+ * Compact length-prefixed binary export format. All ints and longs are
+ * big-endian, strings are UTF-8 prefixed with their length as a VInt.
+ * <pre>
+ * header:   "LUKEBIN" version:byte numFields:VInt (name:String)*
+ * document: length:Int docNum:VInt (field:VInt type:byte value)*
+ * </pre>
+ * <code>length</code> is the number of bytes that follow it in the document
+ * record, and <code>field</code> is an index into the header's field list.
+ * Value encoding depends on the type: {@link #TYPE_STRING} - String,
+ * {@link #TYPE_BINARY} - VInt length and bytes, {@link #TYPE_INT} - Int,
+ * {@link #TYPE_LONG} - Long, {@link #TYPE_FLOAT} - Int (float bits),
+ * {@link #TYPE_DOUBLE} - Long (double bits).
+ */
+public class BinaryFormat extends DocumentFormat {
+  public static final byte VERSION = 1;
+  public static final byte TYPE_STRING = 0;
+  public static final byte TYPE_BINARY = 1;
+  public static final byte TYPE_INT = 2;
+  public static final byte TYPE_LONG = 3;
+  public static final byte TYPE_FLOAT = 4;
+  public static final byte TYPE_DOUBLE = 5;
+
+  @Override
+  public String getName() {
+    return "bin";
+  }
+
+  @Override
+  public void writeHeader(ExportBuffer buf, List<String> fieldNames) {
+    buf.writeAscii("LUKEBIN");
+    buf.write(VERSION);
+    buf.writeVInt(fieldNames.size());
+    for (String name : fieldNames) {
+      writeString(buf, name);
+    }
+  }
+
+  private static void writeString(ExportBuffer buf, String s) {
+    buf.writeVInt(ExportBuffer.utf8Length(s));
+    buf.writeUtf8(s);
+  }
+
+  @Override
+  public Writer newWriter(List<String> fieldNames) {
+    final Map<String,Integer> fieldNums = new HashMap<String,Integer>();
+    for (int i = 0; i < fieldNames.size(); i++) {
+      fieldNums.put(fieldNames.get(i), i);
+    }
+    return new Writer() {
+      private int start;
+
+      @Override
+      public void startDocument(ExportBuffer buf, int docNum) {
+        super.startDocument(buf, docNum);
+        start = buf.length();
+        buf.writeInt(0); // length, patched in endDocument
+        buf.writeVInt(docNum);
+      }
+
+      @Override
+      public void endDocument() {
+        buf.setInt(start, buf.length() - start - 4);
+      }
+
+      private void startField(FieldInfo fi, byte type) {
+        Integer num = fieldNums.get(fi.name);
+        buf.writeVInt(num == null ? -1 : num);
+        buf.write(type);
+      }
+
+      @Override
+      public void stringField(FieldInfo fi, String value) {
+        startField(fi, TYPE_STRING);
+        writeString(buf, value);
+      }
+
+      @Override
+      public void binaryField(FieldInfo fi, byte[] value) {
+        startField(fi, TYPE_BINARY);
+        buf.writeVInt(value.length);
+        buf.write(value, 0, value.length);
+      }
+
+      @Override
+      public void intField(FieldInfo fi, int value) {
+        startField(fi, TYPE_INT);
+        buf.writeInt(value);
+      }
+
+      @Override
+      public void longField(FieldInfo fi, long value) {
+        startField(fi, TYPE_LONG);
+        buf.writeLong(value);
+      }
+
+      @Override
+      public void floatField(FieldInfo fi, float value) {
+        startField(fi, TYPE_FLOAT);
+        buf.writeInt(Float.floatToIntBits(value));
+      }
+
+      @Override
+      public void doubleField(FieldInfo fi, double value) {
+        startField(fi, TYPE_DOUBLE);
+        buf.writeLong(Double.doubleToLongBits(value));
+      }
+    };
+  }
+}
@@ -0,0 +1,22 @@
+package org.getopt.luke;
+
+/**
+ * Thrown by a {@link LimitedHitCollector} to stop collecting the current
+ * segment. It is caught by {@link LimitedIndexSearcher} and never reaches
+ * the caller of a search.
+ */
+class CollectionTerminatedException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  static final CollectionTerminatedException INSTANCE = new CollectionTerminatedException();
+
+  private CollectionTerminatedException() {
+    super("Collection terminated");
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    // shared instance, used for control flow only
+    return this;
+  }
+}
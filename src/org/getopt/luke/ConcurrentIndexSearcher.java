@@ -0,0 +1,114 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Searcher that collects each segment in a separate task, when the
+ * collector is an {@link AccessibleHitCollector} that can be split into
+ * parts (see {@link AccessibleHitCollector#canSplit()}). Results of
+ * the parts are then merged into the original collector. Other collectors
+ * are run sequentially, as by {@link LimitedIndexSearcher}.
+ * <p>Parts of a {@link LimitedHitCollector} share the limit, so when it's
+ * reached all parts stop, and the hits collected so far are merged.
+ */
+public class ConcurrentIndexSearcher extends LimitedIndexSearcher {
+  private ExecutorService executor;
+  private volatile long lastWallTime = 0;
+  private volatile long lastBusyTime = 0;
+
+  public ConcurrentIndexSearcher(IndexReader reader, ExecutorService executor) {
+    super(reader, executor);
+    this.executor = executor;
+  }
+
+  @Override
+  protected void search(List<AtomicReaderContext> leaves, final Weight weight,
+      Collector collector) throws IOException {
+    long start = System.nanoTime();
+    AccessibleHitCollector hc = null;
+    if (collector instanceof AccessibleHitCollector && leaves.size() > 1 &&
+        ((AccessibleHitCollector)collector).canSplit()) {
+      hc = (AccessibleHitCollector)collector;
+    }
+    if (hc instanceof LimitedHitCollector) {
+      // set up the shared limit before creating the parts
+      ((LimitedHitCollector)hc).startRun();
+    }
+    List<AccessibleHitCollector> parts = new ArrayList<AccessibleHitCollector>(leaves.size());
+    for (int i = 0; hc != null && i < leaves.size(); i++) {
+      AccessibleHitCollector part = hc.newPartCollector();
+      if (part == null) {
+        hc = null;
+      } else {
+        parts.add(part);
+      }
+    }
+    if (hc == null) {
+      super.search(leaves, weight, collector);
+      lastWallTime = lastBusyTime = System.nanoTime() - start;
+      return;
+    }
+    final AtomicLong busy = new AtomicLong();
+    List<Future<Object>> futures = new ArrayList<Future<Object>>(leaves.size());
+    for (int i = 0; i < leaves.size(); i++) {
+      final AtomicReaderContext leaf = leaves.get(i);
+      final AccessibleHitCollector part = parts.get(i);
+      futures.add(executor.submit(new Callable<Object>() {
+        public Object call() throws IOException {
+          long t = System.nanoTime();
+          try {
+            searchSegment(leaf, weight, part);
+            return null;
+          } finally {
+            busy.addAndGet(System.nanoTime() - t);
+          }
+        }
+      }));
+    }
+    try {
+      for (Future<Object> f : futures) {
+        f.get();
+      }
+    } catch (InterruptedException e) {
+      for (Future<Object> f : futures) {
+        f.cancel(true);
+      }
+      throw new IOException("Search interrupted.");
+    } catch (ExecutionException ee) {
+      Throwable t = ee.getCause();
+      if (t instanceof IOException) throw (IOException)t;
+      if (t instanceof RuntimeException) throw (RuntimeException)t;
+      throw new RuntimeException(t);
+    }
+    hc.merge(parts);
+    if (hc instanceof LimitedHitCollector) {
+      ((LimitedHitCollector)hc).endRun();
+    }
+    lastWallTime = System.nanoTime() - start;
+    lastBusyTime = busy.get();
+  }
+
+  /**
+   * @return the ratio of time spent searching in all tasks to the elapsed
+   * time of the last search, i.e. the average number of busy threads. This
+   * is not the speedup over a sequential search: contention between tasks
+   * makes each task slower, which raises this ratio.
+   */
+  public double getLastParallelism() {
+    long wall = lastWallTime;
+    return wall == 0 ? 1.0 : (double)lastBusyTime / wall;
+  }
+}
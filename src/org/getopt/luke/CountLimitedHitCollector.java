@@ -1,26 +1,19 @@
 package org.getopt.luke;
 
-import java.io.IOException;
-
-import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.Scorer;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Collects at most the given number of hits in each run, and keeps them
+ * all ranked by score.
+ */
 public class CountLimitedHitCollector extends LimitedHitCollector {
   private int maxSize;
-  private int count;
-  private int lastDoc;
-  private TopScoreDocCollector tdc;
-  private TopDocs topDocs = null;
+  // count of all parts in the current run, when collecting concurrently
+  private AtomicInteger sharedCount = null;
   
   public CountLimitedHitCollector(int maxSize, boolean outOfOrder, boolean shouldScore) {
+    super(maxSize, outOfOrder, shouldScore);
     this.maxSize = maxSize;
-    this.outOfOrder = outOfOrder;
-    this.shouldScore = shouldScore;
-    count = 0;
-    tdc = TopScoreDocCollector.create(maxSize, outOfOrder);
   }
 
   @Override
@@ -33,76 +26,40 @@ public class CountLimitedHitCollector extends LimitedHitCollector {
     return TYPE_SIZE;
   }
 
-  /* (non-Javadoc)
-   * @see org.getopt.luke.AllHitsCollector#collect(int, float)
-   */
   @Override
-  public void collect(int doc) throws IOException {
-    count++;
-    if (count > maxSize) {
-      count--;
-      throw new LimitedException(TYPE_SIZE, maxSize, count, lastDoc);
-    }
-    lastDoc = docBase + doc;
-    
-    tdc.collect(doc);
+  protected void startLimit() {
+    sharedCount = null;
   }
 
-  /* (non-Javadoc)
-   * @see org.getopt.luke.AccessibleHitCollector#getDocId(int)
-   */
   @Override
-  public int getDocId(int pos) {
-    if (topDocs == null) {
-      topDocs = tdc.topDocs();
+  protected boolean limitExceeded(boolean collecting) {
+    if (sharedCount == null) {
+      return runCollected >= maxSize;
     }
-    return topDocs.scoreDocs[pos].doc;
-  }
-
-  /* (non-Javadoc)
-   * @see org.getopt.luke.AccessibleHitCollector#getScore(int)
-   */
-  @Override
-  public float getScore(int pos) {
-    if (topDocs == null) {
-      topDocs = tdc.topDocs();
+    if (!collecting) {
+      return sharedCount.get() >= maxSize;
     }
-    return topDocs.scoreDocs[pos].score;
-  }
-
-  /* (non-Javadoc)
-   * @see org.getopt.luke.AccessibleHitCollector#getTotalHits()
-   */
-  @Override
-  public int getTotalHits() {
-    return count;
-  }
-
-  @Override
-  public boolean acceptsDocsOutOfOrder() {
-    return tdc.acceptsDocsOutOfOrder();
+    // reserve a slot for this doc
+    if (sharedCount.incrementAndGet() > maxSize) {
+      sharedCount.decrementAndGet();
+      return true;
+    }
+    return false;
   }
 
   @Override
-  public void setNextReader(AtomicReaderContext context) throws IOException {
-    this.docBase = context.docBase;
-    tdc.setNextReader(context);
+  public boolean canSplit() {
+    return true;
   }
 
   @Override
-  public void setScorer(Scorer scorer) throws IOException {
-    if (shouldScore) {
-      tdc.setScorer(scorer);
-    } else {
-      tdc.setScorer(NoScoringScorer.INSTANCE);
+  public AccessibleHitCollector newPartCollector() {
+    if (sharedCount == null) {
+      sharedCount = new AtomicInteger();
     }
-  }
-
-  @Override
-  public void reset() {
-    count = 0;
-    lastDoc = 0;
-    topDocs = null;
-    tdc = TopScoreDocCollector.create(maxSize, outOfOrder);
+    CountLimitedHitCollector part = new CountLimitedHitCollector(maxSize, outOfOrder, shouldScore);
+    part.sharedCount = sharedCount;
+    initPart(part);
+    return part;
   }
 }
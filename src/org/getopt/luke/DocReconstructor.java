@@ -7,9 +7,11 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.*;
 import org.apache.lucene.index.FieldInfo.DocValuesType;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.NumericUtils;
+import org.getopt.luke.FieldTypeProfile.NumericType;
 
 /**
  * This class attempts to reconstruct all fields from a document
@@ -28,6 +30,7 @@ public class DocReconstructor extends Observable {
   private AtomicReader reader = null;
   private int numTerms;
   private Bits live;
+  private FieldTypeProfile profile;
   
   /**
    * Prepare a document reconstructor.
@@ -65,20 +68,13 @@ public class DocReconstructor extends Observable {
       this.fieldNames = fieldNames;
     }
     if (numTerms == -1) {
-      Fields fields = MultiFields.getFields(reader);
-      numTerms = 0;
-      Iterator<String> fe = fields.iterator();
-      while (fe.hasNext()) {
-        String fld = fe.next();
-        Terms t = fields.terms(fld);
-        TermsEnum te = t.iterator(null);
-        while (te.next() != null) {
-          numTerms++;
-        }
-      }
-      this.numTerms = numTerms;
+      TermCounter counter = new TermCounter(reader, Util.defaultThreads());
+      counter.count();
+      numTerms = (int)counter.getNumTerms();
     }
+    this.numTerms = numTerms;
     live = MultiFields.getLiveDocs(reader);
+    profile = FieldTypeProfile.get(this.reader);
   }
   
   /**
@@ -90,231 +86,256 @@ public class DocReconstructor extends Observable {
    * @throws Exception
    */
   public Reconstructed reconstruct(int docNum) throws Exception {
-    if (docNum < 0 || docNum > reader.maxDoc()) {
+    if (docNum < 0 || docNum >= reader.maxDoc()) {
       throw new Exception("Document number outside of valid range.");
     }
-    
-    // collect values from unstored fields
-    HashSet<String> uncollectedFields = new LinkedHashSet<String>(Arrays.asList(fieldNames));
-    
-    Reconstructed res = new Reconstructed();
     if (live != null && !live.get(docNum)) {
       throw new Exception("Document is deleted.");
-    } else {
-      Document doc = reader.document(docNum);
-      for (int i = 0; i < fieldNames.length; i++) {
-        IndexableField[] fs = doc.getFields(fieldNames[i]);
-        if (fs != null && fs.length > 0) {
-          res.getStoredFields().put(fieldNames[i], fs);
-          uncollectedFields.remove(fieldNames[i]);
-        }
+    }
+    return reconstruct(new int[]{docNum})[0];
+  }
+  
+  /**
+   * Reconstruct fields of many documents at once. The terms of each unstored
+   * field are enumerated only once, and the postings of each term are matched
+   * against all requested documents, so this is much faster than calling
+   * {@link #reconstruct(int)} for each document.
+   * @param docNums document numbers, in any order
+   * @return reconstructed documents, in the same order as <code>docNums</code>.
+   * Entries for deleted documents are null.
+   * @throws Exception
+   */
+  public Reconstructed[] reconstruct(int[] docNums) throws Exception {
+    int[] docs = docNums.clone();
+    Arrays.sort(docs);
+    int numDocs = 0;
+    for (int i = 0; i < docs.length; i++) {
+      if (docs[i] < 0 || docs[i] >= reader.maxDoc()) {
+        throw new Exception("Document number outside of valid range: " + docs[i]);
+      }
+      if (i == 0 || docs[i] != docs[i - 1]) {
+        docs[numDocs++] = docs[i];
       }
     }
-
+    docs = Arrays.copyOf(docs, numDocs);
+    Reconstructed[] sorted = new Reconstructed[numDocs];
+    // fields still to be collected from terms, for each document
+    Map<String, List<Integer>> uncollected = new LinkedHashMap<String, List<Integer>>();
+    for (String fld : fieldNames) {
+      uncollected.put(fld, new ArrayList<Integer>());
+    }
     
-    //Look in docvalues
     FieldInfos fi = reader.getFieldInfos();
     BytesRef br = new BytesRef();
-    for (String field : new ArrayList<String>(uncollectedFields)) {
-      DocValuesType dvt = fi.fieldInfo(field).getDocValuesType();
-      if(null == dvt) {
+    TermsEnum te = null;
+    progress.maxValue = numDocs;
+    progress.curValue = 0;
+    progress.minValue = 0;
+    for (int d = 0; d < numDocs; d++) {
+      int docNum = docs[d];
+      if (live != null && !live.get(docNum)) {
         continue;
       }
-      GrowableStringArray values = new GrowableStringArray();
-      switch(dvt) {
-      case BINARY:
-        reader.getBinaryDocValues(field).get(docNum, br);
-        values.append(0, "", br.utf8ToString());
-        uncollectedFields.remove(field);
-        break;
-      case NUMERIC:
-        long value = reader.getNumericDocValues(field).get(docNum);
-        values.append(0, "", Long.toString(value));
-        uncollectedFields.remove(field);
-        break;
-      case SORTED:
-        reader.getSortedDocValues(field).get(docNum, br);
-        values.append(0, "", br.utf8ToString());
-        uncollectedFields.remove(field);
-        break;
-      case SORTED_SET:
-        SortedSetDocValues sorted = reader.getSortedSetDocValues(field);
-        int i = 0;
-        sorted.setDocument(docNum);
-        long ord = 0;
-        while((ord = sorted.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
-          sorted.lookupOrd(ord, br);
-          values.append(i++, "|", br.utf8ToString());
+      Reconstructed res = new Reconstructed();
+      sorted[d] = res;
+      
+      // collect values from stored fields
+      HashSet<String> uncollectedFields = new LinkedHashSet<String>(Arrays.asList(fieldNames));
+      Document doc = reader.document(docNum);
+      for (int i = 0; i < fieldNames.length; i++) {
+        IndexableField[] fs = doc.getFields(fieldNames[i]);
+        if (fs != null && fs.length > 0) {
+          res.getStoredFields().put(fieldNames[i], fs);
+          uncollectedFields.remove(fieldNames[i]);
         }
-        uncollectedFields.remove(field);
-        break;
-      default:
       }
-      if(values.size() > 0) {
-        res.getReconstructedFields().put(field, values);
+      
+      //Look in docvalues
+      for (String field : new ArrayList<String>(uncollectedFields)) {
+        FieldInfo info = fi.fieldInfo(field);
+        DocValuesType dvt = info == null ? null : info.getDocValuesType();
+        if(null == dvt) {
+          continue;
+        }
+        GrowableStringArray values = new GrowableStringArray();
+        switch(dvt) {
+        case BINARY:
+          reader.getBinaryDocValues(field).get(docNum, br);
+          values.append(0, "", br.utf8ToString());
+          uncollectedFields.remove(field);
+          break;
+        case NUMERIC:
+          long value = reader.getNumericDocValues(field).get(docNum);
+          values.append(0, "", Long.toString(value));
+          uncollectedFields.remove(field);
+          break;
+        case SORTED:
+          reader.getSortedDocValues(field).get(docNum, br);
+          values.append(0, "", br.utf8ToString());
+          uncollectedFields.remove(field);
+          break;
+        case SORTED_SET:
+          SortedSetDocValues sortedSet = reader.getSortedSetDocValues(field);
+          int i = 0;
+          sortedSet.setDocument(docNum);
+          long ord = 0;
+          while((ord = sortedSet.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+            sortedSet.lookupOrd(ord, br);
+            values.append(i++, "|", br.utf8ToString());
+          }
+          uncollectedFields.remove(field);
+          break;
+        default:
+        }
+        if(values.size() > 0) {
+          res.getReconstructedFields().put(field, values);
+        }
       }
-    }
-    
-    // try to use term vectors if available
-    progress.maxValue = uncollectedFields.size();
-    progress.curValue = 0;
-    progress.minValue = 0;
-    TermsEnum te = null;
-    DocsAndPositionsEnum dpe = null;
-    DocsEnum de = null;
-    for (String field : new ArrayList<String>(uncollectedFields)) {
-      Terms tvf = reader.getTermVector(docNum, field);
-      if (tvf != null) { // has vectors for this field
-        te = tvf.iterator(te);
-        progress.message = "Checking term vectors for '" + field + "' ...";
-        progress.curValue++;
+      
+      // try to use term vectors if available
+      Fields tvFields = uncollectedFields.isEmpty() ? null : reader.getTermVectors(docNum);
+      if (tvFields != null) {
+        progress.message = "Checking term vectors ...";
+        progress.curValue = d + 1;
         setChanged();
         notifyObservers(progress);
-        List<IntPair> vectors = TermVectorMapper.map(tvf, te, false, true);
-        if (vectors != null) {
-          GrowableStringArray gsa = res.getReconstructedFields().get(field);
-          if (gsa == null) {
-            gsa = new GrowableStringArray();
-            res.getReconstructedFields().put(field, gsa);
+        for (String field : new ArrayList<String>(uncollectedFields)) {
+          Terms tvf = tvFields.terms(field);
+          if (tvf == null) { // no vectors for this field
+            continue;
           }
-          for (IntPair ip : vectors) {
-            for (int m = 0; m < ip.positions.length; m++) {
-              gsa.append(ip.positions[m], "|", ip.text);
+          te = tvf.iterator(te);
+          List<IntPair> vectors = TermVectorMapper.map(tvf, te, false, true);
+          if (vectors != null) {
+            GrowableStringArray gsa = res.getReconstructedFields().get(field);
+            if (gsa == null) {
+              gsa = new GrowableStringArray();
+              res.getReconstructedFields().put(field, gsa);
+            }
+            for (IntPair ip : vectors) {
+              for (int m = 0; m < ip.positions.length; m++) {
+                gsa.append(ip.positions[m], "|", ip.text);
+              }
             }
+            uncollectedFields.remove(field); // got what we wanted
           }
-          uncollectedFields.remove(field); // got what we wanted
         }
       }
+      for (String fld : uncollectedFields) {
+        uncollected.get(fld).add(d);
+      }
     }
     
     // this loop collects data only from left-over fields
     // not yet collected through term vectors
-    progress.maxValue = uncollectedFields.size();
+    progress.maxValue = uncollected.size();
     progress.curValue = 0;
     progress.minValue = 0;
-    for (String fld : uncollectedFields) {
+    DocsAndPositionsEnum dpe = null;
+    DocsEnum de = null;
+    for (Map.Entry<String, List<Integer>> e : uncollected.entrySet()) {
+      String fld = e.getKey();
+      List<Integer> targets = e.getValue();
       progress.message = "Collecting terms in " + fld + " ...";
       progress.curValue++;
       setChanged();
       notifyObservers(progress);
+      if (targets.isEmpty()) {
+        continue;
+      }
       Terms terms = MultiFields.getTerms(reader, fld);
       if (terms == null) { // no terms in this field
         continue;
       }
-      
+      NumericType type = profile.getNumericType(fld);
       te = terms.iterator(te);
-      boolean isIntField = true;
-      boolean isLongField = true;
-      boolean hasIntValue = false;
-      boolean hasLongValue = false;
-      while (te.next() != null) {
-        br = te.term();
+      while ((br = te.next()) != null) {
         try {
-          int shift = NumericUtils.getPrefixCodedLongShift(br);
-          NumericUtils.prefixCodedToLong(br);
-          if(shift == 0) {
-            de = te.docs(live, de);
-            if (de != null) {
-              if (de.advance(docNum) == docNum) {
-                hasLongValue = true;
-              }
-            }
+          if (type == NumericType.LONG && NumericUtils.getPrefixCodedLongShift(br) > 0) {
+            continue;
           }
-        } catch (NumberFormatException e) {
-          isLongField = false;
-        }
-        try {
-          int shift = NumericUtils.getPrefixCodedIntShift(br);
-          NumericUtils.prefixCodedToInt(br);
-          if(shift == 0) {
-            de = te.docs(live, de);
-            if (de != null) {
-              if (de.advance(docNum) == docNum) {
-                hasIntValue = true;
-              }
-            }
+          if (type == NumericType.INT && NumericUtils.getPrefixCodedIntShift(br) > 0) {
+            continue;
           }
-        } catch (NumberFormatException e) {
-          isIntField = false;
-        }
-        if (!isLongField && !isIntField) {
-          break;
+        } catch (NumberFormatException nfe) {
+          // profile is based on a sample, this field is not numeric after all
+          type = NumericType.NONE;
         }
-      }
-      
-      isLongField &= hasLongValue;
-      isIntField &= hasIntValue;
-      
-      te = terms.iterator(te);
-      while (te.next() != null) {
+        String term = null;
+        String altValue = null;
         DocsAndPositionsEnum newDpe = te.docsAndPositions(live, dpe, 0);
+        DocsEnum postings;
         if (newDpe != null) {
           dpe = newDpe;
-          int num = dpe.advance(docNum);
-          if (num != docNum) { // either greater than or NO_MORE_DOCS
-            continue; // no data for this term in this doc
+          postings = dpe;
+        } else {
+          DocsEnum newDe = te.docs(live, de, 0);
+          if (newDe == null) {
+            continue;
           }
-          String term = te.term().utf8ToString();
-          GrowableStringArray gsa = (GrowableStringArray)
-                res.getReconstructedFields().get(fld);
-          if (gsa == null) {
-            gsa = new GrowableStringArray();
-            res.getReconstructedFields().put(fld, gsa);
+          de = newDe;
+          postings = de;
+        }
+        int num = -1;
+        for (int k = 0; k < targets.size(); k++) {
+          int idx = targets.get(k);
+          int docNum = docs[idx];
+          if (num < docNum) {
+            num = postings.advance(docNum);
           }
-          for (int k = 0; k < dpe.freq(); k++) {
-            int pos = dpe.nextPosition();
-            gsa.append(pos, "|", term);
+          if (num == DocIdSetIterator.NO_MORE_DOCS) {
+            break;
           }
-        } else {
-          DocsEnum newDe = te.docs(live, de, 0);
-          if(newDe != null) {
-            de = newDe;
-            int num = de.advance(docNum);
-            if (num != docNum) {
-              continue;
-            }
-            String value = null;
-            String altValue = null;
-            br = te.term();
-            
-            if(isLongField) {
-              if (NumericUtils.getPrefixCodedLongShift(br) > 0) {
-                continue;
-              }
-              long l = NumericUtils.prefixCodedToLong(br);
-              value = "<long>" + Long.toString(l);
-              altValue = "<double>" + Double.toString(NumericUtils.sortableLongToDouble(l));
-            } else if(isIntField) {
-              if (NumericUtils.getPrefixCodedIntShift(br) > 0) {
-                continue;
+          if (num != docNum) { // no data for this term in this doc
+            continue;
+          }
+          if (term == null) {
+            try {
+              if(type == NumericType.LONG) {
+                long l = NumericUtils.prefixCodedToLong(br);
+                term = "<long>" + Long.toString(l);
+                altValue = "<double>" + Double.toString(NumericUtils.sortableLongToDouble(l));
+              } else if(type == NumericType.INT) {
+                int i = NumericUtils.prefixCodedToInt(br);
+                term = "<int>" + Integer.toString(i);
+                altValue = "<float>" + Float.toString(NumericUtils.sortableIntToFloat(i));
               }
-              int i = NumericUtils.prefixCodedToInt(br);
-              value = "<int>" + Integer.toString(i);
-              altValue = "<float>" + Float.toString(NumericUtils.sortableIntToFloat(i));
+            } catch (NumberFormatException nfe) {
+              type = NumericType.NONE;
             }
-            if (null == value) {
-              value = br.utf8ToString();
+            if (term == null) {
+              term = br.utf8ToString();
             }
-            GrowableStringArray gsa = (GrowableStringArray)
-                    res.getReconstructedFields().get(fld);
-            if (gsa == null) {
-              gsa = new GrowableStringArray();
-              res.getReconstructedFields().put(fld, gsa);
+          }
+          Map<String, GrowableStringArray> fields = sorted[idx].getReconstructedFields();
+          GrowableStringArray gsa = fields.get(fld);
+          if (gsa == null) {
+            gsa = new GrowableStringArray();
+            fields.put(fld, gsa);
+          }
+          if (postings == dpe) {
+            for (int m = 0; m < dpe.freq(); m++) {
+              int pos = dpe.nextPosition();
+              gsa.append(pos, "|", term);
             }
-            gsa.append(0, "|", value);
+          } else {
+            gsa.append(0, "|", term);
             if(altValue != null) {
               gsa.append(0, "|", altValue);
             }
           }
         }
-        
       }
     }
     progress.message = "Done.";
     progress.curValue = 100;
     setChanged();
     notifyObservers(progress);
-    return res;
+    Reconstructed[] result = new Reconstructed[docNums.length];
+    for (int i = 0; i < docNums.length; i++) {
+      result[i] = sorted[Arrays.binarySearch(docs, docNums[i])];
+    }
+    return result;
   }
   
   /**
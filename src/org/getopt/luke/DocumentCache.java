@@ -0,0 +1,181 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Bounded LRU cache of stored documents for the Documents tab. Each entry
+ * keeps the stored fields of a document together with the names of fields
+ * that have term vectors in it, which are found with a single
+ * {@link IndexReader#getTermVectors(int)} call instead of a probe per field.
+ * <p>Entries are keyed by (reader generation, docid), where the generation
+ * changes whenever a different reader is passed in. When browsing, the next
+ * documents in the browse direction can be loaded in the background.
+ */
+class DocumentCache {
+  /** Default maximum number of cached documents. */
+  public static final int DEFAULT_SIZE = 100;
+  /** Default number of documents to prefetch. */
+  public static final int DEFAULT_PREFETCH = 8;
+
+  /** Stored fields and term vector presence of a document. */
+  static class CachedDoc {
+    Document doc;
+    Set<String> vectorFields;
+  }
+
+  private final Map<Long,CachedDoc> cache;
+  private final int prefetch;
+  private ExecutorService executor = null;
+  private IndexReader reader = null;
+  private boolean readerHasVectors = false;
+  private int generation = 0;
+  // incremented on every prefetch request, so that stale requests stop early
+  private final AtomicInteger prefetchSeq = new AtomicInteger();
+  private int hits = 0, misses = 0;
+
+  /**
+   * @param size maximum number of cached documents
+   * @param prefetch number of documents to prefetch in the browse direction,
+   * 0 to disable prefetching
+   */
+  public DocumentCache(final int size, int prefetch) {
+    this.prefetch = prefetch;
+    cache = new LinkedHashMap<Long,CachedDoc>(size, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long,CachedDoc> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  private static long key(int generation, int docid) {
+    return ((long)generation << 32) | (docid & 0xFFFFFFFFL);
+  }
+
+  // must be called while holding the lock
+  private void checkReader(IndexReader r) {
+    if (r != reader) {
+      reader = r;
+      generation++;
+      cache.clear();
+      readerHasVectors = MultiFields.getMergedFieldInfos(r).hasVectors();
+    }
+  }
+
+  /**
+   * Get a document, loading it from the reader if it's not cached.
+   */
+  public CachedDoc get(IndexReader r, int docid) throws IOException {
+    int gen;
+    boolean vectors;
+    synchronized (this) {
+      checkReader(r);
+      CachedDoc e = cache.get(key(generation, docid));
+      if (e != null) {
+        hits++;
+        return e;
+      }
+      misses++;
+      gen = generation;
+      vectors = readerHasVectors;
+    }
+    CachedDoc e = load(r, docid, vectors);
+    put(gen, docid, e);
+    return e;
+  }
+
+  private synchronized void put(int gen, int docid, CachedDoc e) {
+    if (gen == generation) {
+      cache.put(key(gen, docid), e);
+    }
+  }
+
+  private synchronized boolean contains(int gen, int docid) {
+    // don't use get(), it would change the LRU order
+    return cache.containsKey(key(gen, docid));
+  }
+
+  private static CachedDoc load(IndexReader r, int docid, boolean vectors) throws IOException {
+    CachedDoc e = new CachedDoc();
+    e.doc = r.document(docid);
+    Fields tvs = vectors ? r.getTermVectors(docid) : null;
+    if (tvs == null) {
+      e.vectorFields = Collections.emptySet();
+    } else {
+      e.vectorFields = new HashSet<String>();
+      for (String f : tvs) {
+        if (tvs.terms(f) != null) {
+          e.vectorFields.add(f);
+        }
+      }
+    }
+    return e;
+  }
+
+  /**
+   * Load in the background the live documents following docid in the
+   * browse direction. A new request supersedes any pending one.
+   * @param incr browse direction, -1 or +1
+   */
+  public void prefetch(final IndexReader r, final int docid, final int incr) {
+    if (incr == 0 || prefetch <= 0) return;
+    final int gen;
+    final boolean vectors;
+    synchronized (this) {
+      checkReader(r);
+      gen = generation;
+      vectors = readerHasVectors;
+      if (executor == null) {
+        executor = Util.newExecutor("document-prefetch", 1);
+      }
+    }
+    final int seq = prefetchSeq.incrementAndGet();
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          Bits live = MultiFields.getLiveDocs(r);
+          int maxDoc = r.maxDoc();
+          for (int i = 1; i <= prefetch; i++) {
+            if (seq != prefetchSeq.get()) return;
+            int d = docid + i * incr;
+            if (d < 0 || d >= maxDoc) return;
+            if (live != null && !live.get(d)) continue;
+            if (contains(gen, d)) continue;
+            put(gen, d, load(r, d, vectors));
+          }
+        } catch (Exception e) {
+          // the reader may have been closed - ignore
+        }
+      }
+    });
+  }
+
+  /** Discard all cached documents. */
+  public synchronized void clear() {
+    cache.clear();
+    reader = null;
+    generation++;
+    prefetchSeq.incrementAndGet();
+  }
+
+  public synchronized int getHits() {
+    return hits;
+  }
+
+  public synchronized int getMisses() {
+    return misses;
+  }
+}
@@ -0,0 +1,69 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+/**
+ * Output format for exporting stored fields of documents. Writers visit the
+ * stored fields and encode them directly into an {@link ExportBuffer}.
+ * @see XMLExporter#export(java.io.OutputStream, DocumentFormat, Ranges)
+ */
+public abstract class DocumentFormat {
+
+  /**
+   * Encodes documents, one at a time. Instances are not thread-safe, but
+   * can be reused for any number of documents.
+   */
+  public static abstract class Writer extends StoredFieldVisitor {
+    protected ExportBuffer buf;
+
+    /** Begin a document. All values are written to the given buffer. */
+    public void startDocument(ExportBuffer buf, int docNum) {
+      this.buf = buf;
+    }
+
+    public abstract void endDocument();
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) throws IOException {
+      return Status.YES;
+    }
+  }
+
+  /** Short name, as used on the command-line. */
+  public abstract String getName();
+
+  /**
+   * Write the beginning of the output.
+   * @param fieldNames names of all fields, in the order of field numbers
+   * used by {@link #newWriter(List)}
+   */
+  public void writeHeader(ExportBuffer buf, List<String> fieldNames) {
+  }
+
+  /** Write the end of the output. */
+  public void writeFooter(ExportBuffer buf) {
+  }
+
+  /**
+   * Create a new writer, for use by a single thread.
+   * @param fieldNames names of all fields
+   */
+  public abstract Writer newWriter(List<String> fieldNames);
+
+  /**
+   * Get a format by its name.
+   * @return format, or null if unknown
+   */
+  public static DocumentFormat forName(String name) {
+    if (name.equals("jsonl")) {
+      return new JsonLinesFormat();
+    } else if (name.equals("bin")) {
+      return new BinaryFormat();
+    }
+    return null;
+  }
+}
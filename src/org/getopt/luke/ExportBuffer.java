@@ -0,0 +1,230 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Growable byte buffer for serializing exported documents. It's meant to be
+ * reset and reused, so that encoding values doesn't create garbage.
+ */
+public class ExportBuffer extends OutputStream {
+  private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+  private byte[] buf;
+  private int len = 0;
+
+  public ExportBuffer() {
+    this(8192);
+  }
+
+  public ExportBuffer(int initialSize) {
+    buf = new byte[initialSize];
+  }
+
+  private void ensure(int extra) {
+    if (len + extra > buf.length) {
+      byte[] newBuf = new byte[Math.max(buf.length * 2, len + extra)];
+      System.arraycopy(buf, 0, newBuf, 0, len);
+      buf = newBuf;
+    }
+  }
+
+  public void reset() {
+    len = 0;
+  }
+
+  public int length() {
+    return len;
+  }
+
+  /** Write the contents of this buffer to a stream. */
+  public void writeTo(OutputStream out) throws IOException {
+    out.write(buf, 0, len);
+  }
+
+  @Override
+  public void write(int b) {
+    ensure(1);
+    buf[len++] = (byte)b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int l) {
+    ensure(l);
+    System.arraycopy(b, off, buf, len, l);
+    len += l;
+  }
+
+  /** Write a string known to contain only ASCII characters. */
+  public void writeAscii(String s) {
+    int l = s.length();
+    ensure(l);
+    for (int i = 0; i < l; i++) {
+      buf[len++] = (byte)s.charAt(i);
+    }
+  }
+
+  /** Write a string as UTF-8. */
+  public void writeUtf8(CharSequence s) {
+    int l = s.length();
+    for (int i = 0; i < l; i++) {
+      i = writeUtf8Char(s, i);
+    }
+  }
+
+  /**
+   * Encode a single character at the given position, and return the
+   * position of its last char (i.e. + 1 for surrogate pairs).
+   */
+  private int writeUtf8Char(CharSequence s, int i) {
+    ensure(4);
+    int c = s.charAt(i);
+    if (c < 0x80) {
+      buf[len++] = (byte)c;
+    } else if (c < 0x800) {
+      buf[len++] = (byte)(0xC0 | (c >> 6));
+      buf[len++] = (byte)(0x80 | (c & 0x3F));
+    } else if (c < 0xD800 || c > 0xDFFF) {
+      buf[len++] = (byte)(0xE0 | (c >> 12));
+      buf[len++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+      buf[len++] = (byte)(0x80 | (c & 0x3F));
+    } else if (c < 0xDC00 && i + 1 < s.length() &&
+        s.charAt(i + 1) >= 0xDC00 && s.charAt(i + 1) <= 0xDFFF) {
+      int cp = ((c - 0xD800) << 10) + (s.charAt(++i) - 0xDC00) + 0x10000;
+      buf[len++] = (byte)(0xF0 | (cp >> 18));
+      buf[len++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+      buf[len++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+      buf[len++] = (byte)(0x80 | (cp & 0x3F));
+    } else { // unpaired surrogate
+      buf[len++] = (byte)0xEF;
+      buf[len++] = (byte)0xBF;
+      buf[len++] = (byte)0xBD;
+    }
+    return i;
+  }
+
+  /** Number of bytes that {@link #writeUtf8(CharSequence)} will write. */
+  public static int utf8Length(CharSequence s) {
+    int l = s.length();
+    int res = 0;
+    for (int i = 0; i < l; i++) {
+      char c = s.charAt(i);
+      if (c < 0x80) {
+        res++;
+      } else if (c < 0x800) {
+        res += 2;
+      } else if (c < 0xD800 || c > 0xDFFF) {
+        res += 3;
+      } else if (c < 0xDC00 && i + 1 < l &&
+          s.charAt(i + 1) >= 0xDC00 && s.charAt(i + 1) <= 0xDFFF) {
+        res += 4;
+        i++;
+      } else { // unpaired surrogate, replaced with U+FFFD
+        res += 3;
+      }
+    }
+    return res;
+  }
+
+  /** Write a quoted and escaped JSON string. */
+  public void writeJsonString(CharSequence s) {
+    write('"');
+    int l = s.length();
+    for (int i = 0; i < l; i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        write('\\');
+        write('"');
+        break;
+      case '\\':
+        write('\\');
+        write('\\');
+        break;
+      case '\n':
+        write('\\');
+        write('n');
+        break;
+      case '\r':
+        write('\\');
+        write('r');
+        break;
+      case '\t':
+        write('\\');
+        write('t');
+        break;
+      default:
+        if (c < 0x20) {
+          writeAscii("\\u00");
+          write(HEX[c >> 4]);
+          write(HEX[c & 0xF]);
+        } else {
+          i = writeUtf8Char(s, i);
+        }
+      }
+    }
+    write('"');
+  }
+
+  /** Write bytes as lowercase hex digits. */
+  public void writeHex(byte[] b, int off, int l) {
+    ensure(l * 2);
+    for (int i = off; i < off + l; i++) {
+      buf[len++] = HEX[(b[i] >> 4) & 0xF];
+      buf[len++] = HEX[b[i] & 0xF];
+    }
+  }
+
+  /** Write the decimal representation of a number. */
+  public void writeDecimal(long v) {
+    if (v == Long.MIN_VALUE) {
+      writeAscii("-9223372036854775808");
+      return;
+    }
+    ensure(20);
+    if (v < 0) {
+      buf[len++] = '-';
+      v = -v;
+    }
+    int start = len;
+    do {
+      buf[len++] = (byte)('0' + (v % 10));
+      v /= 10;
+    } while (v > 0);
+    // reverse the digits
+    for (int i = start, j = len - 1; i < j; i++, j--) {
+      byte t = buf[i];
+      buf[i] = buf[j];
+      buf[j] = t;
+    }
+  }
+
+  public void writeVInt(int i) {
+    while ((i & ~0x7F) != 0) {
+      write((i & 0x7F) | 0x80);
+      i >>>= 7;
+    }
+    write(i);
+  }
+
+  public void writeInt(int i) {
+    ensure(4);
+    buf[len++] = (byte)(i >> 24);
+    buf[len++] = (byte)(i >> 16);
+    buf[len++] = (byte)(i >> 8);
+    buf[len++] = (byte)i;
+  }
+
+  public void writeLong(long l) {
+    writeInt((int)(l >> 32));
+    writeInt((int)l);
+  }
+
+  /** Overwrite 4 bytes at a given position with a big-endian int. */
+  public void setInt(int pos, int i) {
+    buf[pos] = (byte)(i >> 24);
+    buf[pos + 1] = (byte)(i >> 16);
+    buf[pos + 2] = (byte)(i >> 8);
+    buf[pos + 3] = (byte)i;
+  }
+}
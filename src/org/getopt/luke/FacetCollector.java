@@ -0,0 +1,473 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Counts the values of DocValues fields over the hits of a query, for all
+ * fields in a single pass. SORTED and SORTED_SET values are counted in an
+ * array of ordinals per segment, which is folded into per-value counts when
+ * the segment is done. NUMERIC values are counted in a histogram of equal
+ * buckets over the range of values in the index.
+ * <p>Hits are forwarded to a delegate collector, if there is one, so that
+ * facets can be counted in the same pass as the search. If the delegate
+ * stops collecting a segment the hits are still counted. A
+ * {@link LimitedHitCollector} can't be a delegate, because facets of a
+ * search stopped at a limit would be incomplete.
+ */
+public class FacetCollector extends AccessibleHitCollector {
+  // range of NUMERIC values: segment core -> field -> {min, max}
+  private static final Map<Object,Map<String,long[]>> segmentRanges =
+    new WeakHashMap<Object,Map<String,long[]>>();
+
+  /** Field to count, and how to present the counts. */
+  public static class FacetSpec {
+    String field;
+    DocValuesType type;
+    int size;
+
+    /**
+     * @param field name of a SORTED, SORTED_SET or NUMERIC DocValues field
+     * @param size number of top values, or number of histogram buckets
+     * for NUMERIC fields
+     */
+    public FacetSpec(String field, DocValuesType type, int size) {
+      if (type != DocValuesType.SORTED && type != DocValuesType.SORTED_SET &&
+          type != DocValuesType.NUMERIC) {
+        throw new IllegalArgumentException("Can't count " + type + " DocValues");
+      }
+      this.field = field;
+      this.type = type;
+      this.size = Math.max(1, size);
+    }
+  }
+
+  /** A value, or a histogram bucket, and its count. */
+  public static class Entry {
+    public final String label;
+    public final long count;
+
+    Entry(String label, long count) {
+      this.label = label;
+      this.count = count;
+    }
+  }
+
+  /** Counts of one field. */
+  public static class FacetResult {
+    public final String field;
+    public final DocValuesType type;
+    /** Top values by count, or histogram buckets in the order of values. */
+    public final List<Entry> entries;
+    /** Number of distinct values, or of buckets. */
+    public final int numValues;
+    /** Number of hits without a value, or with an empty value. */
+    public final long missing;
+
+    FacetResult(String field, DocValuesType type, List<Entry> entries, int numValues, long missing) {
+      this.field = field;
+      this.type = type;
+      this.entries = entries;
+      this.numValues = numValues;
+      this.missing = missing;
+    }
+  }
+
+  // counting state of one field
+  private static class FieldCounts {
+    FacetSpec spec;
+    // values counted in finished segments
+    Map<BytesRef,long[]> valueCounts = new HashMap<BytesRef,long[]>();
+    long missing = 0;
+    // current segment
+    int[] ordCounts = new int[0];
+    SortedDocValues sorted;
+    SortedSetDocValues sortedSet;
+    NumericDocValues numeric;
+    // histogram of NUMERIC values
+    long min, max;
+    long[] buckets;
+  }
+
+  private AccessibleHitCollector delegate;
+  private FacetSpec[] specs;
+  private FieldCounts[] counts;
+  private int totalHits = 0;
+  private boolean delegateStopped = false;
+
+  /**
+   * @param delegate collector to forward hits to, may be null
+   * @param reader top-level reader, to find the range of NUMERIC values
+   * @param specs fields to count
+   */
+  public FacetCollector(AccessibleHitCollector delegate, IndexReader reader,
+      FacetSpec... specs) throws IOException {
+    if (delegate instanceof LimitedHitCollector) {
+      // the searcher wouldn't see the limit
+      throw new IllegalArgumentException("Can't count facets of a limited search");
+    }
+    this.delegate = delegate;
+    this.specs = specs;
+    this.outOfOrder = delegate == null || delegate.acceptsDocsOutOfOrder();
+    counts = new FieldCounts[specs.length];
+    for (int i = 0; i < specs.length; i++) {
+      counts[i] = new FieldCounts();
+      counts[i].spec = specs[i];
+      if (specs[i].type == DocValuesType.NUMERIC) {
+        long[] range = getRange(reader, specs[i].field);
+        counts[i].min = range[0];
+        counts[i].max = range[1];
+        counts[i].buckets = new long[specs[i].size];
+      }
+    }
+  }
+
+  // only for parts, which share the histogram range
+  private FacetCollector(AccessibleHitCollector delegate, FacetCollector parent) {
+    this.delegate = delegate;
+    this.specs = parent.specs;
+    this.outOfOrder = parent.outOfOrder;
+    counts = new FieldCounts[specs.length];
+    for (int i = 0; i < specs.length; i++) {
+      counts[i] = new FieldCounts();
+      counts[i].spec = specs[i];
+      counts[i].min = parent.counts[i].min;
+      counts[i].max = parent.counts[i].max;
+      if (parent.counts[i].buckets != null) {
+        counts[i].buckets = new long[specs[i].size];
+      }
+    }
+  }
+
+  /**
+   * @return minimum and maximum value of a NUMERIC field in the index,
+   * computed once for each segment.
+   */
+  static long[] getRange(IndexReader reader, String field) throws IOException {
+    long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      long[] range = getSegmentRange(ctx.reader(), field);
+      if (range != null) {
+        min = Math.min(min, range[0]);
+        max = Math.max(max, range[1]);
+      }
+    }
+    if (min > max) {
+      min = max = 0;
+    }
+    return new long[]{min, max};
+  }
+
+  private static long[] getSegmentRange(AtomicReader reader, String field) throws IOException {
+    Object key = reader.getCoreCacheKey();
+    synchronized (segmentRanges) {
+      Map<String,long[]> ranges = segmentRanges.get(key);
+      if (ranges != null && ranges.containsKey(field)) {
+        return ranges.get(field);
+      }
+    }
+    NumericDocValues dv = reader.getNumericDocValues(field);
+    long[] range = null;
+    if (dv != null && reader.maxDoc() > 0) {
+      long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+      for (int i = 0; i < reader.maxDoc(); i++) {
+        long v = dv.get(i);
+        if (v < min) min = v;
+        if (v > max) max = v;
+      }
+      range = new long[]{min, max};
+    }
+    synchronized (segmentRanges) {
+      Map<String,long[]> ranges = segmentRanges.get(key);
+      if (ranges == null) {
+        ranges = new HashMap<String,long[]>();
+        segmentRanges.put(key, ranges);
+      }
+      ranges.put(field, range);
+    }
+    return range;
+  }
+
+  // add the ordinal counts of the current segment to the value counts
+  private void foldSegment() {
+    for (FieldCounts fc : counts) {
+      if (fc.sorted == null && fc.sortedSet == null) {
+        continue;
+      }
+      int numOrds = fc.sorted != null ? fc.sorted.getValueCount() : (int)fc.sortedSet.getValueCount();
+      for (int ord = 0; ord < numOrds; ord++) {
+        int cnt = fc.ordCounts[ord];
+        if (cnt == 0) continue;
+        fc.ordCounts[ord] = 0;
+        BytesRef term = new BytesRef();
+        if (fc.sorted != null) {
+          fc.sorted.lookupOrd(ord, term);
+        } else {
+          fc.sortedSet.lookupOrd(ord, term);
+        }
+        if (term.length == 0) {
+          // docs without a value get an empty value in SORTED fields
+          fc.missing += cnt;
+          continue;
+        }
+        // the term may point to shared bytes
+        term = BytesRef.deepCopyOf(term);
+        long[] c = fc.valueCounts.get(term);
+        if (c == null) {
+          fc.valueCounts.put(term, new long[]{cnt});
+        } else {
+          c[0] += cnt;
+        }
+      }
+      fc.sorted = null;
+      fc.sortedSet = null;
+    }
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    foldSegment();
+    docBase = context.docBase;
+    AtomicReader reader = context.reader();
+    for (FieldCounts fc : counts) {
+      int numOrds = 0;
+      switch (fc.spec.type) {
+      case SORTED:
+        fc.sorted = reader.getSortedDocValues(fc.spec.field);
+        numOrds = fc.sorted == null ? 0 : fc.sorted.getValueCount();
+        break;
+      case SORTED_SET:
+        fc.sortedSet = reader.getSortedSetDocValues(fc.spec.field);
+        numOrds = fc.sortedSet == null ? 0 : (int)fc.sortedSet.getValueCount();
+        break;
+      default:
+        fc.numeric = reader.getNumericDocValues(fc.spec.field);
+      }
+      if (numOrds > fc.ordCounts.length) {
+        // counts are cleared when folded, so the array can be reused
+        fc.ordCounts = new int[numOrds];
+      }
+    }
+    delegateStopped = false;
+    if (delegate != null) {
+      try {
+        delegate.setNextReader(context);
+      } catch (CollectionTerminatedException e) {
+        delegateStopped = true;
+      }
+    }
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    totalHits++;
+    for (FieldCounts fc : counts) {
+      switch (fc.spec.type) {
+      case SORTED:
+        int ord = fc.sorted == null ? -1 : fc.sorted.getOrd(doc);
+        if (ord < 0) {
+          fc.missing++;
+        } else {
+          fc.ordCounts[ord]++;
+        }
+        break;
+      case SORTED_SET:
+        boolean found = false;
+        if (fc.sortedSet != null) {
+          fc.sortedSet.setDocument(doc);
+          long o;
+          while ((o = fc.sortedSet.nextOrd()) != SortedSetDocValues.NO_MORE_ORDS) {
+            fc.ordCounts[(int)o]++;
+            found = true;
+          }
+        }
+        if (!found) {
+          fc.missing++;
+        }
+        break;
+      default:
+        if (fc.numeric == null) {
+          fc.missing++;
+        } else {
+          fc.buckets[bucket(fc, fc.numeric.get(doc))]++;
+        }
+      }
+    }
+    if (delegate != null && !delegateStopped) {
+      try {
+        delegate.collect(doc);
+      } catch (CollectionTerminatedException e) {
+        delegateStopped = true;
+      }
+    }
+  }
+
+  private static int bucket(FieldCounts fc, long value) {
+    if (fc.max == fc.min) return 0;
+    // width computed in double, as max - min may overflow a long
+    double width = ((double)fc.max - fc.min + 1) / fc.buckets.length;
+    int b = (int)(((double)value - fc.min) / width);
+    return Math.max(0, Math.min(fc.buckets.length - 1, b));
+  }
+
+  /**
+   * @return counts of all fields, in the order of the specs
+   */
+  public List<FacetResult> getResults() {
+    foldSegment();
+    List<FacetResult> res = new ArrayList<FacetResult>(counts.length);
+    for (FieldCounts fc : counts) {
+      List<Entry> entries = new ArrayList<Entry>();
+      if (fc.buckets != null) {
+        double width = ((double)fc.max - fc.min + 1) / fc.buckets.length;
+        for (int i = 0; i < fc.buckets.length; i++) {
+          long from = fc.min + (long)Math.ceil(i * width);
+          long to = i == fc.buckets.length - 1 ? fc.max : fc.min + (long)Math.ceil((i + 1) * width) - 1;
+          if (from > to) continue;
+          entries.add(new Entry("[" + from + " .. " + to + "]", fc.buckets[i]));
+        }
+        res.add(new FacetResult(fc.spec.field, fc.spec.type, entries, entries.size(), fc.missing));
+      } else {
+        for (Map.Entry<BytesRef,long[]> e : fc.valueCounts.entrySet()) {
+          entries.add(new Entry(e.getKey().utf8ToString(), e.getValue()[0]));
+        }
+        Collections.sort(entries, new Comparator<Entry>() {
+          public int compare(Entry a, Entry b) {
+            if (a.count != b.count) return a.count > b.count ? -1 : 1;
+            return a.label.compareTo(b.label);
+          }
+        });
+        int numValues = entries.size();
+        if (entries.size() > fc.spec.size) {
+          entries = new ArrayList<Entry>(entries.subList(0, fc.spec.size));
+        }
+        res.add(new FacetResult(fc.spec.field, fc.spec.type, entries, numValues, fc.missing));
+      }
+    }
+    return res;
+  }
+
+  /** @return number of hits counted */
+  public int getCountedHits() {
+    return totalHits;
+  }
+
+  @Override
+  public int getTotalHits() {
+    return delegate != null ? delegate.getTotalHits() : 0;
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    if (delegate == null) {
+      throw new IndexOutOfBoundsException("No hits collected");
+    }
+    return delegate.getDocId(pos);
+  }
+
+  @Override
+  public float getScore(int pos) {
+    if (delegate == null) {
+      throw new IndexOutOfBoundsException("No hits collected");
+    }
+    return delegate.getScore(pos);
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException {
+    this.scorer = scorer;
+    if (delegate != null) {
+      delegate.setScorer(scorer);
+    }
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return delegate == null || delegate.acceptsDocsOutOfOrder();
+  }
+
+  @Override
+  public void reset() {
+    totalHits = 0;
+    for (FieldCounts fc : counts) {
+      fc.valueCounts.clear();
+      fc.missing = 0;
+      fc.sorted = null;
+      fc.sortedSet = null;
+      Arrays.fill(fc.ordCounts, 0);
+      if (fc.buckets != null) {
+        Arrays.fill(fc.buckets, 0);
+      }
+    }
+    if (delegate != null) {
+      delegate.reset();
+    }
+  }
+
+  @Override
+  public boolean canSplit() {
+    return delegate == null || delegate.canSplit();
+  }
+
+  @Override
+  public AccessibleHitCollector newPartCollector() {
+    AccessibleHitCollector part = null;
+    if (delegate != null) {
+      part = delegate.newPartCollector();
+      if (part == null) {
+        return null;
+      }
+    }
+    return new FacetCollector(part, this);
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> parts) throws IOException {
+    List<AccessibleHitCollector> delegateParts = new ArrayList<AccessibleHitCollector>(parts.size());
+    for (AccessibleHitCollector c : parts) {
+      FacetCollector part = (FacetCollector)c;
+      part.foldSegment();
+      totalHits += part.totalHits;
+      for (int i = 0; i < counts.length; i++) {
+        FieldCounts fc = counts[i], pc = part.counts[i];
+        fc.missing += pc.missing;
+        if (fc.buckets != null) {
+          for (int b = 0; b < fc.buckets.length; b++) {
+            fc.buckets[b] += pc.buckets[b];
+          }
+        }
+        for (Map.Entry<BytesRef,long[]> e : pc.valueCounts.entrySet()) {
+          long[] cnt = fc.valueCounts.get(e.getKey());
+          if (cnt == null) {
+            fc.valueCounts.put(e.getKey(), e.getValue());
+          } else {
+            cnt[0] += e.getValue()[0];
+          }
+        }
+      }
+      if (part.delegate != null) {
+        delegateParts.add(part.delegate);
+      }
+    }
+    if (delegate != null) {
+      delegate.merge(delegateParts);
+    }
+  }
+}
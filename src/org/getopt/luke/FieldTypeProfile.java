@@ -0,0 +1,149 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
+import org.getopt.luke.decoders.Decoder;
+import org.getopt.luke.decoders.NumIntDecoder;
+import org.getopt.luke.decoders.NumLongDecoder;
+
+/**
+ * Types of values indexed in each field, detected from {@link FieldInfos}
+ * and from a sample of the terms. Profiles are computed once per reader
+ * (i.e. per index generation) and shared by all users of the same reader.
+ */
+public class FieldTypeProfile {
+  /** Type of numeric values encoded in a field. */
+  public static enum NumericType { NONE, INT, LONG };
+
+  /** Default number of terms to examine in each field. */
+  public static final int DEFAULT_SAMPLE_SIZE = 1024;
+
+  private static Map<Object, FieldTypeProfile> profiles =
+    Collections.synchronizedMap(new WeakHashMap<Object, FieldTypeProfile>());
+
+  private Map<String, NumericType> numericTypes = new HashMap<String, NumericType>();
+
+  /**
+   * Get the profile of an index, computing it if necessary.
+   * @param reader index reader. Composite readers and their atomic wrappers
+   * share the same profile.
+   */
+  public static FieldTypeProfile get(IndexReader reader) throws IOException {
+    Object key = reader.getCoreCacheKey();
+    synchronized (profiles) {
+      FieldTypeProfile profile = profiles.get(key);
+      if (profile == null) {
+        profile = new FieldTypeProfile(reader, DEFAULT_SAMPLE_SIZE);
+        profiles.put(key, profile);
+      }
+      return profile;
+    }
+  }
+
+  /**
+   * Compute a profile.
+   * @param reader index reader
+   * @param sampleSize maximum number of terms to examine per field
+   */
+  public FieldTypeProfile(IndexReader reader, int sampleSize) throws IOException {
+    FieldInfos infos = MultiFields.getMergedFieldInfos(reader);
+    Fields fields = MultiFields.getFields(reader);
+    if (fields == null) {
+      return;
+    }
+    Iterator<String> fe = fields.iterator();
+    TermsEnum te = null;
+    while (fe.hasNext()) {
+      String fld = fe.next();
+      NumericType type = NumericType.NONE;
+      FieldInfo info = infos.fieldInfo(fld);
+      // trie-encoded fields are always indexed without freqs and positions
+      if (info == null || info.getIndexOptions() == IndexOptions.DOCS_ONLY) {
+        Terms terms = fields.terms(fld);
+        if (terms != null) {
+          te = terms.iterator(te);
+          type = detect(te, sampleSize);
+        }
+      }
+      numericTypes.put(fld, type);
+    }
+  }
+
+  private static NumericType detect(TermsEnum te, int sampleSize) throws IOException {
+    boolean isIntField = true;
+    boolean isLongField = true;
+    boolean hasIntValue = false;
+    boolean hasLongValue = false;
+    BytesRef br;
+    int cnt = 0;
+    while ((br = te.next()) != null && cnt++ < sampleSize) {
+      if (isLongField) {
+        try {
+          int shift = NumericUtils.getPrefixCodedLongShift(br);
+          NumericUtils.prefixCodedToLong(br);
+          hasLongValue |= shift == 0;
+        } catch (NumberFormatException e) {
+          isLongField = false;
+        }
+      }
+      if (isIntField) {
+        try {
+          int shift = NumericUtils.getPrefixCodedIntShift(br);
+          NumericUtils.prefixCodedToInt(br);
+          hasIntValue |= shift == 0;
+        } catch (NumberFormatException e) {
+          isIntField = false;
+        }
+      }
+      if (!isLongField && !isIntField) {
+        break;
+      }
+    }
+    if (isLongField && hasLongValue) {
+      return NumericType.LONG;
+    } else if (isIntField && hasIntValue) {
+      return NumericType.INT;
+    } else {
+      return NumericType.NONE;
+    }
+  }
+
+  /**
+   * @return detected numeric type of the field, or {@link NumericType#NONE}
+   * if the field is not numeric or has no indexed terms.
+   */
+  public NumericType getNumericType(String field) {
+    NumericType type = numericTypes.get(field);
+    return type == null ? NumericType.NONE : type;
+  }
+
+  /**
+   * @return a new instance of the decoder suitable for this field's terms,
+   * or null if no specific decoder is needed.
+   */
+  public Decoder getDefaultDecoder(String field) {
+    switch (getNumericType(field)) {
+    case INT:
+      return new NumIntDecoder();
+    case LONG:
+      return new NumLongDecoder();
+    default:
+      return null;
+    }
+  }
+}
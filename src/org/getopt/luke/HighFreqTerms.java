@@ -18,10 +18,22 @@ package org.getopt.luke;
  */
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
+import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexReader;
@@ -56,8 +68,9 @@ public class HighFreqTerms {
     FSDirectory dir = null;
     String field = null;
     boolean IncludeTermFreqs = false; 
+    int numThreads = 1;
    
-    if (args.length == 0 || args.length > 4) {
+    if (args.length == 0 || args.length > 6) {
       usage();
       System.exit(1);
     }     
@@ -69,6 +82,8 @@ public class HighFreqTerms {
     for (int i = 1; i < args.length; i++) {
       if (args[i].equals("-t")) {
         IncludeTermFreqs = true;
+      } else if (args[i].equals("-threads") && i < args.length - 1) {
+        numThreads = Integer.parseInt(args[++i]);
       }
       else{
         try {
@@ -80,7 +95,7 @@ public class HighFreqTerms {
     }
     String[] fields = field != null ? new String[]{field} : null;
     reader = DirectoryReader.open(dir);
-    TermStats[] terms = getHighFreqTerms(reader, numTerms, fields);
+    TermStats[] terms = getHighFreqTerms(reader, numTerms, fields, numThreads);
     if (!IncludeTermFreqs) {
       //default HighFreqTerms behavior
       for (int i = 0; i < terms.length; i++) {
@@ -102,7 +117,7 @@ public class HighFreqTerms {
   private static void usage() {
     System.out
         .println("\n\n"
-            + "java org.apache.lucene.misc.HighFreqTerms <index dir> [-t][number_terms] [field]\n\t -t: include totalTermFreq\n\n");
+            + "java org.apache.lucene.misc.HighFreqTerms <index dir> [-t] [-threads N] [number_terms] [field]\n\t -t: include totalTermFreq\n\t -threads N: scan segments using N threads\n\n");
   }
   
   private static final TermStats[] EMPTY_STATS = new TermStats[0];
@@ -159,6 +174,161 @@ public class HighFreqTerms {
     return result;
   }
   
+  /**
+   * Parallel version of {@link #getHighFreqTerms(IndexReader, int, String[])}.
+   * <p>Each (segment, field) pair is scanned by a separate task into its own
+   * {@link TermStatsQueue}. The per-segment candidates are then merged and
+   * ranked by their exact docFreq across all segments. A term that didn't make
+   * it into any per-segment queue can't have a docFreq higher than the sum of
+   * the smallest docFreq-s in the full queues of its field - if that bound
+   * exceeds the lowest docFreq in the merged result, the field is re-scanned
+   * sequentially, so the result is always exact.
+   * @param numThreads number of worker threads. Values &lt;= 1 use the
+   * sequential implementation.
+   * @return TermStats[] ordered by terms with highest docFreq first.
+   */
+  public static TermStats[] getHighFreqTerms(IndexReader reader, final int numTerms,
+          String[] fieldNames, int numThreads) throws Exception {
+    if (numThreads <= 1 || numTerms <= 0) {
+      return getHighFreqTerms(reader, numTerms, fieldNames);
+    }
+    Fields fields = MultiFields.getFields(reader);
+    if (fields == null) {
+      LOG.info("Index with no fields - probably empty or corrupted");
+      return EMPTY_STATS;
+    }
+    if (fieldNames == null) {
+      List<String> names = new ArrayList<String>();
+      Iterator<String> fieldsEnum = fields.iterator();
+      while (fieldsEnum.hasNext()) {
+        names.add(fieldsEnum.next());
+      }
+      fieldNames = names.toArray(new String[names.size()]);
+    }
+    ExecutorService pool = Util.newExecutor("HighFreqTerms", numThreads);
+    try {
+      // phase 1: top terms of each (segment, field) pair
+      List<Future<TermStatsQueue>> segTasks = new ArrayList<Future<TermStatsQueue>>();
+      for (AtomicReaderContext ctx : reader.leaves()) {
+        Fields segFields = ctx.reader().fields();
+        if (segFields == null) continue;
+        for (final String field : fieldNames) {
+          final Terms terms = segFields.terms(field);
+          if (terms == null) continue;
+          segTasks.add(pool.submit(new Callable<TermStatsQueue>() {
+            public TermStatsQueue call() throws Exception {
+              TermStatsQueue q = new TermStatsQueue(numTerms);
+              fillQueue(terms.iterator(null), q, field, numTerms);
+              return q;
+            }
+          }));
+        }
+      }
+      // phase 2: merge candidates, compute the bound for unseen terms
+      Map<String,Set<BytesRef>> candidates = new LinkedHashMap<String,Set<BytesRef>>();
+      Map<String,Long> bounds = new HashMap<String,Long>();
+      for (Future<TermStatsQueue> f : segTasks) {
+        TermStatsQueue q = get(f);
+        if (q.size() == 0) continue;
+        String field = q.top().field;
+        Set<BytesRef> cands = candidates.get(field);
+        if (cands == null) {
+          cands = new HashSet<BytesRef>();
+          candidates.put(field, cands);
+          bounds.put(field, 0L);
+        }
+        if (q.size() == numTerms) {
+          bounds.put(field, bounds.get(field) + q.top().docFreq);
+        }
+        while (q.size() > 0) {
+          cands.add(q.pop().termtext);
+        }
+      }
+      // phase 3: exact cross-segment docFreq of the candidates
+      Map<String,Future<TermStatsQueue>> exactTasks = new LinkedHashMap<String,Future<TermStatsQueue>>();
+      for (Map.Entry<String,Set<BytesRef>> e : candidates.entrySet()) {
+        final String field = e.getKey();
+        final Set<BytesRef> cands = e.getValue();
+        final Terms terms = fields.terms(field);
+        exactTasks.put(field, pool.submit(new Callable<TermStatsQueue>() {
+          public TermStatsQueue call() throws Exception {
+            TermStatsQueue q = new TermStatsQueue(numTerms);
+            TermsEnum te = terms.iterator(null);
+            for (BytesRef term : cands) {
+              if (te.seekExact(term, false)) {
+                q.insertWithOverflow(new TermStats(field, term, te.docFreq()));
+              }
+            }
+            return q;
+          }
+        }));
+      }
+      Map<String,List<TermStats>> perField = new LinkedHashMap<String,List<TermStats>>();
+      TermStatsQueue tiq = new TermStatsQueue(numTerms);
+      for (Map.Entry<String,Future<TermStatsQueue>> e : exactTasks.entrySet()) {
+        TermStatsQueue q = get(e.getValue());
+        List<TermStats> stats = new ArrayList<TermStats>(q.size());
+        while (q.size() > 0) {
+          TermStats ts = q.pop();
+          stats.add(ts);
+          tiq.insertWithOverflow(ts);
+        }
+        perField.put(e.getKey(), stats);
+      }
+      // phase 4: re-scan fields where an unseen term could still qualify
+      int minDf = tiq.size() < numTerms ? 0 : tiq.top().docFreq;
+      Map<String,Future<TermStatsQueue>> rescanTasks = new LinkedHashMap<String,Future<TermStatsQueue>>();
+      for (Map.Entry<String,Long> e : bounds.entrySet()) {
+        if (e.getValue() <= minDf) continue;
+        final String field = e.getKey();
+        final Terms terms = fields.terms(field);
+        LOG.debug("Bound not reached for field " + field + ", rescanning");
+        rescanTasks.put(field, pool.submit(new Callable<TermStatsQueue>() {
+          public TermStatsQueue call() throws Exception {
+            TermStatsQueue q = new TermStatsQueue(numTerms);
+            fillQueue(terms.iterator(null), q, field, numTerms);
+            return q;
+          }
+        }));
+      }
+      if (!rescanTasks.isEmpty()) {
+        for (Map.Entry<String,Future<TermStatsQueue>> e : rescanTasks.entrySet()) {
+          TermStatsQueue q = get(e.getValue());
+          List<TermStats> stats = new ArrayList<TermStats>(q.size());
+          while (q.size() > 0) {
+            stats.add(q.pop());
+          }
+          perField.put(e.getKey(), stats);
+        }
+        tiq = new TermStatsQueue(numTerms);
+        for (List<TermStats> stats : perField.values()) {
+          for (TermStats ts : stats) {
+            tiq.insertWithOverflow(ts);
+          }
+        }
+      }
+      TermStats[] result = new TermStats[tiq.size()];
+      int count = tiq.size() - 1;
+      while (tiq.size() != 0) {
+        result[count] = tiq.pop();
+        count--;
+      }
+      return result;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  private static <T> T get(Future<T> f) throws Exception {
+    try {
+      return f.get();
+    } catch (ExecutionException ee) {
+      Throwable t = ee.getCause();
+      if (t instanceof Exception) throw (Exception)t;
+      throw ee;
+    }
+  }
+  
   /**
    * Takes array of TermStats. For each term looks up the tf for each doc
    * containing the term and stores the total in the output array of TermStats.
@@ -210,6 +380,20 @@ public class HighFreqTerms {
       }
     }
   }
+  
+  /**
+   * Same as {@link #fillQueue(TermsEnum, TermStatsQueue, String)}, but doesn't
+   * copy terms that can't get into a full queue of the given size.
+   */
+  static void fillQueue(TermsEnum termsEnum, TermStatsQueue tiq, String field, int size) throws Exception {
+    BytesRef term;
+    while ((term = termsEnum.next()) != null) {
+      int df = termsEnum.docFreq();
+      if (tiq.size() < size || df > tiq.top().docFreq) {
+        tiq.insertWithOverflow(new TermStats(field, BytesRef.deepCopyOf(term), df));
+      }
+    }
+  }
  }
 
 /**
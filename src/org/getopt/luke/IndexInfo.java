@@ -3,18 +3,13 @@ package org.getopt.luke;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
 import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.Fields;
 import org.apache.lucene.index.IndexGate;
 import org.apache.lucene.index.IndexGate.FormatDetails;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
-import org.apache.lucene.index.Terms;
-import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.store.Directory;
 
 public class IndexInfo {
@@ -30,6 +25,8 @@ public class IndexInfo {
   private String version;
   private String dirImpl;
   private HashMap<String,FieldTermCount> termCounts = null;
+  private TermCounter termCounter = null;
+  private volatile int numThreads = Util.defaultThreads();
   
   public IndexInfo(IndexReader reader, String indexPath) throws Exception {
     this.reader = reader;
@@ -41,6 +38,7 @@ public class IndexInfo {
       this.version = Long.toString(((DirectoryReader)reader).getVersion());
     }
     this.indexPath = indexPath;
+    this.termCounter = new TermCounter(reader, numThreads);
     lastModified = "N/A";
     totalFileSize = dir == null ? -1 : Util.calcTotalFileSize(indexPath, dir);
     fieldNames = new ArrayList<String>();
@@ -53,27 +51,22 @@ public class IndexInfo {
     }
   }
 
-  private void countTerms() throws Exception {
-    termCounts = new HashMap<String,FieldTermCount>();
-    numTerms = 0;
-    Fields fields = MultiFields.getFields(reader);
-    Iterator<String> fe = fields.iterator();
-    String fld = null;
-    TermsEnum te = null;
-    while (fe.hasNext()) {
-      fld = fe.next();
-      FieldTermCount ftc = new FieldTermCount();
-      ftc.fieldname = fld;
-      Terms terms = fields.terms(fld);
-      if (terms != null) { // count terms
-        te = terms.iterator(te);
-        while (te.next() != null) {
-          ftc.termCount++;
-          numTerms++;
-        }
-      }
-      termCounts.put(fld, ftc);
+  private synchronized void countTerms() throws Exception {
+    if (termCounts != null) {
+      return;
     }
+    TermCounter counter = getTermCounter();
+    termCounts = new HashMap<String,FieldTermCount>(counter.count());
+    numTerms = (int)counter.getNumTerms();
+  }
+  
+  /**
+   * Get the term counting service for this index. Observers may be added
+   * to receive partial per-field counts before calling
+   * {@link #getFieldTermCounts()}, and counting may be cancelled through it.
+   */
+  public TermCounter getTermCounter() {
+    return termCounter;
   }
   
   /**
@@ -130,11 +123,20 @@ public class IndexInfo {
    */
   public TermStats[] getTopTerms() throws Exception {
     if (topTerms == null) {
-      topTerms = HighFreqTerms.getHighFreqTerms(reader, 50, null);
+      topTerms = HighFreqTerms.getHighFreqTerms(reader, 50, null, numThreads);
     }
     return topTerms;
   }
 
+  /**
+   * Set the number of threads used for scanning the terms. Takes effect
+   * with the next scan.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+    termCounter.setNumThreads(numThreads);
+  }
+
   /**
    * @return the fieldNames
    */
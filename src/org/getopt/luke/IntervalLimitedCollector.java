@@ -1,29 +1,21 @@
 package org.getopt.luke;
 
-import java.io.IOException;
-
-import org.apache.lucene.index.AtomicReaderContext;
-import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.TimeLimitingCollector;
-import org.apache.lucene.search.TopDocs;
-import org.apache.lucene.search.TopScoreDocCollector;
-import org.apache.lucene.search.TimeLimitingCollector.TimeExceededException;
+import org.apache.lucene.util.Counter;
 
+/**
+ * Collects hits until the given time in milliseconds has elapsed in a run,
+ * and keeps the top 1000 hits.
+ */
 public class IntervalLimitedCollector extends LimitedHitCollector {
   private long maxTime;
-  private long lastDoc = 0;
-  private TopScoreDocCollector tdc;
-  private TopDocs topDocs = null;
-  private TimeLimitingCollector thc;
-  
+  private Counter clock = TimeLimitingCollector.getGlobalCounter();
+  // start time of the run, shared by all parts when collecting concurrently
+  private long baseline = -1;
   
   public IntervalLimitedCollector(int maxTime, boolean outOfOrder, boolean shouldScore) {
+    super(1000, outOfOrder, shouldScore);
     this.maxTime = maxTime;
-    this.outOfOrder = outOfOrder;
-    this.shouldScore = shouldScore;
-    tdc = TopScoreDocCollector.create(1000, outOfOrder);
-    thc = new TimeLimitingCollector(tdc, TimeLimitingCollector.getGlobalCounter(), maxTime);
   }
 
   /* (non-Javadoc)
@@ -43,64 +35,25 @@ public class IntervalLimitedCollector extends LimitedHitCollector {
   }
 
   @Override
-  public int getDocId(int pos) {
-    if (topDocs == null) {
-      topDocs = tdc.topDocs();
-    }
-    return topDocs.scoreDocs[pos].doc;
-  }
-
-  /* (non-Javadoc)
-   * @see org.getopt.luke.AccessibleHitCollector#getScore(int)
-   */
-  @Override
-  public float getScore(int pos) {
-    if (topDocs == null) {
-      topDocs = tdc.topDocs();
-    }
-    return topDocs.scoreDocs[pos].score;
-  }
-
-  @Override
-  public int getTotalHits() {
-    return tdc.getTotalHits();
-  }
-
-  @Override
-  public void collect(int docNum) throws IOException {
-    try {
-      thc.collect(docNum);
-    } catch (TimeExceededException tee) {
-      // re-throw
-      throw new LimitedException(TYPE_TIME, maxTime, tee.getTimeElapsed(), tee.getLastDocCollected());
-    }
-  }
-
-  @Override
-  public boolean acceptsDocsOutOfOrder() {
-    return outOfOrder;
+  protected void startLimit() {
+    baseline = clock.get();
   }
 
   @Override
-  public void setNextReader(AtomicReaderContext context) throws IOException {
-    this.docBase = context.docBase;
-    thc.setNextReader(context);
+  protected boolean limitExceeded(boolean collecting) {
+    return clock.get() - baseline > maxTime;
   }
 
   @Override
-  public void setScorer(Scorer scorer) throws IOException {
-    this.scorer = scorer;
-    if (shouldScore) {
-      thc.setScorer(scorer);
-    } else {
-      thc.setScorer(NoScoringScorer.INSTANCE);
-    }
+  public boolean canSplit() {
+    return true;
   }
 
   @Override
-  public void reset() {
-    lastDoc = 0;
-    tdc = TopScoreDocCollector.create(1000, outOfOrder);
-    thc = new TimeLimitingCollector(tdc, TimeLimitingCollector.getGlobalCounter(), maxTime);
+  public AccessibleHitCollector newPartCollector() {
+    IntervalLimitedCollector part = new IntervalLimitedCollector((int)maxTime, outOfOrder, shouldScore);
+    part.baseline = baseline;
+    initPart(part);
+    return part;
   }
 }
@@ -0,0 +1,103 @@
+package org.getopt.luke;
+
+import java.util.List;
+
+import org.apache.lucene.index.FieldInfo;
+
+/**
+ * Exports one JSON object per line. Fields are listed in their stored order
+ * as <code>[name, value]</code> pairs, so that repeated fields are kept:
+ * <pre>
+ * {"id":12,"fields":[["title","Foo"],["price",12.5],["data",{"hex":"0a1b"}]]}
+ * </pre>
+ */
+public class JsonLinesFormat extends DocumentFormat {
+
+  @Override
+  public String getName() {
+    return "jsonl";
+  }
+
+  @Override
+  public Writer newWriter(List<String> fieldNames) {
+    return new Writer() {
+      private boolean first;
+
+      @Override
+      public void startDocument(ExportBuffer buf, int docNum) {
+        super.startDocument(buf, docNum);
+        buf.writeAscii("{\"id\":");
+        buf.writeDecimal(docNum);
+        buf.writeAscii(",\"fields\":[");
+        first = true;
+      }
+
+      private void startField(FieldInfo fi) {
+        if (!first) {
+          buf.write(',');
+        }
+        first = false;
+        buf.write('[');
+        buf.writeJsonString(fi.name);
+        buf.write(',');
+      }
+
+      @Override
+      public void endDocument() {
+        buf.writeAscii("]}\n");
+      }
+
+      @Override
+      public void stringField(FieldInfo fi, String value) {
+        startField(fi);
+        buf.writeJsonString(value);
+        buf.write(']');
+      }
+
+      @Override
+      public void binaryField(FieldInfo fi, byte[] value) {
+        startField(fi);
+        buf.writeAscii("{\"hex\":\"");
+        buf.writeHex(value, 0, value.length);
+        buf.writeAscii("\"}]");
+      }
+
+      @Override
+      public void intField(FieldInfo fi, int value) {
+        startField(fi);
+        buf.writeDecimal(value);
+        buf.write(']');
+      }
+
+      @Override
+      public void longField(FieldInfo fi, long value) {
+        startField(fi);
+        buf.writeDecimal(value);
+        buf.write(']');
+      }
+
+      @Override
+      public void floatField(FieldInfo fi, float value) {
+        startField(fi);
+        writeFloating(Float.toString(value), Float.isNaN(value) || Float.isInfinite(value));
+        buf.write(']');
+      }
+
+      @Override
+      public void doubleField(FieldInfo fi, double value) {
+        startField(fi);
+        writeFloating(Double.toString(value), Double.isNaN(value) || Double.isInfinite(value));
+        buf.write(']');
+      }
+
+      private void writeFloating(String value, boolean special) {
+        if (special) {
+          // not representable as JSON numbers
+          buf.writeJsonString(value);
+        } else {
+          buf.writeAscii(value);
+        }
+      }
+    };
+  }
+}
@@ -1,10 +1,285 @@
 package org.getopt.luke;
 
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.util.OpenBitSet;
+
+/**
+ * Collector that stops when a limit is reached. The limit is checked
+ * cooperatively: when it's reached the collector stops the current segment
+ * with {@link CollectionTerminatedException}, and {@link LimitedIndexSearcher}
+ * skips the remaining segments. The top hits collected so far stay
+ * available, together with the throughput of the run and the segment
+ * where it stopped.
+ * <p>Running the search again without {@link #reset()} continues from
+ * where the previous run stopped, if {@link #canContinue()} is true. When
+ * docs are collected in order this skips docs up to the last collected one,
+ * otherwise the docs collected in the current segment are tracked in a
+ * bitset, so that they can be skipped when the segment is resumed.
+ */
 public abstract class LimitedHitCollector extends AccessibleHitCollector {
   public static final int TYPE_TIME   = 0;
   public static final int TYPE_SIZE   = 1;
 
+  protected ScoreDocHeap hits;
+  // hits collected in all runs, and in the current run
+  protected int collected = 0;
+  protected int runCollected = 0;
+  protected int lastDoc = -1;
+  protected boolean limitReached = false;
+  private int segment = -1;
+  private int segmentsVisited = 0;
+  private int stoppedSegment = -1;
+  private boolean stoppedInSegment = false;
+  private boolean continuable = true;
+  private long runStart = 0;
+  private long elapsed = 0;
+  // where the next run starts: first segment, and last doc already collected
+  private int resumeSegment = 0;
+  private int resumeAfterDoc = -1;
+  // docs collected in the current segment, and in the resumed segment,
+  // when collecting out of order
+  private boolean trackDocs;
+  private OpenBitSet segmentDocs = null;
+  private OpenBitSet resumeDocs = null;
+
+  protected LimitedHitCollector(int topN, boolean outOfOrder, boolean shouldScore) {
+    this.outOfOrder = outOfOrder;
+    this.shouldScore = shouldScore;
+    hits = new ScoreDocHeap(topN);
+    trackDocs = outOfOrder;
+  }
+
   public abstract int limitType();
-  
+
   public abstract long limitSize();
+
+  /**
+   * Check the limit. Called at the start of each segment, and before each
+   * collected doc.
+   * @param collecting true if a doc is about to be collected, and should be
+   * counted towards the limit if it's not exceeded
+   * @return true if the limit has been reached
+   */
+  protected abstract boolean limitExceeded(boolean collecting);
+
+  /**
+   * Called when a run starts, to set up the limit.
+   */
+  protected abstract void startLimit();
+
+  /**
+   * Start a search run. Called by the searcher before the first segment.
+   */
+  public void startRun() {
+    runStart = System.nanoTime();
+    runCollected = 0;
+    segmentsVisited = 0;
+    limitReached = false;
+    stoppedSegment = -1;
+    stoppedInSegment = false;
+    startLimit();
+  }
+
+  /**
+   * End a search run. Called by the searcher after the last segment.
+   */
+  public void endRun() {
+    elapsed = System.nanoTime() - runStart;
+    if (limitReached && !stoppedInSegment && stoppedSegment == resumeSegment) {
+      // stopped before doing anything, keep the resume point
+      return;
+    }
+    resumeDocs = null;
+    resumeAfterDoc = -1;
+    if (limitReached) {
+      resumeSegment = stoppedSegment;
+      if (stoppedInSegment) {
+        if (trackDocs) {
+          resumeDocs = segmentDocs;
+          segmentDocs = null;
+        } else {
+          resumeAfterDoc = lastDoc;
+        }
+      }
+    } else {
+      resumeSegment = Integer.MAX_VALUE;
+    }
+  }
+
+  private void stop(boolean inSegment) {
+    limitReached = true;
+    stoppedSegment = segment;
+    stoppedInSegment = inSegment;
+    throw CollectionTerminatedException.INSTANCE;
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    this.docBase = context.docBase;
+    segment = context.ord;
+    if (segment < resumeSegment) {
+      // done in a previous run
+      throw CollectionTerminatedException.INSTANCE;
+    }
+    if (limitExceeded(false)) {
+      stop(false);
+    }
+    segmentsVisited++;
+    if (trackDocs) {
+      int maxDoc = context.reader().maxDoc();
+      if (segmentDocs == null) {
+        segmentDocs = new OpenBitSet(maxDoc);
+      } else {
+        segmentDocs.clear(0, segmentDocs.capacity());
+        segmentDocs.ensureCapacity(maxDoc);
+      }
+    }
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException {
+    this.scorer = shouldScore ? scorer : NoScoringScorer.INSTANCE;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    if (resumeDocs != null && segment == resumeSegment && resumeDocs.get(doc)) {
+      if (trackDocs) {
+        segmentDocs.set(doc);
+      }
+      return;
+    }
+    if (docBase + doc <= resumeAfterDoc) {
+      return;
+    }
+    if (limitExceeded(true)) {
+      stop(true);
+    }
+    if (trackDocs) {
+      segmentDocs.set(doc);
+    }
+    doc += docBase;
+    hits.add(doc, scorer.score());
+    collected++;
+    runCollected++;
+    lastDoc = doc;
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return outOfOrder;
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    return hits.getDoc(pos);
+  }
+
+  @Override
+  public float getScore(int pos) {
+    return hits.getScore(pos);
+  }
+
+  /**
+   * @return number of top hits available, at most the size of the heap
+   */
+  @Override
+  public int getTotalHits() {
+    return hits.size();
+  }
+
+  /** @return number of hits collected in all runs */
+  public int getCollectedHits() {
+    return collected;
+  }
+
+  /** @return true if the last run stopped at the limit */
+  public boolean isLimitReached() {
+    return limitReached;
+  }
+
+  /** @return number of segments searched in the last run */
+  public int getSegmentsVisited() {
+    return segmentsVisited;
+  }
+
+  /** @return ord of the segment where the last run stopped, or -1 */
+  public int getStoppedSegment() {
+    return stoppedSegment;
+  }
+
+  /** @return last collected doc id, or -1 */
+  public int getLastDoc() {
+    return lastDoc;
+  }
+
+  /** @return elapsed time of the last run, in nanoseconds */
+  public long getElapsedNanos() {
+    return elapsed;
+  }
+
+  /** @return docs collected per second in the last run */
+  public double getDocsPerSec() {
+    return elapsed == 0 ? 0 : runCollected * 1e9 / elapsed;
+  }
+
+  /**
+   * @return true if the last run stopped at the limit, and running the
+   * search again will continue exactly where it stopped. This is not
+   * possible when segments were collected concurrently, because each of
+   * them may have stopped at a different point.
+   */
+  public boolean canContinue() {
+    return limitReached && continuable;
+  }
+
+  /**
+   * Copy the settings and the resume point of this collector to a part.
+   */
+  protected void initPart(LimitedHitCollector part) {
+    part.resumeSegment = resumeSegment;
+    part.resumeAfterDoc = resumeAfterDoc;
+    part.resumeDocs = resumeDocs;
+    // parts can't be continued, so don't track their docs
+    part.trackDocs = false;
+  }
+
+  @Override
+  public void merge(List<AccessibleHitCollector> parts) throws IOException {
+    for (AccessibleHitCollector c : parts) {
+      LimitedHitCollector part = (LimitedHitCollector)c;
+      hits.addAll(part.hits);
+      collected += part.runCollected;
+      runCollected += part.runCollected;
+      lastDoc = Math.max(lastDoc, part.lastDoc);
+      segmentsVisited += part.segmentsVisited;
+      if (part.limitReached) {
+        limitReached = true;
+        stoppedSegment = stoppedSegment == -1 ? part.stoppedSegment : Math.min(stoppedSegment, part.stoppedSegment);
+      }
+    }
+    // several segments may have been stopped at different points
+    continuable = !limitReached;
+  }
+
+  @Override
+  public void reset() {
+    hits.clear();
+    collected = 0;
+    runCollected = 0;
+    lastDoc = -1;
+    limitReached = false;
+    segmentsVisited = 0;
+    stoppedSegment = -1;
+    stoppedInSegment = false;
+    continuable = true;
+    elapsed = 0;
+    resumeSegment = 0;
+    resumeAfterDoc = -1;
+    resumeDocs = null;
+  }
 }
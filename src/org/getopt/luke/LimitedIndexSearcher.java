@@ -0,0 +1,59 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Searcher that lets collectors stop collecting a segment early, by
+ * throwing {@link CollectionTerminatedException}. Segments are searched one
+ * by one, and a segment that the collector stops is abandoned.
+ * <p>A {@link LimitedHitCollector} can also stop the whole search: the
+ * remaining segments are skipped once its limit is reached.
+ */
+public class LimitedIndexSearcher extends IndexSearcher {
+
+  public LimitedIndexSearcher(IndexReader reader) {
+    super(reader);
+  }
+
+  public LimitedIndexSearcher(IndexReader reader, ExecutorService executor) {
+    super(reader, executor);
+  }
+
+  @Override
+  protected void search(List<AtomicReaderContext> leaves, Weight weight,
+      Collector collector) throws IOException {
+    if (!(collector instanceof LimitedHitCollector)) {
+      for (AtomicReaderContext leaf : leaves) {
+        searchSegment(leaf, weight, collector);
+      }
+      return;
+    }
+    LimitedHitCollector lc = (LimitedHitCollector)collector;
+    lc.startRun();
+    for (int i = 0; i < leaves.size() && !lc.isLimitReached(); i++) {
+      searchSegment(leaves.get(i), weight, lc);
+    }
+    lc.endRun();
+  }
+
+  /**
+   * Search one segment, until the collector stops it.
+   */
+  protected void searchSegment(AtomicReaderContext leaf, Weight weight,
+      Collector collector) throws IOException {
+    try {
+      super.search(Collections.singletonList(leaf), weight, collector);
+    } catch (CollectionTerminatedException e) {
+      // stopped by the collector
+    }
+  }
+}
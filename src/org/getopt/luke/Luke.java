@@ -35,6 +35,12 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPOutputStream;
 
 import javax.swing.JFileChooser;
@@ -141,6 +147,11 @@ public class Luke extends Thinlet implements ClipboardOwner {
   private Object lastST;
   private HashMap<String, Decoder> decoders = new HashMap<String, Decoder>();
   private Decoder defDecoder = new StringDecoder();
+  // decoded stored fields of search results, reset when decoders change
+  private StoredRowLoader rowLoader = null;
+  // documents shown in the Documents tab
+  private DocumentCache docCache = new DocumentCache(DocumentCache.DEFAULT_SIZE,
+      DocumentCache.DEFAULT_PREFETCH);
   
   /** Default salmon theme. */
   public static final int THEME_DEFAULT     = 0;
@@ -200,6 +211,9 @@ public class Luke extends Thinlet implements ClipboardOwner {
     statmsg = find("statmsg");
     slowstatus = find("slowstat");
     slowmsg = find(slowstatus, "slowmsg");
+    Object nThreads = find("nThreads");
+    setInteger(nThreads, "value", Util.defaultThreads());
+    setString(nThreads, "text", String.valueOf(Util.defaultThreads()));
     // populate analyzers
     try {
       Class[] an = ClassFinder.getInstantiableSubclasses(Analyzer.class);
@@ -661,6 +675,8 @@ public class Luke extends Thinlet implements ClipboardOwner {
           dirClass = MMapDirectory.class.getName();
         } else if (name.equals("niofs")) {
           dirClass = NIOFSDirectory.class.getName();
+        } else if (name.equals("preload")) {
+          dirClass = PreloadDirectory.class.getName();
         }
       }
     }
@@ -673,6 +689,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     keepCommits = getBoolean(find(dialog, "cbKeepCommits"), "selected");
     slowAccess = getBoolean(find(dialog, "cbSlowIO"), "selected");
     decoders.clear();
+    rowLoader = null;
     currentCommit = null;
     Prefs.addToMruList(pName);
     syncMRU(path);
@@ -697,7 +714,17 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
   
+  /**
+   * Abort a term count still running for the previously opened index.
+   */
+  private void cancelTermCount() {
+    if (idxInfo != null) {
+      idxInfo.getTermCounter().cancel();
+    }
+  }
+  
   public void actionClose() {
+    cancelTermCount();
     if (ir != null) {
       try {
         if (is != null) is = null;
@@ -713,6 +740,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     ar = null;
     dir = null;
     is = null;
+    docCache.clear();
     removeAll();
     addComponent(this, "/xml/luke.xml", null, null);
     initPlugins();
@@ -871,6 +899,8 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
     ArrayList<Directory> dirs = new ArrayList<Directory>();
     Throwable lastException = null;
+    long start = System.currentTimeMillis();
+    long heapBefore = usedHeap();
     try {
       Directory d = openDirectory(dirImpl, pName, false);
       if (IndexWriter.isLocked(d)) {
@@ -897,36 +927,28 @@ public class Luke extends Thinlet implements ClipboardOwner {
       }
       if (!existsSingle) { // try multi
         File[] files = baseFileDir.listFiles();
+        List<File> subDirs = new ArrayList<File>();
         for (File f : files) {
-          if (f.isFile()) {
-            continue;
+          if (!f.isFile()) {
+            subDirs.add(f);
           }
-          Directory d1 = openDirectory(dirImpl, f.toString(), false);
-          if (IndexWriter.isLocked(d1)) {
-            if (!ro) {
-              if (force) {
-                IndexWriter.unlock(d1);
-              } else {
-                errorMsg("Index is locked. Try 'Force unlock' when opening.");
-                d1.close();
-                d1 = null;
-                return;
-              }
-            }
+        }
+        boolean locked = false;
+        for (SubIndex sub : openSubIndexes(subDirs, dirImpl, ro, force)) {
+          if (sub.error != null) {
+            lastException = sub.error;
           }
-          existsSingle = false;
-          try {
-            new SegmentInfos().read(d1);
-            existsSingle = true;
-          } catch (Throwable e) {
-            lastException = e;
-            e.printStackTrace();
+          locked |= sub.locked;
+          if (sub.dir != null) {
+            dirs.add(sub.dir);
           }
-          if (!existsSingle) {
+        }
+        if (locked) {
+          errorMsg("Index is locked. Try 'Force unlock' when opening.");
+          for (Directory d1 : dirs) {
             d1.close();
-            continue;
           }
-          dirs.add(d1);
+          return;
         }
       } else {
         dirs.add(d);
@@ -959,28 +981,29 @@ public class Luke extends Thinlet implements ClipboardOwner {
       } else {
         policy = new KeepLastIndexDeletionPolicy();
       }
-      ArrayList<DirectoryReader> readers = new ArrayList<DirectoryReader>();
-      for (Directory dd : dirs) {
-        DirectoryReader reader;
-        if (tiiDivisor > 1) {
-          reader = DirectoryReader.open(dd, tiiDivisor);
-        } else {
-          reader = DirectoryReader.open(dd);
-        }
-        readers.add(reader);
-      }
+      List<DirectoryReader> readers = openReaders(dirs, tiiDivisor);
       if (readers.size() == 1) {
         ir = readers.get(0);
         dir = ((DirectoryReader)ir).directory();
       } else {
         ir = new MultiReader((IndexReader[])readers.toArray(new IndexReader[readers.size()]));
       }
-      is = new IndexSearcher(ir);
+      is = new LimitedIndexSearcher(ir);
       // XXX 
       slowAccess = false;
+      long time = System.currentTimeMillis() - start;
+      long heap = usedHeap() - heapBefore;
+      long mapped = 0;
+      for (Directory dd : dirs) {
+        if (dd instanceof MMapDirectory) {
+          mapped += Util.calcTotalFileSize(null, dd);
+        }
+      }
       initOverview();
       initPlugins();
-      showStatus("Index successfully open.");
+      showStatus("Index successfully open in " + time + " ms (" + dirs.get(0).getClass().getSimpleName() +
+          ", heap +" + Util.normalizeSize(Math.max(0, heap)) + Util.normalizeUnit(Math.max(0, heap)) +
+          (mapped > 0 ? ", mapped " + Util.normalizeSize(mapped) + Util.normalizeUnit(mapped) : "") + ").");
     } catch (Exception e) {
       e.printStackTrace();
       errorMsg(e.getMessage());
@@ -988,6 +1011,131 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
 
+  /** Result of opening and validating one sub-directory of a multi-index. */
+  private static class SubIndex {
+    Directory dir;
+    Throwable error;
+    boolean locked;
+  }
+  
+  /**
+   * Open, lock-check and validate sub-directories concurrently.
+   * @return results in the order of sub-directories. Directories that
+   * don't contain a valid index, or are locked, are closed.
+   */
+  private List<SubIndex> openSubIndexes(final List<File> subDirs, final String dirImpl,
+      final boolean ro, final boolean force) throws Exception {
+    final AtomicInteger done = new AtomicInteger();
+    List<Callable<SubIndex>> tasks = new ArrayList<Callable<SubIndex>>();
+    for (final File f : subDirs) {
+      tasks.add(new Callable<SubIndex>() {
+        public SubIndex call() {
+          SubIndex sub = new SubIndex();
+          try {
+            Directory d1 = openDirectory(dirImpl, f.toString(), false);
+            if (d1 == null) {
+              throw new Exception("Can't open directory " + f);
+            }
+            if (!ro && IndexWriter.isLocked(d1)) {
+              if (force) {
+                IndexWriter.unlock(d1);
+              } else {
+                sub.locked = true;
+                d1.close();
+                return sub;
+              }
+            }
+            try {
+              new SegmentInfos().read(d1);
+              sub.dir = d1;
+            } catch (Throwable e) {
+              d1.close();
+              throw e;
+            }
+          } catch (Throwable e) {
+            e.printStackTrace();
+            sub.error = e;
+          }
+          showStatus("Checked " + done.incrementAndGet() + " of " + subDirs.size() + " sub-indexes" +
+              (sub.error != null ? ", no valid index in " + f.getName() : "") + " ...");
+          return sub;
+        }
+      });
+    }
+    return invokeAll("OpenIndex", tasks);
+  }
+  
+  /**
+   * Open readers for all directories concurrently. If any of them fails,
+   * the readers already open are closed.
+   */
+  private List<DirectoryReader> openReaders(final List<Directory> dirs, final int tiiDivisor)
+      throws Exception {
+    final AtomicInteger done = new AtomicInteger();
+    List<Callable<DirectoryReader>> tasks = new ArrayList<Callable<DirectoryReader>>();
+    for (final Directory dd : dirs) {
+      tasks.add(new Callable<DirectoryReader>() {
+        public DirectoryReader call() throws Exception {
+          DirectoryReader reader;
+          if (tiiDivisor > 1) {
+            reader = DirectoryReader.open(dd, tiiDivisor);
+          } else {
+            reader = DirectoryReader.open(dd);
+          }
+          if (dirs.size() > 1) {
+            showStatus("Opened " + done.incrementAndGet() + " of " + dirs.size() + " readers ...");
+          }
+          return reader;
+        }
+      });
+    }
+    ExecutorService pool = Util.newExecutor("OpenIndex", Math.min(Util.defaultThreads(), tasks.size()));
+    List<DirectoryReader> readers = new ArrayList<DirectoryReader>();
+    Exception error = null;
+    try {
+      for (Future<DirectoryReader> f : pool.invokeAll(tasks)) {
+        try {
+          readers.add(f.get());
+        } catch (ExecutionException ee) {
+          if (error == null) {
+            error = ee.getCause() instanceof Exception ? (Exception)ee.getCause() : ee;
+          }
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    if (error != null) {
+      for (DirectoryReader r : readers) {
+        r.close();
+      }
+      throw error;
+    }
+    return readers;
+  }
+  
+  /** Run tasks on a bounded pool, and return their results in order. */
+  private static <T> List<T> invokeAll(String name, List<Callable<T>> tasks) throws Exception {
+    List<T> res = new ArrayList<T>(tasks.size());
+    if (tasks.isEmpty()) {
+      return res;
+    }
+    ExecutorService pool = Util.newExecutor(name, Math.min(Util.defaultThreads(), tasks.size()));
+    try {
+      for (Future<T> f : pool.invokeAll(tasks)) {
+        res.add(f.get());
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return res;
+  }
+  
+  private static long usedHeap() {
+    Runtime rt = Runtime.getRuntime();
+    return rt.totalMemory() - rt.freeMemory();
+  }
+
   /**
    * Open a single directory.
    * @param dirImpl fully-qualified class name of Directory implementation,
@@ -1006,6 +1154,14 @@ public class Luke extends Thinlet implements ClipboardOwner {
     Directory res = null;
     if (dirImpl == null || dirImpl.equals(Directory.class.getName()) || dirImpl.equals(FSDirectory.class.getName())) {
       return FSDirectory.open(f);
+    } else if (dirImpl.equals(MMapDirectory.class.getName())) {
+      MMapDirectory mmap = new MMapDirectory(f);
+      mmap.setUseUnmap(MMapDirectory.UNMAP_SUPPORTED);
+      return mmap;
+    } else if (dirImpl.equals(NIOFSDirectory.class.getName())) {
+      return new NIOFSDirectory(f);
+    } else if (dirImpl.equals(PreloadDirectory.class.getName())) {
+      return new PreloadDirectory(f);
     }
     try {
       Class implClass = Class.forName(dirImpl);
@@ -1125,6 +1281,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
         return;
       }      
       // we need IndexReader from now on
+      cancelTermCount();
       idxInfo = new IndexInfo(ir, pName);
       Object iDocs = find(pOver, "iDocs");
       String numdocs = String.valueOf(ir.numDocs());
@@ -1152,21 +1309,53 @@ public class Luke extends Thinlet implements ClipboardOwner {
       TreeSet<String> fields = new TreeSet<String>(fn);
       idxFields = (String[])fields.toArray(new String[fields.size()]);
       setString(iFields, "text", String.valueOf(idxFields.length));
+      rowLoader = null;
+      if (!slowAccess) {
+        // use numeric decoders for trie-encoded fields, unless set explicitly
+        FieldTypeProfile profile = FieldTypeProfile.get(ir);
+        for (String f : idxFields) {
+          if (!decoders.containsKey(f)) {
+            Decoder dec = profile.getDefaultDecoder(f);
+            if (dec != null) {
+              decoders.put(f, dec);
+            }
+          }
+        }
+      }
       final Object iTerms = find(pOver, "iTerms");
       if (!slowAccess) {
+        termCounts = null;
+        initFieldList(fList, fCombo, defFld);
+        final IndexInfo info = idxInfo;
+        final TermCounter counter = info.getTermCounter();
+        // show partial counts as they arrive
+        counter.addObserver(new Observer() {
+          public void update(Observable o, Object arg) {
+            if (arg == null || counter.isCancelled()) return;
+            FieldTermCount ftc = (FieldTermCount)arg;
+            setString(iTerms, "text", counter.getNumTerms() + " ...");
+            Object[] rows = getItems(fList);
+            for (Object row : rows) {
+              if (ftc.fieldname.equals(getProperty(row, "fName"))) {
+                setString(getItem(row, 1), "text",
+                    NumberFormat.getIntegerInstance().format(ftc.termCount));
+                break;
+              }
+            }
+          }
+        });
         Thread t = new Thread() {
           public void run() {
-            Object r = create("row");
-            Object cell = create("cell");
-            add(r, cell);
-            add(fList, r);
-            setBoolean(cell, "enabled", false);
-            setString(cell, "text", "..wait..");
             try {
-              numTerms = idxInfo.getNumTerms();
-              termCounts = idxInfo.getFieldTermCounts();
+              int cnt = info.getNumTerms();
+              Map<String,FieldTermCount> counts = info.getFieldTermCounts();
+              if (info != idxInfo) return; // index was reopened
+              numTerms = cnt;
+              termCounts = counts;
               setString(iTerms, "text", String.valueOf(numTerms));
               initFieldList(fList, fCombo, defFld);
+            } catch (CancellationException e) {
+              // another index was opened
             } catch (Exception e) {
               e.printStackTrace();
               numTerms = -1;
@@ -1301,6 +1490,24 @@ public class Luke extends Thinlet implements ClipboardOwner {
       putProperty(choice, "fName", s);
     }
     setString(find("defFld"), "text", idxFields[0]);
+    // fields with DocValues that results can be sorted by
+    Object sortFld = find("sortFld");
+    removeAll(sortFld);
+    setString(sortFld, "text", "");
+    for (String s : idxFields) {
+      FieldInfo fi = infos.fieldInfo(s);
+      if (fi != null && (fi.getDocValuesType() == FieldInfo.DocValuesType.NUMERIC ||
+          fi.getDocValuesType() == FieldInfo.DocValuesType.SORTED)) {
+        Object choice = create("choice");
+        add(sortFld, choice);
+        setString(choice, "text", s + " (" + fi.getDocValuesType() + ")");
+        putProperty(choice, "fName", s);
+      }
+    }
+    if (getCount(sortFld) > 0) {
+      setInteger(sortFld, "selected", 0);
+      setString(sortFld, "text", getString(getItem(sortFld, 0), "text"));
+    }
     // Remove columns
     Object header = get(find("sTable"), "header");
     removeAll(header);
@@ -1717,6 +1924,22 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
 
+  /**
+   * Change the number of threads used for parallel operations.
+   * @param spin Thinlet spinbox with the number of threads
+   */
+  public void actionSetThreads(Object spin) {
+    try {
+      int n = Integer.parseInt(getString(spin, "text"));
+      if (n > 0) {
+        Prefs.setProperty(Prefs.P_THREADS, String.valueOf(n));
+        if (idxInfo != null) {
+          idxInfo.setNumThreads(n);
+        }
+      }
+    } catch (Exception e) {}
+  }
+
   /**
    * Update the list of top terms.
    * @param nTerms Thinlet widget containing the number of top terms to show
@@ -1746,7 +1969,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     SlowThread st = new SlowThread(this) {
       public void execute() {
         try {
-          TermStats[] topTerms = HighFreqTerms.getHighFreqTerms(ir, ndoc, fflds);
+          TermStats[] topTerms = HighFreqTerms.getHighFreqTerms(ir, ndoc, fflds, Util.defaultThreads());
           Object table = find("tTable");
           removeAll(table);
           if (topTerms == null || topTerms.length == 0) {
@@ -1934,7 +2157,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
         dir = null;
       }
       ir = reader;
-      is = new IndexSearcher(ir);
+      is = new LimitedIndexSearcher(ir);
       pName = indexName;
       initOverview();
       initPlugins();
@@ -1965,23 +2188,94 @@ public class Luke extends Thinlet implements ClipboardOwner {
     Object dialog = addComponent(null, "/xml/checkindex.xml", null, null);    
     Object dirName = find(dialog, "dirName");
     setString(dirName, "text", pName);
+    Object threads = find(dialog, "threads");
+    setString(threads, "text", String.valueOf(Util.defaultThreads()));
+    setInteger(threads, "value", Util.defaultThreads());
+    Object segTable = find(dialog, "segTable");
+    try {
+      SegmentInfos sis = new SegmentInfos();
+      sis.read(dir);
+      for (SegmentInfoPerCommit info : sis) {
+        Object row = create("row");
+        putProperty(row, "segment", info.info.name);
+        String[] cells = new String[]{info.info.name, String.valueOf(info.info.getDocCount()),
+            "", "", "", "", "", ""};
+        for (String c : cells) {
+          Object cell = create("cell");
+          setString(cell, "text", c);
+          add(row, cell);
+        }
+        add(segTable, row);
+      }
+    } catch (Exception e) {
+      // the check reports why the segments can't be read
+      e.printStackTrace();
+    }
     add(dialog);
   }
   
+  /**
+   * Check the index, or the segments selected in the dialog. Segments are
+   * checked concurrently, and their results shown as they finish. If the
+   * list of segments can't be read the whole index is checked at once, so
+   * that CheckIndex reports the problem.
+   */
   public void checkIndex(final Object dialog) {
+    final Object segTable = find(dialog, "segTable");
+    final Set<String> selected = new HashSet<String>();
+    for (Object row : getSelectedItems(segTable)) {
+      selected.add((String)getProperty(row, "segment"));
+    }
+    final int numThreads = getInteger(find(dialog, "threads"), "value");
     Thread t = new Thread() {
       public void run() {
         Object panel = find(dialog, "msg");
         Object fixPanel = find(dialog, "fixPanel");
-        PanelPrintWriter ppw = new PanelPrintWriter(Luke.this, panel);
-        Object ckRes = find(dialog, "ckRes");
+        final PanelPrintWriter ppw = new PanelPrintWriter(Luke.this, panel);
+        final Object ckRes = find(dialog, "ckRes");
         CheckIndex.Status status = null;
         CheckIndex ci = new CheckIndex(dir);
         ci.setInfoStream(ppw);
         putProperty(dialog, "checkIndex", ci);
         putProperty(dialog, "ppw", ppw);
+        putProperty(dialog, "checkStatus", null);
+        setBoolean(fixPanel, "visible", false);
         try {
-          status = ci.checkIndex();
+          ParallelCheckIndex pci = null;
+          try {
+            pci = new ParallelCheckIndex(dir, numThreads);
+          } catch (Exception e) {
+            ppw.println("Can't read segments (" + e + "), checking the whole index.");
+          }
+          if (pci == null) {
+            status = ci.checkIndex();
+          } else {
+            final Map<String,Object> rows = new HashMap<String,Object>();
+            for (Object row : getItems(segTable)) {
+              rows.put((String)getProperty(row, "segment"), row);
+            }
+            final int total = selected.isEmpty() ? pci.getSegmentInfos().size() : selected.size();
+            ppw.println("Checking " + total + " of " + pci.getSegmentInfos().size() +
+                " segments in " + pci.getSegmentInfos().getSegmentsFileName() +
+                ", using " + numThreads + " thread(s)");
+            status = pci.check(selected.isEmpty() ? null : selected, new ParallelCheckIndex.Listener() {
+              int done = 0;
+              public void segmentChecked(ParallelCheckIndex.SegmentResult res) {
+                done++;
+                ppw.println("Segment " + res.name + ": " + (res.isOk() ? "OK" : "FAILED") +
+                    " in " + Util.formatNanos(res.elapsed));
+                if (res.output.length() > 0) {
+                  ppw.println(res.output);
+                }
+                Object row = rows.get(res.name);
+                if (row != null) {
+                  setCheckRow(row, res);
+                  repaint(segTable);
+                }
+                setString(ckRes, "text", "Checked " + done + " of " + total + " segments...");
+              }
+            });
+          }
         } catch (Exception e) {
           ppw.println("ERROR: caught exception, giving up.\n\n");
           e.printStackTrace();
@@ -1995,9 +2289,6 @@ public class Luke extends Thinlet implements ClipboardOwner {
           } else if (status.toolOutOfDate) {
             statMsg = "ERROR: Can't check - tool out-of-date";
           } else {
-            // show fixPanel
-            setBoolean(fixPanel, "visible", true);
-            repaint(dialog);
             statMsg = "BAD: ";
             if (status.cantOpenSegments) {
               statMsg += "cantOpenSegments ";
@@ -2014,6 +2305,16 @@ public class Luke extends Thinlet implements ClipboardOwner {
             if (status.totLoseDocCount > 0) {
               statMsg += "lostDocCount=" + status.totLoseDocCount + " ";
             }
+            if (status.partial) {
+              statMsg += "- check all segments to fix the index";
+            } else {
+              // show fixPanel
+              setBoolean(fixPanel, "visible", true);
+              repaint(dialog);
+            }
+          }
+          if (status.partial) {
+            statMsg += " (" + status.segmentInfos.size() + " of " + status.numSegments + " segments checked)";
           }
           setString(ckRes, "text", statMsg);
         }
@@ -2021,6 +2322,33 @@ public class Luke extends Thinlet implements ClipboardOwner {
     };
     t.start();
   }
+
+  private void setCheckRow(Object row, ParallelCheckIndex.SegmentResult res) {
+    CheckIndex.Status.SegmentInfoStatus ssi = res.getSegmentStatus();
+    String[] texts = new String[6];
+    texts[0] = res.isOk() ? "OK" : "FAILED";
+    if (ssi != null) {
+      texts[1] = ssi.termIndexStatus == null ? "-" : (ssi.termIndexStatus.error != null ?
+          "ERROR: " + ssi.termIndexStatus.error.getMessage() : ssi.termIndexStatus.termCount + " terms");
+      texts[2] = ssi.storedFieldStatus == null ? "-" : (ssi.storedFieldStatus.error != null ?
+          "ERROR: " + ssi.storedFieldStatus.error.getMessage() : ssi.storedFieldStatus.totFields + " fields");
+      texts[3] = ssi.termVectorStatus == null ? "-" : (ssi.termVectorStatus.error != null ?
+          "ERROR: " + ssi.termVectorStatus.error.getMessage() : ssi.termVectorStatus.totVectors + " vectors");
+      texts[4] = ssi.docValuesStatus == null ? "-" : (ssi.docValuesStatus.error != null ?
+          "ERROR: " + ssi.docValuesStatus.error.getMessage() : ssi.docValuesStatus.totalValueFields + " fields");
+      if (ssi.termIndexStatus == null && !ssi.openReaderPassed) {
+        texts[1] = "can't open";
+      }
+    } else {
+      texts[1] = res.error != null ? "ERROR: " + res.error.getMessage() : "-";
+      texts[2] = texts[3] = texts[4] = "-";
+    }
+    texts[5] = Util.formatNanos(res.elapsed);
+    Object[] cells = getItems(row);
+    for (int i = 0; i < texts.length; i++) {
+      setString(cells[i + 2], "text", texts[i]);
+    }
+  }
   
   public void fixIndex(final Object dialog) {
     Thread t = new Thread() {
@@ -2310,6 +2638,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
   public void _runExport(final File out, final boolean gzip, Observer obs,
       final Object dialog, final Ranges ranges) throws IOException {
     exporter = new XMLExporter(ir, pName, decoders);
+    exporter.setNumThreads(Util.defaultThreads());
     exporter.addObserver(obs);
     Thread t = new Thread() {
       public void run() {
@@ -2317,7 +2646,9 @@ public class Luke extends Thinlet implements ClipboardOwner {
         try {
           os = new FileOutputStream(out);
           if (gzip) {
-            os = new GZIPOutputStream(os);
+            os = new GZIPOutputStream(os, XMLExporter.GZIP_BUFFER_SIZE);
+          } else {
+            os = new BufferedOutputStream(os);
           }
           exporter.export(os, true, true, true, "index", ranges);
           exporter = null;
@@ -2459,7 +2790,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
         }
         try {
           actionReopen();
-          is = new IndexSearcher(ir);
+          is = new LimitedIndexSearcher(ir);
           // add dialog again
           add(dialog);
         } catch (Exception e) {
@@ -2503,11 +2834,14 @@ public class Luke extends Thinlet implements ClipboardOwner {
       setString(docNum, "text", String.valueOf(iNum));
       org.apache.lucene.util.Bits live = ar.getLiveDocs();
       if (live == null || live.get(iNum)) {
+        final int incr1 = incr;
         SlowThread st = new SlowThread(this) {
           public void execute() {
             try {
-              doc = ir.document(iNum);
-              _showDocFields(iNum, doc);
+              DocumentCache.CachedDoc e = docCache.get(ir, iNum);
+              doc = e.doc;
+              _showDocFields(iNum, doc, e.vectorFields);
+              docCache.prefetch(ir, iNum, incr1);
             } catch (Exception e) {
               e.printStackTrace();
               showStatus(e.getMessage());
@@ -2521,7 +2855,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
         }
       } else {
         showStatus("Deleted document - not available.");
-        _showDocFields(iNum, null);
+        _showDocFields(iNum, null, null);
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -2877,7 +3211,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
   
-  private void _showDocFields(int docid, Document doc) {
+  private void _showDocFields(int docid, Document doc, Set<String> vectorFields) {
     Object table = find("docTable");
     Object srchOpts = find("srchOptTabs");
     Similarity sim = createSimilarity(srchOpts);
@@ -2896,18 +3230,20 @@ public class Luke extends Thinlet implements ClipboardOwner {
     for (int i = 0; i < idxFields.length; i++) {
       IndexableField[] fields = doc.getFields(idxFields[i]);
       if (fields.length == 0) {
-        addFieldRow(table, idxFields[i], null, docid, null);
+        addFieldRow(table, idxFields[i], null, docid, null, vectorFields.contains(idxFields[i]));
         continue;
       }
       for (int j = 0; j < fields.length; j++) {
-        addFieldRow(table, idxFields[i], fields[j], docid, (TFIDFSimilarity)sim);
+        addFieldRow(table, idxFields[i], fields[j], docid, (TFIDFSimilarity)sim,
+            vectorFields.contains(idxFields[i]));
       }
     }
     doLayout(table);
   }
   
   Font courier = null;
-  private void addFieldRow(Object table, String fName, IndexableField ixf, int docid, TFIDFSimilarity sim) {
+  private void addFieldRow(Object table, String fName, IndexableField ixf, int docid,
+      TFIDFSimilarity sim, boolean hasVectors) {
     Object row = create("row");
     add(table, row);
     putProperty(row, "field", ixf);
@@ -2918,12 +3254,6 @@ public class Luke extends Thinlet implements ClipboardOwner {
     cell = create("cell");
     Field f = (Field)ixf;
     String flags = Util.fieldFlags(f, infos.fieldInfo(fName));
-    boolean hasVectors = false;
-    try {
-      hasVectors = ar.getTermVector(docid, fName) != null;
-    } catch (Exception e) {
-      // ignore
-    }
     // consider skipping this field altogether?
     if (ixf == null && !hasVectors) {
       setBoolean(cell, "enabled", false);
@@ -3913,21 +4243,20 @@ public class Luke extends Thinlet implements ClipboardOwner {
     Object qFieldParsed = find("qFieldParsed");
     Object ckScoreRes = find("ckScoreRes");
     Object ckOrderRes = find("ckOrderRes");
-    Object cntRepeat = find("cntRepeat");
     final boolean scoreRes = getBoolean(ckScoreRes, "selected");
     final boolean orderRes = getBoolean(ckOrderRes, "selected");
-    final int repeat = Integer.parseInt(getString(cntRepeat, "text"));
+    final QueryBenchmark bench = createBenchmark();
     final Query q = new TermQuery(t);
     setString(qFieldParsed, "text", q.toString());
     SlowThread st = new SlowThread(this) {
       public void execute() {
         IndexSearcher is = null;
         try {
-          is = new IndexSearcher(ir);
+          is = new LimitedIndexSearcher(ir);
           Object sTable = find("sTable");
           removeAll(sTable);
           AllHitsCollector ahc = new AllHitsCollector(orderRes, scoreRes);
-          _search(q, is, ahc, sTable, repeat);
+          _search(q, is, ahc, sTable, bench);
         } catch (Exception e) {
           e.printStackTrace();
           errorMsg(e.getMessage());
@@ -4127,6 +4456,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
     Object limCount = find(srchOpts, "limCount");
     Object ckScoreRes = find(srchOpts, "ckScoreRes");
     Object ckOrderRes = find(srchOpts, "ckOrderRes");
+    Object ckSortRes = find(srchOpts, "ckSortRes");
     boolean scoreRes = getBoolean(ckScoreRes, "selected");
     boolean orderRes = getBoolean(ckOrderRes, "selected");
     Collector hc = null;
@@ -4134,6 +4464,15 @@ public class Luke extends Thinlet implements ClipboardOwner {
       return new AccessibleTopHitCollector(1000, orderRes, scoreRes);
     } else if (getBoolean(ckAllRes, "selected")) {
       return new AllHitsCollector(orderRes, scoreRes);
+    } else if (getBoolean(ckSortRes, "selected")) {
+      Object choice = getSelectedItem(find(srchOpts, "sortFld"));
+      if (choice == null) {
+        throw new Exception("No DocValues field to sort by");
+      }
+      String fName = (String)getProperty(choice, "fName");
+      boolean reverse = getBoolean(find(srchOpts, "ckSortRev"), "selected");
+      return new SortedHitCollector(fName, infos.fieldInfo(fName).getDocValuesType(),
+          reverse, 1000, orderRes, scoreRes);
     } else if (getBoolean(ckLimRes, "selected")) {
       // figure out the type
       if (getBoolean(ckLimCount, "selected")) {
@@ -4169,7 +4508,126 @@ public class Luke extends Thinlet implements ClipboardOwner {
     Object tree = find(dialog, "qTree");
     _explainStructure(tree, q);
   }
-  
+
+  /**
+   * Run the query with profiling, and show the time spent in each clause
+   * and segment in the Profile tab.
+   * @param qTabs Thinlet tabbed pane with the query details
+   */
+  public void profileQuery(final Object qTabs) {
+    if (ir == null) {
+      showStatus(MSG_NOINDEX);
+      return;
+    }
+    String queryS = getString(find("qField"), "text");
+    if (queryS.trim().equals("")) {
+      showStatus("Empty query");
+      return;
+    }
+    Object srchOpts = find("srchOptTabs");
+    final AccessibleHitCollector collector;
+    final IndexSearcher searcher;
+    final Query q;
+    try {
+      AccessibleHitCollector hc = createCollector(srchOpts);
+      collector = hc != null ? hc : new AccessibleTopHitCollector(1000, true, true);
+      q = createQuery(queryS);
+      if (q == null) {
+        return;
+      }
+      searcher = getSearcher(getBoolean(find(srchOpts, "ckConcurrent"), "selected"));
+      searcher.setSimilarity(createSimilarity(srchOpts));
+      showParsed();
+    } catch (Throwable t) {
+      t.printStackTrace();
+      errorMsg(t.getMessage());
+      return;
+    }
+    final Object tree = find("qProfile");
+    removeAll(tree);
+    SlowThread t = new SlowThread(this) {
+      public void execute() {
+        QueryProfiler profiler = new QueryProfiler();
+        long elapsed;
+        try {
+          Query pq = profiler.wrap(q);
+          long start = System.nanoTime();
+          searcher.search(pq, collector);
+          elapsed = System.nanoTime() - start;
+        } catch (Throwable th) {
+          th.printStackTrace();
+          errorMsg("ERROR profiling: " + th.toString());
+          return;
+        }
+        addProfileNode(tree, profiler.getRoot());
+        setInteger(qTabs, "selected", 2);
+        showStatus("Profiled in " + Util.formatNanos(elapsed) + ", " +
+            collector.getTotalHits() + " hits");
+      }
+    };
+    if (slowAccess) {
+      t.start();
+    } else {
+      t.execute();
+    }
+  }
+
+  private void addProfileNode(Object parent, QueryProfiler.Node node) {
+    Query q = node.getRewritten();
+    String qs = q.toString();
+    if (qs.length() > 80) {
+      qs = qs.substring(0, 80) + "...";
+    }
+    QueryProfiler.Stats total = node.getTotal();
+    Object n = create("node");
+    setFont(n, getFont().deriveFont(Font.BOLD));
+    setString(n, "text", q.getClass().getSimpleName() + ": " + qs + "  -  " +
+        Util.formatNanos(total.getNanos()) + " (self " + Util.formatNanos(node.getSelfNanos()) + ")");
+    add(parent, n);
+    Object n1;
+    if (node.getNote() != null) {
+      n1 = create("node");
+      setString(n1, "text", node.getNote());
+      add(n, n1);
+    }
+    n1 = create("node");
+    setString(n1, "text", "All segments: " + profileStats(total));
+    add(n, n1);
+    List<QueryProfiler.Stats> segments = node.getSegments();
+    if (segments.size() > 1) {
+      Object segs = create("node");
+      setString(segs, "text", "Segments (" + segments.size() + ")");
+      setBoolean(segs, "expanded", false);
+      add(n, segs);
+      for (QueryProfiler.Stats s : segments) {
+        n1 = create("node");
+        setString(n1, "text", "Segment " + s.getSegment() + ": " + profileStats(s));
+        add(segs, n1);
+      }
+    }
+    for (QueryProfiler.Node child : node.getChildren()) {
+      addProfileNode(n, child);
+    }
+  }
+
+  private String profileStats(QueryProfiler.Stats s) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(s.getScorers() + " scorer(s) in " + Util.formatNanos(s.getScorerNanos()));
+    if (s.getNextDocCalls() > 0) {
+      sb.append(", nextDoc " + s.getNextDocCalls() + "x " + Util.formatNanos(s.getNextDocNanos()));
+    }
+    if (s.getAdvanceCalls() > 0) {
+      sb.append(", advance " + s.getAdvanceCalls() + "x " + Util.formatNanos(s.getAdvanceNanos()));
+    }
+    if (s.getScoreCalls() > 0) {
+      sb.append(", score " + s.getScoreCalls() + "x " + Util.formatNanos(s.getScoreNanos()));
+    }
+    if (s.getBulkCalls() > 0) {
+      sb.append(", bulk scoring " + s.getBulkCalls() + "x " + Util.formatNanos(s.getBulkNanos()));
+    }
+    return sb.toString();
+  }
+
   private void _explainStructure(Object parent, Query q) {
     String clazz = q.getClass().getName();
     if (clazz.startsWith("org.apache.lucene.")) {
@@ -4517,6 +4975,103 @@ public class Luke extends Thinlet implements ClipboardOwner {
     
   }
   
+  /**
+   * Replay queries from a file, one per line, using the current query
+   * parser, analyzer and similarity settings, and show the report.
+   */
+  public void replayQueries() {
+    if (ir == null) {
+      showStatus(MSG_NOINDEX);
+      return;
+    }
+    JFileChooser fd = new JFileChooser();
+    fd.setDialogType(JFileChooser.OPEN_DIALOG);
+    fd.setDialogTitle("Select file with queries, one per line");
+    fd.setFileSelectionMode(JFileChooser.FILES_ONLY);
+    if (fd.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+      return;
+    }
+    final File file = fd.getSelectedFile();
+    final Object srchOpts = find("srchOptTabs");
+    final boolean concurrent = getBoolean(find(srchOpts, "ckConcurrent"), "selected");
+    SlowThread st = new SlowThread(this) {
+      public void execute() {
+        try {
+          List<QueryReplay.QueryResult> queries = new ArrayList<QueryReplay.QueryResult>();
+          for (String text : QueryReplay.readQueries(file)) {
+            Query q = null;
+            String error = null;
+            try {
+              q = createQuery(text);
+            } catch (Throwable t) {
+              error = t.getMessage();
+            }
+            queries.add(QueryReplay.newQuery(text, q, error));
+          }
+          Similarity sim = createSimilarity(srchOpts);
+          Analyzer analyzer = createAnalyzer(srchOpts);
+          IndexSearcher searcher = getSearcher(concurrent);
+          searcher.setSimilarity(sim);
+          QueryReplay replay = new QueryReplay(searcher, Util.defaultThreads());
+          replay.setDescription("analyzer=" + (analyzer == null ? "?" : analyzer.getClass().getName()) +
+              ", similarity=" + sim.getClass().getName() + ", field=" + getDefaultField(srchOpts) +
+              ", index=" + pName);
+          showStatus("Running " + queries.size() + " queries ...");
+          QueryReplay.Result res = replay.run(queries);
+          showStatus(res.getSummary());
+          Object dialog = addComponent(Luke.this, "/xml/benchmark.xml", null, null);
+          setString(dialog, "text", " Query Replay");
+          setString(find(dialog, "report"), "text", res.getReport());
+        } catch (Throwable t) {
+          t.printStackTrace();
+          errorMsg("ERROR replaying queries: " + t.toString());
+        }
+      }
+    };
+    if (slowAccess) {
+      st.start();
+    } else {
+      st.execute();
+    }
+  }
+  
+  public void showBenchmarkReport() {
+    if (lastBenchmark == null) {
+      return;
+    }
+    Object dialog = addComponent(this, "/xml/benchmark.xml", null, null);
+    setString(find(dialog, "report"), "text", lastBenchmark.getReport());
+  }
+  
+  public void clipBenchmarkReport(Object dialog) {
+    StringSelection sel = new StringSelection(getString(find(dialog, "report"), "text"));
+    Toolkit.getDefaultToolkit().getSystemClipboard().setContents(sel, this);
+  }
+  
+  public void saveBenchmarkReport(Object dialog) {
+    JFileChooser fd = new JFileChooser();
+    fd.setDialogType(JFileChooser.SAVE_DIALOG);
+    fd.setDialogTitle("Save Benchmark Report");
+    fd.setFileSelectionMode(JFileChooser.FILES_ONLY);
+    if (this.baseDir != null) {
+      fd.setCurrentDirectory(new File(this.baseDir));
+    }
+    if (fd.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+      return;
+    }
+    try {
+      Writer w = new OutputStreamWriter(new FileOutputStream(fd.getSelectedFile()), "UTF-8");
+      try {
+        w.write(getString(find(dialog, "report"), "text"));
+      } finally {
+        w.close();
+      }
+      showStatus("Report saved to " + fd.getSelectedFile());
+    } catch (Exception e) {
+      errorMsg("Error saving report: " + e.toString());
+    }
+  }
+  
   public void clipQExplain(Object qExplain) {
     Object tree  = find(qExplain, "qTree");
     StringBuilder sb = new StringBuilder();
@@ -4620,8 +5175,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
       return;
     }
     Object sTable = find("sTable");
-    Object cntRepeat = find("cntRepeat");
-    int repeat = Integer.parseInt(getString(cntRepeat, "text"));
+    QueryBenchmark bench = createBenchmark();
     removeAll(sTable);
     Query q = null;
     try {
@@ -4629,53 +5183,97 @@ public class Luke extends Thinlet implements ClipboardOwner {
       if (q == null) {
         return;
       }
-      is.setSimilarity(sim);
+      IndexSearcher searcher = getSearcher(getBoolean(find(srchOpts, "ckConcurrent"), "selected"));
+      searcher.setSimilarity(sim);
       showParsed();
-      _search(q, is, col, sTable, repeat);
+      _search(q, searcher, col, sTable, bench);
     } catch (Throwable e) {
       e.printStackTrace();
       errorMsg(e.getMessage());
     }
   }
   
+  private ConcurrentIndexSearcher concurrentSearcher = null;
+  private ExecutorService searchPool = null;
+  
+  /**
+   * Get the searcher for the current reader.
+   * @param concurrent if true, return a searcher that collects segments
+   * concurrently.
+   */
+  private IndexSearcher getSearcher(boolean concurrent) {
+    if (!concurrent) {
+      return is;
+    }
+    if (concurrentSearcher == null || concurrentSearcher.getIndexReader() != ir) {
+      if (searchPool == null) {
+        searchPool = Util.newExecutor("Search", Util.defaultThreads());
+      }
+      concurrentSearcher = new ConcurrentIndexSearcher(ir, searchPool);
+    }
+    return concurrentSearcher;
+  }
+  
   int resStart = 0;
   int resCount = 20;
-  LimitedException le = null;
 
+  private QueryBenchmark.Result lastBenchmark = null;
+
+  /**
+   * @return benchmark configured in the search options, or null if the
+   * search should run only once
+   */
+  private QueryBenchmark createBenchmark() {
+    int repeat = Integer.parseInt(getString(find("cntRepeat"), "text"));
+    if (repeat <= 1) {
+      return null;
+    }
+    int warmup = Integer.parseInt(getString(find("cntWarmup"), "text"));
+    return new QueryBenchmark(warmup, repeat, getBoolean(find("ckColdCache"), "selected"));
+  }
+
+  /**
+   * Run the search, and display the results.
+   * @param bench if not null, measure the latency over several runs
+   */
   private void _search(final Query q, final IndexSearcher is,
-          AccessibleHitCollector hc, final Object sTable, final int repeat) throws Exception {
+          AccessibleHitCollector hc, final Object sTable, final QueryBenchmark bench) throws Exception {
     if (hc == null) {
       hc = new AccessibleTopHitCollector(1000, true, true);
     }
     final AccessibleHitCollector collector = hc;
-    le = null;
+    setBoolean(find("bsCont"), "enabled", false);
     SlowThread t = new SlowThread(this) {
       public void execute() {
-        long startTime = System.nanoTime();
-        for (int i = 0; i < repeat; i++) {
-          if (i > 0) {
-            collector.reset();
-          }
-          try {
+        String msg;
+        try {
+          if (bench != null) {
+            QueryBenchmark.Result res = bench.run(is, q, collector);
+            lastBenchmark = res;
+            setBoolean(find("bBench"), "enabled", true);
+            msg = res.getSummary();
+          } else {
+            long startTime = System.nanoTime();
             is.search(q, collector);
-          } catch (LimitedException e) {
-            le = e;
-          } catch (Throwable th) {
-            th.printStackTrace();
-            errorMsg("ERROR searching: " + th.toString());
-            return;
+            msg = Util.formatNanos(System.nanoTime() - startTime);
           }
+          if (bench == null && collector instanceof LimitedHitCollector) {
+            msg = limitStatus((LimitedHitCollector)collector, is);
+          }
+          if (collector instanceof SortedHitCollector) {
+            SortedHitCollector sc = (SortedHitCollector)collector;
+            if (sc.getTerminatedSegments() > 0) {
+              msg += ", " + sc.getTerminatedSegments() + " segment(s) terminated early";
+            }
+          }
+        } catch (Throwable th) {
+          th.printStackTrace();
+          errorMsg("ERROR searching: " + th.toString());
+          return;
         }
-        long endTime = System.nanoTime();
-        long delta = (endTime - startTime) / 1000 / repeat;
-        String msg;
-        if (delta > 100000) {
-          msg = delta / 1000 + " ms";
-        } else {
-          msg = delta + " us";
-        }
-        if (repeat > 1) {
-          msg += " (avg of " + repeat + " runs)";
+        if (is instanceof ConcurrentIndexSearcher) {
+          msg += ", parallelism (busy/wall) " +
+              String.format("%.1f", ((ConcurrentIndexSearcher)is).getLastParallelism()) + "x";
         }
         showSearchStatus(msg);
         Object bsPrev = find("bsPrev");
@@ -4705,8 +5303,9 @@ public class Luke extends Thinlet implements ClipboardOwner {
         putProperty(sTable, "resNum", new Integer(resNum));
         putProperty(sTable, "query", q);
         putProperty(sTable, "hc", collector);
-        if (le != null) {
-          putProperty(sTable, "le", le);
+        putProperty(sTable, "searcher", is);
+        if (collector instanceof LimitedHitCollector) {
+          setBoolean(find("bsCont"), "enabled", ((LimitedHitCollector)collector).canContinue());
         }
         resStart = 0;
         _showSearchPage(sTable);
@@ -4719,6 +5318,46 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
   }
   
+  /**
+   * @return status message for a search with a limited collector
+   */
+  private String limitStatus(LimitedHitCollector lc, IndexSearcher is) {
+    int numSegs = is.getIndexReader().leaves().size();
+    String msg = lc.getCollectedHits() + " hits in " + Util.formatNanos(lc.getElapsedNanos());
+    if (lc.isLimitReached()) {
+      msg += ", stopped at segment " + lc.getStoppedSegment() + " of " + numSegs;
+    } else {
+      msg += ", " + lc.getSegmentsVisited() + " of " + numSegs + " segments";
+    }
+    msg += ", " + String.format("%.0f", lc.getDocsPerSec()) + " docs/s";
+    return msg;
+  }
+
+  /**
+   * Continue a search with a limited collector from where it stopped.
+   * @param sTable Thinlet table widget containing search results.
+   */
+  public void continueSearch(Object sTable) {
+    AccessibleHitCollector hc = (AccessibleHitCollector)getProperty(sTable, "hc");
+    Query q = (Query)getProperty(sTable, "query");
+    IndexSearcher searcher = (IndexSearcher)getProperty(sTable, "searcher");
+    if (!(hc instanceof LimitedHitCollector) || q == null || searcher == null) {
+      return;
+    }
+    if (searcher.getIndexReader() != ir) {
+      showStatus("Index changed - run the search again.");
+      setBoolean(find("bsCont"), "enabled", false);
+      return;
+    }
+    removeAll(sTable);
+    try {
+      _search(q, searcher, hc, sTable, null);
+    } catch (Exception e) {
+      e.printStackTrace();
+      errorMsg(e.getMessage());
+    }
+  }
+
   public void prevPage(Object sTable) {
     int resNum = ((Integer)getProperty(sTable, "resNum")).intValue();
     if (resStart == 0) {
@@ -4792,36 +5431,134 @@ public class Luke extends Thinlet implements ClipboardOwner {
     setString(cell, "text", String.valueOf(docId));
     setChoice(cell, "alignment", "right");
     add(row, cell);
-    Document doc = ir.document(docId);
     putProperty(row, "docid", new Integer(docId));
-    StringBuffer vals = new StringBuffer();
+    StoredRowLoader loader = rowLoader;
+    if (loader == null || loader.getReader() != ir) {
+      loader = new StoredRowLoader(ir, idxFields, decoders, defDecoder,
+          StoredRowLoader.DEFAULT_MAX_LENGTH, StoredRowLoader.DEFAULT_CACHE_SIZE);
+      rowLoader = loader;
+    }
+    StoredRowLoader.Row values = loader.load(docId);
     for (int j = 0; j < idxFields.length; j++) {
       cell = create("cell");
-      Decoder dec = decoders.get(idxFields[j]);
-      if (dec == null) dec = defDecoder;
-      IndexableField[] values = doc.getFields(idxFields[j]);
-      vals.setLength(0);
-      boolean decodeErr = false;
-      if (values != null) for (int k = 0; k < values.length; k++) {
-        if (k > 0) vals.append(' ');
-        String v;
-        try {
-          v = dec.decodeStored(idxFields[j], (Field)values[k]);
-        } catch (Throwable e) {
-          e.printStackTrace();
-          v = values[k].stringValue();
-          decodeErr = true;
-        }
-        vals.append(Util.escape(v));
-      }
-      setString(cell, "text", vals.toString());
-      if (decodeErr) {
+      setString(cell, "text", values.values[j]);
+      if (values.decodeErrors[j]) {
         setColor(cell, "foreground", Color.RED);
       }
       add(row, cell);
     }
   }
 
+  /**
+   * Pop up a dialog to count the values of DocValues fields over the hits
+   * of the last query.
+   * @param sTable Thinlet table widget containing search results.
+   */
+  public void showFacets(Object sTable) {
+    if (ir == null) {
+      showStatus(MSG_NOINDEX);
+      return;
+    }
+    Query q = (Query)getProperty(sTable, "query");
+    if (q == null) {
+      showStatus("No query - run a search first.");
+      return;
+    }
+    Object dialog = addComponent(this, "/xml/facets.xml", null, null);
+    putProperty(dialog, "query", q);
+    setString(find(dialog, "query"), "text", q.toString());
+    Object fTable = find(dialog, "fTable");
+    for (String s : idxFields) {
+      FieldInfo fi = infos.fieldInfo(s);
+      if (fi == null) continue;
+      FieldInfo.DocValuesType type = fi.getDocValuesType();
+      if (type == FieldInfo.DocValuesType.SORTED || type == FieldInfo.DocValuesType.SORTED_SET ||
+          type == FieldInfo.DocValuesType.NUMERIC) {
+        Object row = create("row");
+        putProperty(row, "fName", s);
+        putProperty(row, "type", type);
+        Object cell = create("cell");
+        setString(cell, "text", s);
+        add(row, cell);
+        cell = create("cell");
+        setString(cell, "text", type.toString());
+        add(row, cell);
+        add(fTable, row);
+      }
+    }
+    if (getCount(fTable) == 0) {
+      setString(find(dialog, "status"), "text", "No SORTED, SORTED_SET or NUMERIC DocValues fields.");
+    }
+  }
+
+  /**
+   * Count the values of the fields selected in the facets dialog, in a
+   * single pass over the hits.
+   */
+  public void countFacets(final Object dialog) {
+    final Query q = (Query)getProperty(dialog, "query");
+    Object[] rows = getSelectedItems(find(dialog, "fTable"));
+    if (q == null || rows.length == 0) {
+      setString(find(dialog, "status"), "text", "Select one or more fields.");
+      return;
+    }
+    int size = Integer.parseInt(getString(find(dialog, "size"), "text"));
+    final FacetCollector.FacetSpec[] specs = new FacetCollector.FacetSpec[rows.length];
+    for (int i = 0; i < rows.length; i++) {
+      specs[i] = new FacetCollector.FacetSpec((String)getProperty(rows[i], "fName"),
+          (FieldInfo.DocValuesType)getProperty(rows[i], "type"), size);
+    }
+    final IndexSearcher searcher = getSearcher(getBoolean(find(find("srchOptTabs"), "ckConcurrent"), "selected"));
+    final Object rTable = find(dialog, "rTable");
+    removeAll(rTable);
+    SlowThread st = new SlowThread(this) {
+      public void execute() {
+        try {
+          long start = System.nanoTime();
+          FacetCollector fc = new FacetCollector(null, searcher.getIndexReader(), specs);
+          searcher.search(q, fc);
+          List<FacetCollector.FacetResult> results = fc.getResults();
+          long elapsed = System.nanoTime() - start;
+          for (FacetCollector.FacetResult res : results) {
+            for (FacetCollector.Entry e : res.entries) {
+              addFacetRow(rTable, res.field, e.label, String.valueOf(e.count), true);
+            }
+            String summary = res.type == FieldInfo.DocValuesType.NUMERIC ?
+                res.numValues + " buckets" : res.numValues + " distinct values";
+            addFacetRow(rTable, res.field, "(" + summary + ", " + res.missing + " hits without value)", "", false);
+          }
+          setString(find(dialog, "status"), "text", fc.getCountedHits() + " hits counted in " +
+              Util.formatNanos(elapsed));
+        } catch (Throwable t) {
+          t.printStackTrace();
+          errorMsg("Error counting facets: " + t.toString());
+        }
+        repaint(dialog);
+      }
+    };
+    if (slowAccess) {
+      st.start();
+    } else {
+      st.execute();
+    }
+  }
+
+  private void addFacetRow(Object table, String field, String label, String count, boolean enabled) {
+    Object row = create("row");
+    Object cell = create("cell");
+    setString(cell, "text", field);
+    add(row, cell);
+    cell = create("cell");
+    setString(cell, "text", label);
+    setBoolean(cell, "enabled", enabled);
+    add(row, cell);
+    cell = create("cell");
+    setString(cell, "text", count);
+    setChoice(cell, "alignment", "right");
+    add(row, cell);
+    add(table, row);
+  }
+
   /**
    * Pop up a modal dialog explaining the selected result.
    * @param sTable Thinlet table widget containing selected search result.
@@ -4899,15 +5636,15 @@ public class Luke extends Thinlet implements ClipboardOwner {
     }
     SlowThread st = new SlowThread(this) {
       public void execute() {
-        Document doc = null;
+        DocumentCache.CachedDoc e = null;
         try {
-          doc = ir.document(docid.intValue());
-        } catch (Exception e) {
-          e.printStackTrace();
-          showStatus(e.getMessage());
+          e = docCache.get(ir, docid.intValue());
+        } catch (Exception ex) {
+          ex.printStackTrace();
+          showStatus(ex.getMessage());
           return;
         }
-        _showDocFields(docid.intValue(), doc);
+        _showDocFields(docid.intValue(), e.doc, e.vectorFields);
         Object tabpane = find("maintpane");
         setInteger(tabpane, "selected", 1);
         repaint();        
@@ -4928,10 +5665,10 @@ public class Luke extends Thinlet implements ClipboardOwner {
     SlowThread st = new SlowThread(this) {
       public void execute() {
         try {
-          Document doc = ir.document(td.docID());
+          DocumentCache.CachedDoc e = docCache.get(ir, td.docID());
           setString(find("docNum"), "text", String.valueOf(td.docID()));
           setString(find("tFreq"), "text", String.valueOf(td.freq()));
-          _showDocFields(td.docID(), doc);          
+          _showDocFields(td.docID(), e.doc, e.vectorFields);          
         } catch (Exception e) {
           e.printStackTrace();
           showStatus(e.getMessage());
@@ -5115,6 +5852,16 @@ public class Luke extends Thinlet implements ClipboardOwner {
       dec = new NumLongDecoder();
     } else if (decName.equals("ni")) {
       dec = new NumIntDecoder();
+    } else if (decName.equals("auto")) {
+      try {
+        dec = FieldTypeProfile.get(ir).getDefaultDecoder(fName);
+      } catch (Exception e) {
+        e.printStackTrace();
+        errorMsg("Error detecting field type: " + e.toString());
+      }
+      if (dec == null) {
+        dec = defDecoder;
+      }
     } else if (decName.startsWith("solr.")) {
       try {
         dec = new SolrDecoder(decName);
@@ -5126,6 +5873,7 @@ public class Luke extends Thinlet implements ClipboardOwner {
       dec = defDecoder;
     }
     decoders.put(fName, dec);
+    rowLoader = null;
     Object cell = getItem(row, 3);
     setString(cell, "text", dec.toString());
     repaint(fList);
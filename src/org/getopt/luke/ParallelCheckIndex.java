@@ -0,0 +1,190 @@
+package org.getopt.luke;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.lucene.index.CheckIndex;
+import org.apache.lucene.index.IndexGate;
+import org.apache.lucene.index.SegmentInfoPerCommit;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Checks the segments of an index concurrently, each with its own
+ * {@link CheckIndex}, on a bounded pool of threads. The result of each
+ * segment is reported as soon as it's available, and the results are
+ * combined into one {@link CheckIndex.Status}, which can be used to fix the
+ * index if all segments were checked.
+ */
+public class ParallelCheckIndex {
+  private Directory dir;
+  private SegmentInfos sis;
+  private int numThreads;
+
+  /**
+   * Result of checking one segment.
+   */
+  public static class SegmentResult {
+    /** segment name */
+    public String name;
+    /** status of the check, covering only this segment, or null on error */
+    public CheckIndex.Status status;
+    /** diagnostic output of the check, without a trailing newline */
+    public String output;
+    public long elapsed;
+    /** exception thrown by the check, or null */
+    public Throwable error;
+
+    /** @return status of the segment, or null if it wasn't checked */
+    public CheckIndex.Status.SegmentInfoStatus getSegmentStatus() {
+      if (status == null || status.segmentInfos.isEmpty()) {
+        return null;
+      }
+      return status.segmentInfos.get(0);
+    }
+
+    public boolean isOk() {
+      return error == null && status != null && status.clean;
+    }
+  }
+
+  /**
+   * Receives the results of segments as they finish. Called on the thread
+   * that runs {@link ParallelCheckIndex#check(Collection, Listener)}.
+   */
+  public interface Listener {
+    public void segmentChecked(SegmentResult res);
+  }
+
+  /**
+   * @param numThreads maximum number of segments checked at the same time
+   * @throws IOException if the latest commit can't be read
+   */
+  public ParallelCheckIndex(Directory dir, int numThreads) throws IOException {
+    this.dir = dir;
+    this.numThreads = Math.max(1, numThreads);
+    sis = new SegmentInfos();
+    sis.read(dir);
+  }
+
+  /** @return segments of the commit being checked */
+  public SegmentInfos getSegmentInfos() {
+    return sis;
+  }
+
+  /**
+   * Check segments.
+   * @param segments names of segments to check, or null to check all
+   * @param listener if not null, notified as each segment finishes
+   * @return status of the checked segments. It's partial if not all
+   * segments were checked.
+   */
+  public CheckIndex.Status check(Collection<String> segments, Listener listener)
+      throws IOException, InterruptedException {
+    List<SegmentInfoPerCommit> infos = new ArrayList<SegmentInfoPerCommit>();
+    for (SegmentInfoPerCommit info : sis) {
+      if (segments == null || segments.contains(info.info.name)) {
+        infos.add(info);
+      }
+    }
+    // start with the largest segments, so that the small ones fill the gaps
+    Collections.sort(infos, new Comparator<SegmentInfoPerCommit>() {
+      public int compare(SegmentInfoPerCommit a, SegmentInfoPerCommit b) {
+        int da = a.info.getDocCount();
+        int db = b.info.getDocCount();
+        return da > db ? -1 : (da < db ? 1 : 0);
+      }
+    });
+    ExecutorService pool = Util.newExecutor("CheckIndex", Math.min(numThreads, Math.max(1, infos.size())));
+    List<CheckIndex.Status> parts = new ArrayList<CheckIndex.Status>();
+    try {
+      CompletionService<SegmentResult> cs = new ExecutorCompletionService<SegmentResult>(pool);
+      for (SegmentInfoPerCommit info : infos) {
+        final String name = info.info.name;
+        cs.submit(new Callable<SegmentResult>() {
+          public SegmentResult call() {
+            return checkSegment(name);
+          }
+        });
+      }
+      for (int i = 0; i < infos.size(); i++) {
+        SegmentResult res;
+        try {
+          res = cs.take().get();
+        } catch (ExecutionException e) {
+          // checkSegment catches everything, so this is unexpected
+          throw new IOException(e.getCause().toString());
+        }
+        if (res.status != null) {
+          parts.add(res.status);
+        }
+        if (listener != null) {
+          listener.segmentChecked(res);
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return IndexGate.mergeCheckStatus(dir, sis, parts);
+  }
+
+  private SegmentResult checkSegment(String name) {
+    SegmentResult res = new SegmentResult();
+    res.name = name;
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(baos);
+    long start = System.nanoTime();
+    try {
+      CheckIndex ci = new CheckIndex(dir);
+      ci.setInfoStream(out);
+      res.status = ci.checkIndex(Collections.singletonList(name));
+    } catch (Throwable t) {
+      res.error = t;
+      t.printStackTrace(out);
+    }
+    res.elapsed = System.nanoTime() - start;
+    out.flush();
+    res.output = segmentOutput(baos.toString());
+    return res;
+  }
+
+  /**
+   * Strip the header and the summary about the whole index, which are
+   * repeated by the check of each segment. Segment details are indented.
+   */
+  private static String segmentOutput(String output) {
+    String[] lines = output.split("\n");
+    int first = -1;
+    int last = -1;
+    for (int i = 0; i < lines.length; i++) {
+      if (lines[i].startsWith(" ") || lines[i].startsWith("\t")) {
+        if (first == -1) {
+          first = i;
+        }
+        last = i;
+      }
+    }
+    if (first == -1) {
+      return output.trim();
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = first; i <= last; i++) {
+      if (i > first) {
+        sb.append('\n');
+      }
+      sb.append(lines[i]);
+    }
+    return sb.toString();
+  }
+}
@@ -21,6 +21,7 @@ public class Prefs {
     public static final String P_THEME          = "luke.theme";
     public static final String P_ANALYZER       = "luke.analyzer";
     public static final String P_FIELD          = "luke.field";
+    public static final String P_THREADS        = "luke.threads";
     
     private static Properties props = new Properties();
     
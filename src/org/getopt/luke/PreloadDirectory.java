@@ -0,0 +1,123 @@
+package org.getopt.luke;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+
+/**
+ * Memory-maps all index files when opened, and touches every page so that
+ * the whole index is loaded into the OS cache. Unlike copying the index
+ * into a RAMDirectory, the data stays off the Java heap.
+ * <p>Inputs opened later are clones of the preloaded mappings. Compound
+ * files can't be sliced from clones, so they are only touched, and mapped
+ * again when opened. Files created after opening are mapped on demand.
+ * <p>Closing a mapping invalidates all its clones, so the mappings of files
+ * that are deleted or overwritten are only released when the directory is
+ * closed, as readers may still be using them.
+ */
+public class PreloadDirectory extends MMapDirectory {
+  private static final int PAGE_SIZE = 4096;
+
+  private Map<String,IndexInput> preloaded = new HashMap<String,IndexInput>();
+  // mappings of files deleted or overwritten since preloading
+  private List<IndexInput> stale = new ArrayList<IndexInput>();
+  private long preloadedBytes = 0;
+
+  public PreloadDirectory(File path) throws IOException {
+    super(path);
+    setUseUnmap(UNMAP_SUPPORTED);
+    try {
+      preload();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  private void preload() throws IOException {
+    for (String name : listAll()) {
+      IndexInput in = super.openInput(name, IOContext.READ);
+      long len = in.length();
+      for (long pos = 0; pos < len; pos += PAGE_SIZE) {
+        in.seek(pos);
+        in.readByte();
+      }
+      preloadedBytes += len;
+      if (name.endsWith("." + IndexFileNames.COMPOUND_FILE_EXTENSION)) {
+        in.close();
+      } else {
+        in.seek(0);
+        preloaded.put(name, in);
+      }
+    }
+  }
+
+  /**
+   * @return total size of the files mapped and loaded when opening
+   */
+  public long getPreloadedBytes() {
+    return preloadedBytes;
+  }
+
+  @Override
+  public IndexInput openInput(String name, IOContext context) throws IOException {
+    ensureOpen();
+    IndexInput in;
+    synchronized (preloaded) {
+      in = preloaded.get(name);
+    }
+    if (in != null) {
+      return in.clone();
+    }
+    return super.openInput(name, context);
+  }
+
+  @Override
+  public void deleteFile(String name) throws IOException {
+    dropPreloaded(name);
+    super.deleteFile(name);
+  }
+
+  @Override
+  public IndexOutput createOutput(String name, IOContext context) throws IOException {
+    // the file is rewritten, so stop serving the old contents
+    dropPreloaded(name);
+    return super.createOutput(name, context);
+  }
+
+  private void dropPreloaded(String name) {
+    synchronized (preloaded) {
+      IndexInput in = preloaded.remove(name);
+      if (in != null) {
+        stale.add(in);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    synchronized (preloaded) {
+      List<IndexInput> all = new ArrayList<IndexInput>(preloaded.values());
+      all.addAll(stale);
+      for (IndexInput in : all) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // ignore, the mapping is released anyway
+        }
+      }
+      preloaded.clear();
+      stale.clear();
+    }
+    super.close();
+  }
+}
@@ -0,0 +1,168 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+
+/**
+ * Measures query latency over repeated runs. The first run is timed
+ * separately as the cold run (optionally after purging the FieldCache),
+ * then warmup runs are discarded, and the latency of each remaining run
+ * is recorded. Collectors are reset outside of the timed region.
+ */
+public class QueryBenchmark {
+  private int warmup;
+  private int iterations;
+  private boolean purgeCaches;
+
+  /** Results of a benchmark run. */
+  public static class Result {
+    String query;
+    String searcher;
+    String collector;
+    long coldNanos;
+    int warmup;
+    long[] latencies;
+    long totalNanos;
+    int hits;
+    boolean limited;
+
+    /**
+     * @return true if the collector is a {@link LimitedHitCollector}, and
+     * the last run reached the limit
+     */
+    public boolean isLimited() {
+      return limited;
+    }
+
+    /** @return number of timed runs */
+    public int getIterations() {
+      return latencies.length;
+    }
+
+    /** @return latency of the cold run, in nanoseconds */
+    public long getColdNanos() {
+      return coldNanos;
+    }
+
+    /**
+     * @param p percentile, 0 - 100
+     * @return latency in nanoseconds, using the nearest-rank method
+     */
+    public long getPercentile(double p) {
+      int rank = (int)Math.ceil(p / 100.0 * latencies.length);
+      return latencies[Math.max(0, Math.min(latencies.length - 1, rank - 1))];
+    }
+
+    public long getMean() {
+      return totalNanos / latencies.length;
+    }
+
+    public long getMax() {
+      return latencies[latencies.length - 1];
+    }
+
+    public long getMin() {
+      return latencies[0];
+    }
+
+    public double getQueriesPerSec() {
+      return totalNanos == 0 ? 0 : latencies.length * 1e9 / totalNanos;
+    }
+
+    public double getHitsPerSec() {
+      return getQueriesPerSec() * hits;
+    }
+
+    /** @return one-line summary, for the status line */
+    public String getSummary() {
+      return "p50 " + Util.formatNanos(getPercentile(50)) + ", p90 " + Util.formatNanos(getPercentile(90)) +
+        ", p99 " + Util.formatNanos(getPercentile(99)) + ", max " + Util.formatNanos(getMax()) +
+        ", cold " + Util.formatNanos(coldNanos) + " (" + latencies.length + " runs)";
+    }
+
+    /** @return full report, as plain text */
+    public String getReport() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("Date:        " + new Date() + "\n");
+      sb.append("Query:       " + query + "\n");
+      sb.append("Searcher:    " + searcher + "\n");
+      sb.append("Collector:   " + collector + "\n");
+      sb.append("Hits:        " + hits + (limited ? " (limited)" : "") + "\n");
+      sb.append("Warmup runs: " + warmup + "\n");
+      sb.append("Timed runs:  " + latencies.length + "\n");
+      sb.append("\nLatency [us]\n");
+      sb.append("  cold:  " + coldNanos / 1000 + "\n");
+      sb.append("  min:   " + getMin() / 1000 + "\n");
+      sb.append("  mean:  " + getMean() / 1000 + "\n");
+      sb.append("  p50:   " + getPercentile(50) / 1000 + "\n");
+      sb.append("  p90:   " + getPercentile(90) / 1000 + "\n");
+      sb.append("  p99:   " + getPercentile(99) / 1000 + "\n");
+      sb.append("  max:   " + getMax() / 1000 + "\n");
+      sb.append("  cold/p50: " + String.format("%.2f", (double)coldNanos / Math.max(1, getPercentile(50))) + "\n");
+      sb.append("\nThroughput\n");
+      sb.append("  queries/sec: " + String.format("%.1f", getQueriesPerSec()) + "\n");
+      sb.append("  hits/sec:    " + String.format("%.1f", getHitsPerSec()) + "\n");
+      return sb.toString();
+    }
+  }
+
+  /**
+   * @param warmup number of untimed runs after the cold run
+   * @param iterations number of timed runs
+   * @param purgeCaches if true, purge the FieldCache before the cold run
+   */
+  public QueryBenchmark(int warmup, int iterations, boolean purgeCaches) {
+    this.warmup = Math.max(0, warmup);
+    this.iterations = Math.max(1, iterations);
+    this.purgeCaches = purgeCaches;
+  }
+
+  /**
+   * Run the benchmark. When done, the collector holds the results of the
+   * last run.
+   */
+  public Result run(IndexSearcher is, Query q, AccessibleHitCollector collector) throws IOException {
+    Result res = new Result();
+    res.query = q.toString();
+    res.searcher = is.getClass().getSimpleName();
+    res.collector = collector.getClass().getSimpleName();
+    res.warmup = warmup;
+    res.latencies = new long[iterations];
+    if (purgeCaches) {
+      FieldCache.DEFAULT.purgeAllCaches();
+    }
+    res.coldNanos = runOnce(is, q, collector, false);
+    for (int i = 0; i < warmup; i++) {
+      runOnce(is, q, collector, true);
+    }
+    for (int i = 0; i < iterations; i++) {
+      long t = runOnce(is, q, collector, true);
+      res.latencies[i] = t;
+      res.totalNanos += t;
+    }
+    if (collector instanceof LimitedHitCollector) {
+      LimitedHitCollector lc = (LimitedHitCollector)collector;
+      res.hits = lc.getCollectedHits();
+      res.limited = lc.isLimitReached();
+    } else {
+      res.hits = collector.getTotalHits();
+    }
+    Arrays.sort(res.latencies);
+    return res;
+  }
+
+  private long runOnce(IndexSearcher is, Query q, AccessibleHitCollector collector,
+      boolean reset) throws IOException {
+    if (reset) {
+      collector.reset();
+    }
+    long start = System.nanoTime();
+    is.search(q, collector);
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,462 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Measures where the time of a query goes. {@link #wrap(Query)} copies the
+ * query tree, wrapping each clause so that its weight and scorers record the
+ * number of nextDoc / advance / score calls and the time spent in them, for
+ * each segment. Clauses of boolean, disjunction-max, constant-score and
+ * filtered queries are profiled separately, other queries as a whole.
+ * Queries that rewrite to such compound queries (e.g. multi-term queries)
+ * have the clauses of their rewritten form profiled too. A boolean query
+ * whose clauses are all required term queries is profiled as a whole,
+ * because wrapping its clauses would disable Lucene's conjunction scorer.
+ * <p>The time of a clause includes the time of its sub-clauses, and the
+ * overhead of timing each call (typically a few tens of ns). Scorers that
+ * score a whole segment at once (e.g. BooleanScorer) are timed as a single
+ * bulk call, which includes the time spent in the collector.
+ */
+public class QueryProfiler {
+  // scorer classes that override the bulk scoring methods
+  private static final Map<Class<?>,Boolean> bulkScorers = new HashMap<Class<?>,Boolean>();
+
+  private Node root = null;
+
+  /**
+   * Profiling data of one query clause.
+   */
+  public static class Node {
+    private Query query;
+    private Query rewritten;
+    private List<Node> children = new ArrayList<Node>();
+    private Map<Integer,Stats> segments = new TreeMap<Integer,Stats>();
+    private String note = null;
+
+    Node(Query query) {
+      this.query = query;
+    }
+
+    /** @return the clause, as in the original query */
+    public Query getQuery() {
+      return query;
+    }
+
+    /** @return the clause as it was executed, after rewriting */
+    public Query getRewritten() {
+      return rewritten == null ? query : rewritten;
+    }
+
+    public List<Node> getChildren() {
+      return children;
+    }
+
+    /** @return why the clauses of this query aren't profiled, or null */
+    public String getNote() {
+      return note;
+    }
+
+    synchronized Stats getStats(int segment) {
+      Stats s = segments.get(segment);
+      if (s == null) {
+        s = new Stats(segment);
+        segments.put(segment, s);
+      }
+      return s;
+    }
+
+    /** @return statistics for each segment, ordered by segment ord */
+    public synchronized List<Stats> getSegments() {
+      return new ArrayList<Stats>(segments.values());
+    }
+
+    /** @return statistics summed over all segments */
+    public Stats getTotal() {
+      Stats total = new Stats(-1);
+      for (Stats s : getSegments()) {
+        total.add(s);
+      }
+      return total;
+    }
+
+    /** @return time spent in this clause, excluding its sub-clauses */
+    public long getSelfNanos() {
+      long self = getTotal().getNanos();
+      for (Node n : children) {
+        self -= n.getTotal().getNanos();
+      }
+      return Math.max(0, self);
+    }
+  }
+
+  /**
+   * Call counts and times of a clause in one segment.
+   */
+  public static class Stats {
+    int segment;
+    int scorers;
+    long scorerNanos;
+    long nextDocCalls, nextDocNanos;
+    long advanceCalls, advanceNanos;
+    long scoreCalls, scoreNanos;
+    long bulkCalls, bulkNanos;
+
+    Stats(int segment) {
+      this.segment = segment;
+    }
+
+    void add(Stats s) {
+      scorers += s.scorers;
+      scorerNanos += s.scorerNanos;
+      nextDocCalls += s.nextDocCalls;
+      nextDocNanos += s.nextDocNanos;
+      advanceCalls += s.advanceCalls;
+      advanceNanos += s.advanceNanos;
+      scoreCalls += s.scoreCalls;
+      scoreNanos += s.scoreNanos;
+      bulkCalls += s.bulkCalls;
+      bulkNanos += s.bulkNanos;
+    }
+
+    /** @return segment ord, or -1 for the totals */
+    public int getSegment() { return segment; }
+    /** @return number of scorers created */
+    public int getScorers() { return scorers; }
+    public long getScorerNanos() { return scorerNanos; }
+    public long getNextDocCalls() { return nextDocCalls; }
+    public long getNextDocNanos() { return nextDocNanos; }
+    public long getAdvanceCalls() { return advanceCalls; }
+    public long getAdvanceNanos() { return advanceNanos; }
+    public long getScoreCalls() { return scoreCalls; }
+    public long getScoreNanos() { return scoreNanos; }
+    public long getBulkCalls() { return bulkCalls; }
+    public long getBulkNanos() { return bulkNanos; }
+
+    /** @return total time spent in the clause */
+    public long getNanos() {
+      return scorerNanos + nextDocNanos + advanceNanos + scoreNanos + bulkNanos;
+    }
+  }
+
+  /**
+   * Wrap a query for profiling. The profile of the last wrapped query is
+   * available from {@link #getRoot()} after it has been searched.
+   */
+  public Query wrap(Query q) {
+    root = null;
+    ProfiledQuery pq = wrap(q, null);
+    root = pq.node;
+    return pq;
+  }
+
+  /** @return profile of the top-level clause, or null */
+  public Node getRoot() {
+    return root;
+  }
+
+  private static ProfiledQuery wrap(Query q, Node parent) {
+    if (q instanceof ProfiledQuery) {
+      ProfiledQuery pq = (ProfiledQuery)q;
+      if (parent != null) {
+        parent.children.add(pq.node);
+      }
+      return pq;
+    }
+    Node n = new Node(q);
+    if (parent != null) {
+      parent.children.add(n);
+    }
+    return new ProfiledQuery(wrapClauses(q, n), n);
+  }
+
+  /**
+   * Copy a compound query with its clauses wrapped, adding their profiles
+   * to the node. Other queries are returned as they are.
+   */
+  private static Query wrapClauses(Query q, Node n) {
+    Query res;
+    if (q instanceof ProfiledQuery) {
+      n.children.add(((ProfiledQuery)q).node);
+      return q;
+    } else if (q instanceof BooleanQuery) {
+      BooleanQuery bq = (BooleanQuery)q;
+      if (isTermConjunction(bq)) {
+        // BooleanWeight uses its faster conjunction scorer only if all
+        // clauses are required TermWeights, so keep the clauses unwrapped
+        n.note = "Conjunction of terms, scored as one clause";
+        return q;
+      }
+      BooleanQuery copy = new BooleanQuery(bq.isCoordDisabled());
+      copy.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+      for (BooleanClause c : bq.clauses()) {
+        copy.add(wrap(c.getQuery(), n), c.getOccur());
+      }
+      res = copy;
+    } else if (q instanceof DisjunctionMaxQuery) {
+      DisjunctionMaxQuery dq = (DisjunctionMaxQuery)q;
+      DisjunctionMaxQuery copy = new DisjunctionMaxQuery(dq.getTieBreakerMultiplier());
+      for (Query d : dq.getDisjuncts()) {
+        copy.add(wrap(d, n));
+      }
+      res = copy;
+    } else if (q instanceof ConstantScoreQuery && ((ConstantScoreQuery)q).getQuery() != null) {
+      res = new ConstantScoreQuery(wrap(((ConstantScoreQuery)q).getQuery(), n));
+    } else if (q instanceof FilteredQuery) {
+      FilteredQuery fq = (FilteredQuery)q;
+      res = new FilteredQuery(wrap(fq.getQuery(), n), fq.getFilter(), fq.getFilterStrategy());
+    } else {
+      return q;
+    }
+    res.setBoost(q.getBoost());
+    return res;
+  }
+
+  /**
+   * @return true if all clauses are required term queries, which Lucene
+   * scores together with a specialized scorer
+   */
+  private static boolean isTermConjunction(BooleanQuery bq) {
+    if (bq.clauses().size() < 2) {
+      return false;
+    }
+    for (BooleanClause c : bq.clauses()) {
+      if (!c.isRequired() || !(c.getQuery() instanceof TermQuery)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isBulkScorer(Class<?> clazz) {
+    synchronized (bulkScorers) {
+      Boolean res = bulkScorers.get(clazz);
+      if (res == null) {
+        res = false;
+        for (Class<?> c = clazz; c != Scorer.class && c != null; c = c.getSuperclass()) {
+          try {
+            c.getDeclaredMethod("score", Collector.class);
+            res = true;
+            break;
+          } catch (NoSuchMethodException e) {
+            // check the other bulk method
+          }
+          try {
+            c.getDeclaredMethod("score", Collector.class, int.class, int.class);
+            res = true;
+            break;
+          } catch (NoSuchMethodException e) {
+            // check the superclass
+          }
+        }
+        bulkScorers.put(clazz, res);
+      }
+      return res;
+    }
+  }
+
+  private static class ProfiledQuery extends Query {
+    private final Query query;
+    private final Node node;
+
+    ProfiledQuery(Query query, Node node) {
+      this.query = query;
+      this.node = node;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+      Query r = query.rewrite(reader);
+      if (getBoost() != 1.0f) {
+        // boosts set by enclosing queries are applied to the wrapped query
+        if (r == query) {
+          r = r.clone();
+        }
+        r.setBoost(r.getBoost() * getBoost());
+      }
+      if (r == query) {
+        return this;
+      }
+      node.rewritten = r;
+      node.children.clear();
+      return new ProfiledQuery(wrapClauses(r, node), node);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher) throws IOException {
+      return new ProfiledWeight(query.createWeight(searcher), node);
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+      query.extractTerms(terms);
+    }
+
+    @Override
+    public String toString(String field) {
+      return query.toString(field);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof ProfiledQuery)) return false;
+      ProfiledQuery other = (ProfiledQuery)o;
+      return node == other.node && query.equals(other.query) && getBoost() == other.getBoost();
+    }
+
+    @Override
+    public int hashCode() {
+      return query.hashCode() ^ System.identityHashCode(node) ^ Float.floatToIntBits(getBoost());
+    }
+  }
+
+  private static class ProfiledWeight extends Weight {
+    private final Weight weight;
+    private final Node node;
+
+    ProfiledWeight(Weight weight, Node node) {
+      this.weight = weight;
+      this.node = node;
+    }
+
+    @Override
+    public Explanation explain(AtomicReaderContext context, int doc) throws IOException {
+      return weight.explain(context, doc);
+    }
+
+    @Override
+    public Query getQuery() {
+      return weight.getQuery();
+    }
+
+    @Override
+    public float getValueForNormalization() throws IOException {
+      return weight.getValueForNormalization();
+    }
+
+    @Override
+    public void normalize(float norm, float topLevelBoost) {
+      weight.normalize(norm, topLevelBoost);
+    }
+
+    @Override
+    public boolean scoresDocsOutOfOrder() {
+      return weight.scoresDocsOutOfOrder();
+    }
+
+    @Override
+    public Scorer scorer(AtomicReaderContext context, boolean scoreDocsInOrder,
+        boolean topScorer, Bits acceptDocs) throws IOException {
+      Stats stats = node.getStats(context.ord);
+      long start = System.nanoTime();
+      Scorer s = weight.scorer(context, scoreDocsInOrder, topScorer, acceptDocs);
+      stats.scorerNanos += System.nanoTime() - start;
+      stats.scorers++;
+      return s == null ? null : new ProfiledScorer(this, s, stats);
+    }
+  }
+
+  private static class ProfiledScorer extends Scorer {
+    private final Scorer scorer;
+    private final Stats stats;
+    private final boolean bulk;
+
+    ProfiledScorer(Weight weight, Scorer scorer, Stats stats) {
+      super(weight);
+      this.scorer = scorer;
+      this.stats = stats;
+      bulk = isBulkScorer(scorer.getClass());
+    }
+
+    @Override
+    public int docID() {
+      return scorer.docID();
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return scorer.freq();
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      long start = System.nanoTime();
+      int doc = scorer.nextDoc();
+      stats.nextDocNanos += System.nanoTime() - start;
+      stats.nextDocCalls++;
+      return doc;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      long start = System.nanoTime();
+      int doc = scorer.advance(target);
+      stats.advanceNanos += System.nanoTime() - start;
+      stats.advanceCalls++;
+      return doc;
+    }
+
+    @Override
+    public float score() throws IOException {
+      long start = System.nanoTime();
+      float score = scorer.score();
+      stats.scoreNanos += System.nanoTime() - start;
+      stats.scoreCalls++;
+      return score;
+    }
+
+    @Override
+    public void score(Collector collector) throws IOException {
+      if (!bulk) {
+        // iterate using the timed methods
+        super.score(collector);
+        return;
+      }
+      long start = System.nanoTime();
+      scorer.score(collector);
+      stats.bulkNanos += System.nanoTime() - start;
+      stats.bulkCalls++;
+    }
+
+    @Override
+    public boolean score(Collector collector, int max, int firstDocID) throws IOException {
+      if (!bulk) {
+        return super.score(collector, max, firstDocID);
+      }
+      long start = System.nanoTime();
+      boolean more = scorer.score(collector, max, firstDocID);
+      stats.bulkNanos += System.nanoTime() - start;
+      stats.bulkCalls++;
+      return more;
+    }
+
+    @Override
+    public Collection<ChildScorer> getChildren() {
+      return Collections.singletonList(new ChildScorer(scorer, "PROFILED"));
+    }
+  }
+}
@@ -0,0 +1,363 @@
+package org.getopt.luke;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+/**
+ * Replays a list of queries against an index, and reports the latency and
+ * number of hits of each query, and the aggregate throughput. Queries are
+ * run concurrently by a configurable number of threads.
+ * <p>Reports list the analyzer and similarity that were used, and the top
+ * doc ids of each query, so that runs with different settings or index
+ * versions can be compared.
+ */
+public class QueryReplay {
+  /** Number of top doc ids listed in the report for each query. */
+  public static final int REPORT_TOP_DOCS = 3;
+
+  private IndexSearcher searcher;
+  private int numThreads;
+  private int topN = 10;
+  private int warmupPasses = 0;
+  private String description = "";
+
+  /** Outcome of one query. */
+  public static class QueryResult {
+    String text;
+    Query query;
+    String error;
+    long nanos;
+    int totalHits;
+    int[] topDocs;
+  }
+
+  /** Outcome of a replay. */
+  public static class Result {
+    String description;
+    int numThreads;
+    List<QueryResult> queries = new ArrayList<QueryResult>();
+    long wallNanos;
+    long totalHits;
+    int errors;
+
+    public List<QueryResult> getQueries() {
+      return queries;
+    }
+
+    public double getQueriesPerSec() {
+      return wallNanos == 0 ? 0 : (queries.size() - errors) * 1e9 / wallNanos;
+    }
+
+    /** @return latency percentile of successful queries, in nanoseconds */
+    public long getPercentile(double p) {
+      long[] lat = new long[queries.size() - errors];
+      int i = 0;
+      for (QueryResult qr : queries) {
+        if (qr.error == null) {
+          lat[i++] = qr.nanos;
+        }
+      }
+      if (lat.length == 0) {
+        return 0;
+      }
+      Arrays.sort(lat);
+      int rank = (int)Math.ceil(p / 100.0 * lat.length);
+      return lat[Math.max(0, Math.min(lat.length - 1, rank - 1))];
+    }
+
+    /** @return one-line summary, for the status line */
+    public String getSummary() {
+      return queries.size() + " queries (" + errors + " errors) in " + Util.formatNanos(wallNanos) +
+        ", " + String.format("%.1f", getQueriesPerSec()) + " q/s, p50 " + Util.formatNanos(getPercentile(50)) +
+        ", p99 " + Util.formatNanos(getPercentile(99));
+    }
+
+    /**
+     * @return the report: a summary, followed by tab-separated lines of
+     * query number, latency [us], total hits, top doc ids and the query.
+     */
+    public String getReport() {
+      StringBuilder sb = new StringBuilder();
+      sb.append("# Date:       " + new Date() + "\n");
+      sb.append("# Settings:   " + description + "\n");
+      sb.append("# Threads:    " + numThreads + "\n");
+      sb.append("# Queries:    " + queries.size() + ", errors: " + errors + "\n");
+      sb.append("# Total hits: " + totalHits + "\n");
+      sb.append("# Wall time:  " + wallNanos / 1000 + " us\n");
+      sb.append("# Throughput: " + String.format("%.1f", getQueriesPerSec()) + " queries/sec, " +
+          String.format("%.1f", wallNanos == 0 ? 0 : totalHits * 1e9 / wallNanos) + " hits/sec\n");
+      sb.append("# Latency [us]: p50 " + getPercentile(50) / 1000 + ", p90 " + getPercentile(90) / 1000 +
+          ", p99 " + getPercentile(99) / 1000 + ", max " + getPercentile(100) / 1000 + "\n");
+      sb.append("#\n# num\tlatency_us\thits\ttop_docs\tquery\n");
+      for (int i = 0; i < queries.size(); i++) {
+        QueryResult qr = queries.get(i);
+        sb.append(i + 1).append('\t');
+        if (qr.error != null) {
+          sb.append("-\t-\tERROR: ").append(qr.error.replace('\n', ' ').replace('\t', ' '));
+        } else {
+          sb.append(qr.nanos / 1000).append('\t').append(qr.totalHits).append('\t');
+          for (int j = 0; j < qr.topDocs.length; j++) {
+            if (j > 0) sb.append(',');
+            sb.append(qr.topDocs[j]);
+          }
+        }
+        sb.append('\t').append(qr.text).append('\n');
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * @param searcher searcher, with the similarity already set
+   * @param numThreads number of queries to run concurrently
+   */
+  public QueryReplay(IndexSearcher searcher, int numThreads) {
+    this.searcher = searcher;
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  /** Set the number of top hits collected for each query. */
+  public void setTopN(int topN) {
+    this.topN = Math.max(1, topN);
+  }
+
+  /** Set the number of untimed passes over all queries before the timed pass. */
+  public void setWarmupPasses(int warmupPasses) {
+    this.warmupPasses = Math.max(0, warmupPasses);
+  }
+
+  /** Set a description of settings (analyzer, similarity...) for the report. */
+  public void setDescription(String description) {
+    this.description = description;
+  }
+
+  /**
+   * Read queries from a file, one per line. Empty lines and lines starting
+   * with '#' are skipped.
+   */
+  public static List<String> readQueries(File file) throws IOException {
+    List<String> res = new ArrayList<String>();
+    BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = br.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#")) {
+          res.add(line);
+        }
+      }
+    } finally {
+      br.close();
+    }
+    return res;
+  }
+
+  /**
+   * Parse a query, recording a parse error in the result.
+   */
+  public static QueryResult parse(String text, QueryParser qp) {
+    QueryResult qr = new QueryResult();
+    qr.text = text;
+    try {
+      qr.query = qp.parse(text);
+    } catch (Exception e) {
+      qr.error = e.getMessage();
+    }
+    return qr;
+  }
+
+  /**
+   * Create a result for a query parsed elsewhere.
+   * @param query parsed query, or null if parsing failed
+   * @param error parse error, if query is null
+   */
+  public static QueryResult newQuery(String text, Query query, String error) {
+    QueryResult qr = new QueryResult();
+    qr.text = text;
+    qr.query = query;
+    qr.error = query == null ? (error == null ? "Can't parse query" : error) : null;
+    return qr;
+  }
+
+  /**
+   * Run all queries. Queries that failed to parse are reported as errors.
+   */
+  public Result run(List<QueryResult> queries) throws Exception {
+    Result res = new Result();
+    res.description = description;
+    res.numThreads = numThreads;
+    res.queries = queries;
+    ExecutorService pool = Util.newExecutor("QueryReplay", numThreads);
+    try {
+      for (int i = 0; i < warmupPasses; i++) {
+        runAll(pool, queries);
+      }
+      long start = System.nanoTime();
+      runAll(pool, queries);
+      res.wallNanos = System.nanoTime() - start;
+    } finally {
+      pool.shutdownNow();
+    }
+    for (QueryResult qr : queries) {
+      if (qr.error != null) {
+        res.errors++;
+      } else {
+        res.totalHits += qr.totalHits;
+      }
+    }
+    return res;
+  }
+
+  private void runAll(ExecutorService pool, List<QueryResult> queries) throws Exception {
+    List<Future<?>> futures = new ArrayList<Future<?>>(queries.size());
+    for (final QueryResult qr : queries) {
+      if (qr.query == null) {
+        continue;
+      }
+      futures.add(pool.submit(new Callable<Object>() {
+        public Object call() throws Exception {
+          runQuery(qr);
+          return null;
+        }
+      }));
+    }
+    for (Future<?> f : futures) {
+      try {
+        f.get();
+      } catch (ExecutionException ee) {
+        Throwable t = ee.getCause();
+        if (t instanceof Exception) throw (Exception)t;
+        throw ee;
+      }
+    }
+  }
+
+  private void runQuery(QueryResult qr) {
+    long start = System.nanoTime();
+    try {
+      TopDocs td = searcher.search(qr.query, topN);
+      qr.nanos = System.nanoTime() - start;
+      qr.totalHits = td.totalHits;
+      qr.topDocs = new int[Math.min(REPORT_TOP_DOCS, td.scoreDocs.length)];
+      for (int i = 0; i < qr.topDocs.length; i++) {
+        qr.topDocs[i] = td.scoreDocs[i].doc;
+      }
+      qr.error = null;
+    } catch (Exception e) {
+      qr.error = e.toString();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    String index = null;
+    String queries = null;
+    String field = null;
+    String analyzerClass = StandardAnalyzer.class.getName();
+    String simClass = DefaultSimilarity.class.getName();
+    String out = null;
+    int numThreads = 1;
+    int topN = 10;
+    int warmup = 0;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("-index") && i < args.length - 1) {
+        index = args[++i];
+      } else if (args[i].equals("-queries") && i < args.length - 1) {
+        queries = args[++i];
+      } else if (args[i].equals("-field") && i < args.length - 1) {
+        field = args[++i];
+      } else if (args[i].equals("-analyzer") && i < args.length - 1) {
+        analyzerClass = args[++i];
+      } else if (args[i].equals("-similarity") && i < args.length - 1) {
+        simClass = args[++i];
+      } else if (args[i].equals("-threads") && i < args.length - 1) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-top") && i < args.length - 1) {
+        topN = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-warmup") && i < args.length - 1) {
+        warmup = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-out") && i < args.length - 1) {
+        out = args[++i];
+      } else {
+        usage();
+        System.exit(1);
+      }
+    }
+    if (index == null || queries == null || field == null) {
+      usage();
+      System.exit(1);
+    }
+    IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(index)));
+    IndexSearcher searcher = new IndexSearcher(reader);
+    Similarity sim = (Similarity)Class.forName(simClass).newInstance();
+    searcher.setSimilarity(sim);
+    Analyzer analyzer = newAnalyzer(analyzerClass);
+    QueryParser qp = new QueryParser(Version.LUCENE_CURRENT, field, analyzer);
+    List<QueryResult> parsed = new ArrayList<QueryResult>();
+    for (String text : readQueries(new File(queries))) {
+      parsed.add(parse(text, qp));
+    }
+    QueryReplay replay = new QueryReplay(searcher, numThreads);
+    replay.setTopN(topN);
+    replay.setWarmupPasses(warmup);
+    replay.setDescription("analyzer=" + analyzer.getClass().getName() +
+        ", similarity=" + sim.getClass().getName() + ", field=" + field + ", index=" + index);
+    Result res = replay.run(parsed);
+    if (out != null) {
+      Writer w = new OutputStreamWriter(new FileOutputStream(out), "UTF-8");
+      try {
+        w.write(res.getReport());
+      } finally {
+        w.close();
+      }
+      System.out.println(res.getSummary());
+    } else {
+      System.out.print(res.getReport());
+    }
+    reader.close();
+  }
+
+  private static Analyzer newAnalyzer(String className) throws Exception {
+    Class<?> clazz = Class.forName(className);
+    try {
+      return (Analyzer)clazz.getConstructor(Version.class).newInstance(Version.LUCENE_CURRENT);
+    } catch (NoSuchMethodException e) {
+      return (Analyzer)clazz.newInstance();
+    }
+  }
+
+  private static void usage() {
+    System.out.println("\n\njava org.getopt.luke.QueryReplay -index <index dir> -queries <file> -field <default field>\n" +
+        "\t[-analyzer <class>] [-similarity <class>] [-threads N] [-top N] [-warmup N] [-out <report file>]\n\n" +
+        "\t-queries: file with one query per line, in the QueryParser syntax\n" +
+        "\t-threads N: run N queries concurrently\n" +
+        "\t-top N: collect top N hits of each query\n" +
+        "\t-warmup N: run all queries N times before timing\n");
+  }
+}
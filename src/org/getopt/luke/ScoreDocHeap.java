@@ -0,0 +1,146 @@
+package org.getopt.luke;
+
+/**
+ * Bounded heap of the best hits, kept in primitive arrays so that it can be
+ * cleared and reused without allocation. Hits are ordered by descending
+ * score, then by ascending doc id, as by TopScoreDocCollector. The arrays
+ * grow as needed, so a large capacity costs nothing until it's used.
+ */
+class ScoreDocHeap {
+  private final int capacity;
+  private int[] docs;
+  private float[] scores;
+  private int size = 0;
+  // hits in the order of ranking, built on demand
+  private int[] sortedDocs = null;
+  private float[] sortedScores = null;
+
+  public ScoreDocHeap(int capacity) {
+    this.capacity = Math.max(1, capacity);
+    int initial = Math.min(this.capacity, 1024);
+    docs = new int[initial];
+    scores = new float[initial];
+  }
+
+  // true if hit a ranks below hit b
+  private static boolean lessThan(int docA, float scoreA, int docB, float scoreB) {
+    return scoreA < scoreB || (scoreA == scoreB && docA > docB);
+  }
+
+  public void add(int doc, float score) {
+    sortedDocs = null;
+    if (size < capacity) {
+      if (size == docs.length) {
+        grow();
+      }
+      docs[size] = doc;
+      scores[size] = score;
+      upHeap(size++);
+    } else if (lessThan(docs[0], scores[0], doc, score)) {
+      docs[0] = doc;
+      scores[0] = score;
+      downHeap(0);
+    }
+  }
+
+  /** Add all hits of another heap. */
+  public void addAll(ScoreDocHeap other) {
+    for (int i = 0; i < other.size; i++) {
+      add(other.docs[i], other.scores[i]);
+    }
+  }
+
+  private void grow() {
+    int len = (int)Math.min(capacity, 2L * docs.length);
+    int[] newDocs = new int[len];
+    float[] newScores = new float[len];
+    System.arraycopy(docs, 0, newDocs, 0, size);
+    System.arraycopy(scores, 0, newScores, 0, size);
+    docs = newDocs;
+    scores = newScores;
+  }
+
+  private void upHeap(int i) {
+    int doc = docs[i];
+    float score = scores[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (!lessThan(doc, score, docs[parent], scores[parent])) break;
+      docs[i] = docs[parent];
+      scores[i] = scores[parent];
+      i = parent;
+    }
+    docs[i] = doc;
+    scores[i] = score;
+  }
+
+  private void downHeap(int i) {
+    int doc = docs[i];
+    float score = scores[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= size) break;
+      if (child + 1 < size && lessThan(docs[child + 1], scores[child + 1], docs[child], scores[child])) {
+        child++;
+      }
+      if (!lessThan(docs[child], scores[child], doc, score)) break;
+      docs[i] = docs[child];
+      scores[i] = scores[child];
+      i = child;
+    }
+    docs[i] = doc;
+    scores[i] = score;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    size = 0;
+    sortedDocs = null;
+  }
+
+  private void sort() {
+    if (sortedDocs != null) return;
+    int[] d = new int[size];
+    float[] s = new float[size];
+    System.arraycopy(docs, 0, d, 0, size);
+    System.arraycopy(scores, 0, s, 0, size);
+    // heapsort of the copy, best hits first
+    for (int end = size - 1; end > 0; end--) {
+      int doc = d[end];
+      float score = s[end];
+      d[end] = d[0];
+      s[end] = s[0];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= end) break;
+        if (child + 1 < end && lessThan(d[child + 1], s[child + 1], d[child], s[child])) {
+          child++;
+        }
+        if (!lessThan(d[child], s[child], doc, score)) break;
+        d[i] = d[child];
+        s[i] = s[child];
+        i = child;
+      }
+      d[i] = doc;
+      s[i] = score;
+    }
+    sortedScores = s;
+    sortedDocs = d;
+  }
+
+  /** @return doc id of the hit at this rank */
+  public int getDoc(int rank) {
+    sort();
+    return sortedDocs[rank];
+  }
+
+  /** @return score of the hit at this rank */
+  public float getScore(int rank) {
+    sort();
+    return sortedScores[rank];
+  }
+}
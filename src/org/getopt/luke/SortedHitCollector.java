@@ -0,0 +1,348 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.FieldInfo.DocValuesType;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SortField;
+
+/**
+ * Collects the top hits sorted by the values of a NUMERIC or SORTED
+ * DocValues field, ties broken by doc id. The field comparator and the
+ * queue are allocated once, and reused when the collector is reset.
+ * <p>Each segment is checked (once, the result is cached per segment core)
+ * whether its values are already ordered by doc id - e.g. because the index
+ * was written in the order of that field. Such segments are collected in
+ * order, and collection terminates early at the first hit that can't enter
+ * the queue, because no later hit in the segment can. This requires
+ * searching with {@link LimitedIndexSearcher}.
+ */
+public class SortedHitCollector extends AccessibleHitCollector {
+  private static final int ASCENDING = 1;
+  private static final int DESCENDING = 2;
+  // order of values in segments: core cache key -> field -> order flags
+  private static final Map<Object,Map<String,Integer>> segmentOrders =
+    new WeakHashMap<Object,Map<String,Integer>>();
+
+  private String field;
+  private DocValuesType type;
+  private boolean reverse;
+  private int size;
+  private FieldComparator<?> comparator;
+  private int[] slotDocs;
+  private float[] slotScores;
+  // slots, as a heap with the least competitive hit on top
+  private int[] heap;
+  private int count = 0;
+  private int totalHits = 0;
+  private boolean segmentSorted = false;
+  private int terminatedSegments = 0;
+  // hits in the order of ranking, built on demand
+  private int[] rankDocs = null;
+  private float[] rankScores = null;
+  private Object[] rankValues = null;
+
+  /**
+   * @param field DocValues field to sort by
+   * @param type type of DocValues, NUMERIC or SORTED
+   * @param reverse if true, sort in descending order of values
+   * @param size maximum number of hits
+   */
+  public SortedHitCollector(String field, DocValuesType type, boolean reverse,
+      int size, boolean outOfOrder, boolean shouldScore) throws IOException {
+    if (type != DocValuesType.NUMERIC && type != DocValuesType.SORTED) {
+      throw new IllegalArgumentException("Can't sort by " + type + " DocValues");
+    }
+    this.field = field;
+    this.type = type;
+    this.reverse = reverse;
+    this.size = size;
+    this.outOfOrder = outOfOrder;
+    this.shouldScore = shouldScore;
+    SortField sf = new SortField(field, type == DocValuesType.NUMERIC ?
+        SortField.Type.LONG : SortField.Type.STRING);
+    comparator = sf.getComparator(size, 0);
+    slotDocs = new int[size];
+    slotScores = new float[size];
+    heap = new int[size];
+  }
+
+  /**
+   * @return order flags of the field values in a segment, ASCENDING and / or
+   * DESCENDING, or 0 if unordered
+   */
+  static int getSegmentOrder(AtomicReader reader, String field, DocValuesType type) throws IOException {
+    Object key = reader.getCoreCacheKey();
+    synchronized (segmentOrders) {
+      Map<String,Integer> orders = segmentOrders.get(key);
+      if (orders != null && orders.containsKey(field)) {
+        return orders.get(field);
+      }
+    }
+    // segments without DocValues for the field are sorted using the
+    // FieldCache, so their order is unknown
+    int order = 0;
+    int maxDoc = reader.maxDoc();
+    if (type == DocValuesType.NUMERIC) {
+      NumericDocValues dv = reader.getNumericDocValues(field);
+      if (dv != null && maxDoc > 0) {
+        order = ASCENDING | DESCENDING;
+        long prev = dv.get(0);
+        for (int i = 1; i < maxDoc && order != 0; i++) {
+          long v = dv.get(i);
+          if (v < prev) order &= ~ASCENDING;
+          if (v > prev) order &= ~DESCENDING;
+          prev = v;
+        }
+      }
+    } else {
+      SortedDocValues dv = reader.getSortedDocValues(field);
+      if (dv != null && maxDoc > 0) {
+        order = ASCENDING | DESCENDING;
+        int prev = dv.getOrd(0);
+        for (int i = 1; i < maxDoc && order != 0; i++) {
+          int v = dv.getOrd(i);
+          if (v < prev) order &= ~ASCENDING;
+          if (v > prev) order &= ~DESCENDING;
+          prev = v;
+        }
+      }
+    }
+    synchronized (segmentOrders) {
+      Map<String,Integer> orders = segmentOrders.get(key);
+      if (orders == null) {
+        orders = new HashMap<String,Integer>();
+        segmentOrders.put(key, orders);
+      }
+      orders.put(field, order);
+    }
+    return order;
+  }
+
+  // negative if the hit in slot a ranks above the hit in slot b
+  private int compareSlots(int a, int b) {
+    int c = comparator.compare(a, b);
+    if (reverse) c = -c;
+    if (c == 0) {
+      c = slotDocs[a] < slotDocs[b] ? -1 : (slotDocs[a] > slotDocs[b] ? 1 : 0);
+    }
+    return c;
+  }
+
+  private void upHeap(int i) {
+    int slot = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (compareSlots(slot, heap[parent]) <= 0) break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = slot;
+  }
+
+  private void downHeap(int i) {
+    int slot = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= count) break;
+      if (child + 1 < count && compareSlots(heap[child + 1], heap[child]) > 0) {
+        child++;
+      }
+      if (compareSlots(heap[child], slot) <= 0) break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = slot;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    totalHits++;
+    rankDocs = null;
+    if (count == size) {
+      // positive if this doc ranks above the bottom
+      int c = reverse ? -comparator.compareBottom(doc) : comparator.compareBottom(doc);
+      if (c < 0 || (c == 0 && docBase + doc > slotDocs[heap[0]])) {
+        if (segmentSorted) {
+          // no later hit in this segment is competitive
+          terminatedSegments++;
+          throw CollectionTerminatedException.INSTANCE;
+        }
+        return;
+      }
+      int slot = heap[0];
+      comparator.copy(slot, doc);
+      slotDocs[slot] = docBase + doc;
+      slotScores[slot] = shouldScore ? scorer.score() : 1.0f;
+      downHeap(0);
+      comparator.setBottom(heap[0]);
+    } else {
+      int slot = count;
+      comparator.copy(slot, doc);
+      slotDocs[slot] = docBase + doc;
+      slotScores[slot] = shouldScore ? scorer.score() : 1.0f;
+      heap[count] = slot;
+      upHeap(count++);
+      if (count == size) {
+        comparator.setBottom(heap[0]);
+      }
+    }
+  }
+
+  @Override
+  public void setNextReader(AtomicReaderContext context) throws IOException {
+    docBase = context.docBase;
+    comparator = comparator.setNextReader(context);
+    if (count == size) {
+      comparator.setBottom(heap[0]);
+    }
+    int order = getSegmentOrder(context.reader(), field, type);
+    segmentSorted = (order & (reverse ? DESCENDING : ASCENDING)) != 0;
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) throws IOException {
+    this.scorer = scorer;
+    comparator.setScorer(scorer);
+  }
+
+  /**
+   * Segments that can terminate early must be collected in order.
+   */
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    return outOfOrder && !segmentSorted;
+  }
+
+  private void rank() {
+    if (rankDocs != null) return;
+    Integer[] slots = new Integer[count];
+    for (int i = 0; i < count; i++) {
+      slots[i] = heap[i];
+    }
+    Arrays.sort(slots, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return compareSlots(a, b);
+      }
+    });
+    int[] docs = new int[count];
+    float[] scores = new float[count];
+    Object[] values = new Object[count];
+    for (int i = 0; i < count; i++) {
+      docs[i] = slotDocs[slots[i]];
+      scores[i] = slotScores[slots[i]];
+      values[i] = comparator.value(slots[i]);
+    }
+    rankScores = scores;
+    rankValues = values;
+    rankDocs = docs;
+  }
+
+  @Override
+  public int getDocId(int pos) {
+    rank();
+    return rankDocs[pos];
+  }
+
+  @Override
+  public float getScore(int pos) {
+    rank();
+    return rankScores[pos];
+  }
+
+  /** @return value of the sort field of the hit at this position */
+  public Object getSortValue(int pos) {
+    rank();
+    return rankValues[pos];
+  }
+
+  /** @return number of hits in the queue */
+  @Override
+  public int getTotalHits() {
+    return count;
+  }
+
+  /**
+   * @return number of matching docs seen. This is a lower bound of the
+   * number of matching docs if any segment terminated early.
+   */
+  public int getMatchedHits() {
+    return totalHits;
+  }
+
+  /** @return number of segments where collection terminated early */
+  public int getTerminatedSegments() {
+    return terminatedSegments;
+  }
+
+  @Override
+  public void reset() {
+    count = 0;
+    totalHits = 0;
+    terminatedSegments = 0;
+    segmentSorted = false;
+    rankDocs = null;
+  }
+
+  @Override
+  public boolean canSplit() {
+    return true;
+  }
+
+  @Override
+  public AccessibleHitCollector newPartCollector() {
+    try {
+      return new SortedHitCollector(field, type, reverse, size, outOfOrder, shouldScore);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  @Override
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public void merge(List<AccessibleHitCollector> parts) throws IOException {
+    // comparator slots can't be moved between collectors, so merge by value
+    final FieldComparator cmp = comparator;
+    List<Object[]> hits = new ArrayList<Object[]>();
+    for (AccessibleHitCollector c : parts) {
+      SortedHitCollector part = (SortedHitCollector)c;
+      for (int i = 0; i < part.count; i++) {
+        hits.add(new Object[]{part.getSortValue(i), part.getDocId(i), part.getScore(i)});
+      }
+      totalHits += part.totalHits;
+      terminatedSegments += part.terminatedSegments;
+    }
+    Collections.sort(hits, new Comparator<Object[]>() {
+      public int compare(Object[] a, Object[] b) {
+        int c = cmp.compareValues(a[0], b[0]);
+        if (reverse) c = -c;
+        return c != 0 ? c : ((Integer)a[1]).compareTo((Integer)b[1]);
+      }
+    });
+    int n = Math.min(size, hits.size());
+    rankDocs = new int[n];
+    rankScores = new float[n];
+    rankValues = new Object[n];
+    for (int i = 0; i < n; i++) {
+      Object[] hit = hits.get(i);
+      rankValues[i] = hit[0];
+      rankDocs[i] = (Integer)hit[1];
+      rankScores[i] = (Float)hit[2];
+    }
+    // the merged hits are kept only in the ranked arrays
+    count = n;
+  }
+}
@@ -0,0 +1,183 @@
+package org.getopt.luke;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.getopt.luke.decoders.Decoder;
+
+/**
+ * Loads the values of result table columns from stored fields. Only the
+ * fields shown in the table are visited, long values are truncated to a
+ * display limit before decoding, and decoded rows are kept in a small LRU
+ * cache, so that paging back and forth doesn't reload documents.
+ * <p>A loader is bound to a reader and a set of decoders - create a new
+ * one when either of them changes.
+ */
+class StoredRowLoader {
+  /** Default maximum length of displayed values. */
+  public static final int DEFAULT_MAX_LENGTH = 256;
+  /** Default number of cached rows. */
+  public static final int DEFAULT_CACHE_SIZE = 200;
+
+  /** Decoded values of a row, one per field. */
+  static class Row {
+    String[] values;
+    boolean[] decodeErrors;
+  }
+
+  private final IndexReader reader;
+  private final String[] fields;
+  private final Map<String,Integer> fieldIdx = new HashMap<String,Integer>();
+  private final Map<String,Decoder> decoders;
+  private final Decoder defDecoder;
+  private final int maxLength;
+  private final Map<Integer,Row> cache;
+
+  /**
+   * @param reader index reader
+   * @param fields names of columns
+   * @param decoders decoders by field name. The map is copied.
+   * @param defDecoder decoder for other fields
+   * @param maxLength maximum length of displayed values
+   * @param cacheSize maximum number of cached rows
+   */
+  public StoredRowLoader(IndexReader reader, String[] fields, Map<String,Decoder> decoders,
+      Decoder defDecoder, int maxLength, final int cacheSize) {
+    this.reader = reader;
+    this.fields = fields;
+    for (int i = 0; i < fields.length; i++) {
+      fieldIdx.put(fields[i], i);
+    }
+    this.decoders = new HashMap<String,Decoder>(decoders);
+    this.defDecoder = defDecoder;
+    this.maxLength = maxLength;
+    cache = new LinkedHashMap<Integer,Row>(cacheSize, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Integer,Row> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  public IndexReader getReader() {
+    return reader;
+  }
+
+  /**
+   * Get the decoded and truncated column values of a document.
+   */
+  public synchronized Row load(int docId) throws IOException {
+    Row row = cache.get(docId);
+    if (row != null) {
+      return row;
+    }
+    ColumnVisitor visitor = new ColumnVisitor();
+    reader.document(docId, visitor);
+    row = new Row();
+    row.values = new String[fields.length];
+    row.decodeErrors = new boolean[fields.length];
+    StringBuilder vals = new StringBuilder();
+    for (int j = 0; j < fields.length; j++) {
+      List<Field> values = visitor.values[j];
+      if (values == null) {
+        row.values[j] = "";
+        continue;
+      }
+      Decoder dec = decoders.get(fields[j]);
+      if (dec == null) dec = defDecoder;
+      vals.setLength(0);
+      for (int k = 0; k < values.size() && vals.length() < maxLength; k++) {
+        if (k > 0) vals.append(' ');
+        String v;
+        try {
+          v = dec.decodeStored(fields[j], values.get(k));
+        } catch (Throwable e) {
+          e.printStackTrace();
+          v = values.get(k).stringValue();
+          row.decodeErrors[j] = true;
+        }
+        vals.append(Util.escape(v));
+      }
+      row.values[j] = truncate(vals.toString(), visitor.truncated[j]);
+    }
+    cache.put(docId, row);
+    return row;
+  }
+
+  private String truncate(String s, boolean truncated) {
+    if (s.length() > maxLength) {
+      return s.substring(0, maxLength) + "...";
+    } else if (truncated) {
+      return s + "...";
+    }
+    return s;
+  }
+
+  /** Collects values of the column fields only. */
+  private class ColumnVisitor extends StoredFieldVisitor {
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    List<Field>[] values = new List[fields.length];
+    boolean[] truncated = new boolean[fields.length];
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) throws IOException {
+      return fieldIdx.containsKey(fieldInfo.name) ? Status.YES : Status.NO;
+    }
+
+    private void add(FieldInfo fi, Field f) {
+      int idx = fieldIdx.get(fi.name);
+      if (values[idx] == null) {
+        values[idx] = new ArrayList<Field>(1);
+      }
+      values[idx].add(f);
+    }
+
+    @Override
+    public void stringField(FieldInfo fi, String value) throws IOException {
+      if (value.length() > maxLength) {
+        value = value.substring(0, maxLength);
+        truncated[fieldIdx.get(fi.name)] = true;
+      }
+      add(fi, new StoredField(fi.name, value));
+    }
+
+    @Override
+    public void binaryField(FieldInfo fi, byte[] value) throws IOException {
+      int len = value.length;
+      if (len > maxLength) {
+        len = maxLength;
+        truncated[fieldIdx.get(fi.name)] = true;
+      }
+      add(fi, new StoredField(fi.name, value, 0, len));
+    }
+
+    @Override
+    public void intField(FieldInfo fi, int value) {
+      add(fi, new StoredField(fi.name, value));
+    }
+
+    @Override
+    public void longField(FieldInfo fi, long value) {
+      add(fi, new StoredField(fi.name, value));
+    }
+
+    @Override
+    public void floatField(FieldInfo fi, float value) {
+      add(fi, new StoredField(fi.name, value));
+    }
+
+    @Override
+    public void doubleField(FieldInfo fi, double value) {
+      add(fi, new StoredField(fi.name, value));
+    }
+  }
+}
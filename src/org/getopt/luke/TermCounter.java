@@ -0,0 +1,196 @@
+package org.getopt.luke;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Observable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+
+/**
+ * Counts terms in each field of an index. {@link Terms#size()} is used when
+ * the codec exposes it (e.g. on single-segment indexes), otherwise the terms
+ * are enumerated, several fields in parallel.
+ * <p>Observers are notified with a {@link FieldTermCount} as soon as a field
+ * is counted, so that partial results can be displayed while counting
+ * continues, and with <code>null</code> when counting completes. Counting can
+ * be aborted with {@link #cancel()}.
+ */
+public class TermCounter extends Observable {
+  private static final int CHECK_INTERVAL = 4096;
+
+  private IndexReader reader;
+  private volatile int numThreads;
+  private Map<String,FieldTermCount> counts = new ConcurrentHashMap<String,FieldTermCount>();
+  private volatile boolean cancelled = false;
+  private volatile boolean done = false;
+  private long numTerms = 0;
+  private final Object countLock = new Object();
+
+  public TermCounter(IndexReader reader, int numThreads) {
+    this.reader = reader;
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Count terms in all fields. This method blocks until all fields are counted.
+   * @return map of field names to term counts
+   * @throws CancellationException if {@link #cancel()} was called
+   */
+  public Map<String,FieldTermCount> count() throws Exception {
+    synchronized (countLock) {
+      return doCount();
+    }
+  }
+
+  private Map<String,FieldTermCount> doCount() throws Exception {
+    if (done) {
+      return counts;
+    }
+    Fields fields = MultiFields.getFields(reader);
+    if (fields == null) {
+      done = true;
+      notifyCount(null);
+      return counts;
+    }
+    // first report all fields where the codec knows the number of terms
+    List<String> toScan = new ArrayList<String>();
+    List<Terms> toScanTerms = new ArrayList<Terms>();
+    Iterator<String> fe = fields.iterator();
+    while (fe.hasNext()) {
+      checkCancelled();
+      String fld = fe.next();
+      Terms terms = fields.terms(fld);
+      long size = terms == null ? 0 : terms.size();
+      if (size != -1) {
+        addCount(fld, size);
+      } else {
+        toScan.add(fld);
+        toScanTerms.add(terms);
+      }
+    }
+    if (toScan.size() == 1 || numThreads <= 1) {
+      for (int i = 0; i < toScan.size(); i++) {
+        addCount(toScan.get(i), scan(toScanTerms.get(i)));
+      }
+    } else if (toScan.size() > 0) {
+      ExecutorService pool = Util.newExecutor("TermCounter", Math.min(numThreads, toScan.size()));
+      try {
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < toScan.size(); i++) {
+          final String fld = toScan.get(i);
+          final Terms terms = toScanTerms.get(i);
+          futures.add(pool.submit(new Callable<Object>() {
+            public Object call() throws Exception {
+              addCount(fld, scan(terms));
+              return null;
+            }
+          }));
+        }
+        for (Future<?> f : futures) {
+          try {
+            f.get();
+          } catch (ExecutionException ee) {
+            Throwable t = ee.getCause();
+            if (t instanceof Exception) throw (Exception)t;
+            throw ee;
+          }
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+    }
+    checkCancelled();
+    done = true;
+    notifyCount(null);
+    return counts;
+  }
+
+  private long scan(Terms terms) throws Exception {
+    long cnt = 0;
+    TermsEnum te = terms.iterator(null);
+    while (te.next() != null) {
+      cnt++;
+      if ((cnt % CHECK_INTERVAL) == 0) {
+        checkCancelled();
+      }
+    }
+    return cnt;
+  }
+
+  private void addCount(String fld, long cnt) {
+    checkCancelled();
+    FieldTermCount ftc = new FieldTermCount();
+    ftc.fieldname = fld;
+    ftc.termCount = cnt;
+    counts.put(fld, ftc);
+    synchronized (counts) {
+      numTerms += cnt;
+    }
+    notifyCount(ftc);
+  }
+
+  private void notifyCount(FieldTermCount ftc) {
+    synchronized (counts) {
+      setChanged();
+      notifyObservers(ftc);
+    }
+  }
+
+  private void checkCancelled() {
+    if (cancelled) {
+      throw new CancellationException("Term counting cancelled.");
+    }
+  }
+
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * Abort counting. A pending {@link #count()} will throw
+   * {@link CancellationException}.
+   */
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * @return true if all fields have been counted
+   */
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * @return total number of terms counted so far
+   */
+  public long getNumTerms() {
+    synchronized (counts) {
+      return numTerms;
+    }
+  }
+
+  /**
+   * @return term counts for the fields counted so far. This map may be
+   * updated concurrently until counting is done.
+   */
+  public Map<String,FieldTermCount> getCounts() {
+    return counts;
+  }
+}
@@ -8,6 +8,10 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.document.DateTools.Resolution;
 import org.apache.lucene.document.Field;
@@ -362,6 +366,19 @@ public class Util {
     return totalFileSize;
   }
 
+  /**
+   * Format a time interval in microseconds, or in milliseconds for
+   * intervals over 100 ms.
+   */
+  public static String formatNanos(long nanos) {
+    long us = nanos / 1000;
+    if (us > 100000) {
+      return us / 1000 + " ms";
+    } else {
+      return us + " us";
+    }
+  }
+
   public static String normalizeUnit(long len) {
     if (len == 1) {
       return "  B";
@@ -383,4 +400,30 @@ public class Util {
       return String.valueOf(len / 1048576);
     }
   }
+
+  /**
+   * Default number of worker threads for parallel operations, as configured
+   * in {@link Prefs#P_THREADS} (defaults to the number of available CPUs).
+   */
+  public static int defaultThreads() {
+    int n = Prefs.getInteger(Prefs.P_THREADS, Runtime.getRuntime().availableProcessors());
+    return n < 1 ? 1 : n;
+  }
+
+  /**
+   * Create a fixed-size pool of daemon threads, so that pending background
+   * work never prevents the application from exiting.
+   * @param name prefix for thread names
+   * @param numThreads number of threads in the pool
+   */
+  public static ExecutorService newExecutor(final String name, int numThreads) {
+    return Executors.newFixedThreadPool(Math.max(1, numThreads), new ThreadFactory() {
+      private final AtomicInteger cnt = new AtomicInteger();
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, name + "-" + cnt.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
 }
@@ -2,6 +2,11 @@ package org.getopt.luke;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.lucene.document.Document;
@@ -24,6 +29,17 @@ public class XMLExporter extends Observable {
   private List<String> fieldNames;
   private Map<String,Decoder> decoders;
   private FieldInfos infos;
+  private FieldTypeProfile profile;
+  private int numThreads = 1;
+  
+  /** Number of documents serialized by a worker thread at a time. */
+  private static final int CHUNK_SIZE = 256;
+  
+  /** Size of buffered output in the sequential mode of compact formats. */
+  private static final int FLUSH_SIZE = 65536;
+  
+  /** Buffer size for compressed output. */
+  public static final int GZIP_BUFFER_SIZE = 65536;
   
   public XMLExporter(IndexReader indexReader, String indexPath,
           Map<String, Decoder> decoders) throws IOException {
@@ -38,12 +54,21 @@ public class XMLExporter extends Observable {
     }
     this.indexPath = indexPath;
     this.decoders = decoders;
+    profile = FieldTypeProfile.get(indexReader);
     // dump in predictable order
     fieldNames = new ArrayList<String>();
     fieldNames.addAll(Util.fieldNames(indexReader, false));
     Collections.sort(fieldNames);
   }
   
+  /**
+   * Set the number of threads for loading and serializing documents.
+   * With more than one thread documents are still written in order.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+  
   public void abort() {
     abort = true;
   }
@@ -56,11 +81,15 @@ public class XMLExporter extends Observable {
           String rootElementName) throws Exception {
     OutputStream out;
     if (gzip) {
-      out = new GZIPOutputStream(new FileOutputStream(outputFile));
+      out = new GZIPOutputStream(new FileOutputStream(outputFile), GZIP_BUFFER_SIZE);
     } else {
-      out = new FileOutputStream(outputFile);
+      out = new BufferedOutputStream(new FileOutputStream(outputFile));
+    }
+    try {
+      return export(out, decode, preamble, info, rootElementName, null);
+    } finally {
+      out.close();
     }
-    return export(out, decode, preamble, info, rootElementName, null);
   }
   
   /**
@@ -86,16 +115,11 @@ public class XMLExporter extends Observable {
     if (rootElementName == null) {
       rootElementName = "index";
     }
-    if (decoders == null || decoders.isEmpty()) {
-      decode = false;
-    }
     BufferedWriter bw;
     boolean rootWritten = false;
-    int delta = atomicReader.maxDoc() / 100;
-    if (delta == 0) delta = 1;
-    int cnt = 0;
     bw = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
-    Bits live = atomicReader.getLiveDocs();
+    final Bits live = atomicReader.getLiveDocs();
+    final boolean fDecode = decode;
     try {
       // write out XML preamble
       if (preamble) {
@@ -107,36 +131,25 @@ public class XMLExporter extends Observable {
         // write out some statistics
         writeIndexInfo(bw);
       }
-      Document doc = null;
-      int i = -1;
       if (ranges == null) {
         ranges = new Ranges();
         ranges.set(0, atomicReader.maxDoc());
       }
       if (ranges.cardinality() > 0) {
-        while ( (i = ranges.nextSetBit(++i)) != -1) {
-          if (i >= atomicReader.maxDoc()) {
-            break;
-          }
-          if (abort) {
-            pn.message = "User requested abort.";
-            pn.aborted = true;
-            running = false;
-            setChanged();
-            notifyObservers(pn);
-            break;
-          }
-          if (live != null && !live.get(i)) continue; // skip deleted docs
-          doc = atomicReader.document(i);
-          // write out fields
-          writeDoc(bw, i, doc, decode, live);
-          pn.curValue = i + 1;
-          cnt++;
-          if (cnt > delta) {
-            cnt = 0;
-            setChanged();
-            notifyObservers(pn);
-          }
+        if (numThreads > 1) {
+          bw.flush();
+          exportParallel(output, ranges, live, new ChunkSerializer() {
+            public void serialize(int[] docs, int len, ExportBuffer buf) throws Exception {
+              BufferedWriter w = new BufferedWriter(new OutputStreamWriter(buf, "UTF-8"));
+              for (int k = 0; k < len && !abort; k++) {
+                Document doc = atomicReader.document(docs[k]);
+                writeDoc(w, docs[k], doc, fDecode, live);
+              }
+              w.flush();
+            }
+          });
+        } else {
+          exportSequential(bw, ranges, decode, live);
         }
       }
     } catch (Exception ioe) {
@@ -171,6 +184,221 @@ public class XMLExporter extends Observable {
     return !pn.aborted;
   }
   
+  private void exportSequential(BufferedWriter bw, Ranges ranges, boolean decode,
+          Bits live) throws Exception {
+    int delta = atomicReader.maxDoc() / 100;
+    if (delta == 0) delta = 1;
+    int cnt = 0;
+    Document doc = null;
+    int i = -1;
+    while ( (i = ranges.nextSetBit(++i)) != -1) {
+      if (i >= atomicReader.maxDoc()) {
+        break;
+      }
+      if (abort) {
+        notifyAborted();
+        break;
+      }
+      if (live != null && !live.get(i)) continue; // skip deleted docs
+      doc = atomicReader.document(i);
+      // write out fields
+      writeDoc(bw, i, doc, decode, live);
+      pn.curValue = i + 1;
+      cnt++;
+      if (cnt > delta) {
+        cnt = 0;
+        setChanged();
+        notifyObservers(pn);
+      }
+    }
+  }
+  
+  /**
+   * Serializes a chunk of documents into a buffer. Implementations are
+   * called concurrently by worker threads.
+   */
+  private static interface ChunkSerializer {
+    void serialize(int[] docs, int len, ExportBuffer buf) throws Exception;
+  }
+  
+  /**
+   * Worker threads load and serialize chunks of documents into buffers, and
+   * the calling thread writes them out in the order of document numbers.
+   * At most a few chunks per thread are kept in memory, and their buffers
+   * are reused.
+   */
+  private void exportParallel(OutputStream output, Ranges ranges,
+          Bits live, final ChunkSerializer serializer) throws Exception {
+    ExecutorService pool = Util.newExecutor("XMLExporter", numThreads);
+    final ConcurrentLinkedQueue<ExportBuffer> buffers = new ConcurrentLinkedQueue<ExportBuffer>();
+    LinkedList<Future<ExportBuffer>> pending = new LinkedList<Future<ExportBuffer>>();
+    LinkedList<Integer> pendingEnds = new LinkedList<Integer>();
+    int maxPending = numThreads * 4;
+    int maxDoc = atomicReader.maxDoc();
+    int i = -1;
+    try {
+      boolean more = true;
+      while (more || !pending.isEmpty()) {
+        // keep the workers busy
+        while (more && pending.size() < maxPending) {
+          final int[] chunk = new int[CHUNK_SIZE];
+          int len = 0;
+          while (len < CHUNK_SIZE && (i = ranges.nextSetBit(++i)) != -1 && i < maxDoc) {
+            if (live != null && !live.get(i)) continue; // skip deleted docs
+            chunk[len++] = i;
+          }
+          if (i == -1 || i >= maxDoc) {
+            more = false;
+          }
+          if (len == 0) {
+            break;
+          }
+          final int chunkLen = len;
+          pending.add(pool.submit(new Callable<ExportBuffer>() {
+            public ExportBuffer call() throws Exception {
+              ExportBuffer buf = buffers.poll();
+              if (buf == null) {
+                buf = new ExportBuffer(chunkLen * 1024);
+              }
+              serializer.serialize(chunk, chunkLen, buf);
+              return buf;
+            }
+          }));
+          pendingEnds.add(chunk[len - 1]);
+        }
+        if (pending.isEmpty()) {
+          break;
+        }
+        if (abort) {
+          notifyAborted();
+          break;
+        }
+        ExportBuffer buf;
+        try {
+          buf = pending.removeFirst().get();
+        } catch (ExecutionException ee) {
+          Throwable t = ee.getCause();
+          if (t instanceof Exception) throw (Exception)t;
+          throw ee;
+        }
+        buf.writeTo(output);
+        buf.reset();
+        buffers.add(buf);
+        pn.curValue = pendingEnds.removeFirst() + 1;
+        setChanged();
+        notifyObservers(pn);
+      }
+    } finally {
+      for (Future<ExportBuffer> f : pending) {
+        f.cancel(true);
+      }
+      pool.shutdownNow();
+    }
+  }
+  
+  /**
+   * Export stored fields of documents in a compact format.
+   * @param output output stream
+   * @param format output format
+   * @param ranges if non-null then export only these ranges of documents
+   * @return true if export completed, false if it was aborted or failed
+   * @throws Exception
+   */
+  public boolean export(OutputStream output, final DocumentFormat format,
+      Ranges ranges) throws Exception {
+    running = true;
+    pn.message = "Export running ...";
+    pn.minValue = 0;
+    pn.maxValue = atomicReader.maxDoc();
+    pn.curValue = 0;
+    setChanged();
+    notifyObservers(pn);
+    if (ranges == null) {
+      ranges = new Ranges();
+      ranges.set(0, atomicReader.maxDoc());
+    }
+    Bits live = atomicReader.getLiveDocs();
+    ExportBuffer buf = new ExportBuffer(FLUSH_SIZE * 2);
+    try {
+      format.writeHeader(buf, fieldNames);
+      if (numThreads > 1) {
+        buf.writeTo(output);
+        buf.reset();
+        final ThreadLocal<DocumentFormat.Writer> writers = new ThreadLocal<DocumentFormat.Writer>() {
+          protected DocumentFormat.Writer initialValue() {
+            return format.newWriter(fieldNames);
+          }
+        };
+        exportParallel(output, ranges, live, new ChunkSerializer() {
+          public void serialize(int[] docs, int len, ExportBuffer buf) throws Exception {
+            DocumentFormat.Writer w = writers.get();
+            for (int k = 0; k < len && !abort; k++) {
+              w.startDocument(buf, docs[k]);
+              atomicReader.document(docs[k], w);
+              w.endDocument();
+            }
+          }
+        });
+      } else {
+        DocumentFormat.Writer w = format.newWriter(fieldNames);
+        int delta = atomicReader.maxDoc() / 100;
+        if (delta == 0) delta = 1;
+        int cnt = 0;
+        int i = -1;
+        while ( (i = ranges.nextSetBit(++i)) != -1) {
+          if (i >= atomicReader.maxDoc()) {
+            break;
+          }
+          if (abort) {
+            notifyAborted();
+            break;
+          }
+          if (live != null && !live.get(i)) continue; // skip deleted docs
+          w.startDocument(buf, i);
+          atomicReader.document(i, w);
+          w.endDocument();
+          if (buf.length() > FLUSH_SIZE) {
+            buf.writeTo(output);
+            buf.reset();
+          }
+          pn.curValue = i + 1;
+          cnt++;
+          if (cnt > delta) {
+            cnt = 0;
+            setChanged();
+            notifyObservers(pn);
+          }
+        }
+      }
+      format.writeFooter(buf);
+      buf.writeTo(output);
+      output.flush();
+    } catch (Exception ioe) {
+      ioe.printStackTrace();
+      pn.message = "ERROR creating output: " + ioe.toString();
+      pn.aborted = true;
+      running = false;
+      setChanged();
+      notifyObservers(pn);
+      return false;
+    }
+    if (!pn.aborted) {
+      pn.message = "Finished.";
+      setChanged();
+      notifyObservers(pn);
+    }
+    running = false;
+    return !pn.aborted;
+  }
+  
+  private void notifyAborted() {
+    pn.message = "User requested abort.";
+    pn.aborted = true;
+    running = false;
+    setChanged();
+    notifyObservers(pn);
+  }
+  
   private void writeDoc(BufferedWriter bw, int docNum, Document doc, boolean decode,
           Bits liveDocs) throws Exception {
     bw.write("<doc id='" + docNum + "'>\n");
@@ -191,7 +419,7 @@ public class XMLExporter extends Observable {
         String val = null;
         Field f = (Field)ixf;
         if (decode) {
-          Decoder d = decoders.get(f.name());
+          Decoder d = getDecoder(f.name());
           if (d != null) {
             val = d.decodeStored(f.name(), f);
           }
@@ -311,9 +539,13 @@ public class XMLExporter extends Observable {
       for (TermStats ts : topTerms) {
         String val = null;
         if (decode) {
-          Decoder d = decoders.get(ts.field);
+          Decoder d = getDecoder(ts.field);
           if (d != null) {
-            val = d.decodeTerm(ts.field, ts.termtext);
+            try {
+              val = d.decodeTerm(ts.field, ts.termtext.utf8ToString());
+            } catch (Exception e) {
+              // mismatched decoder, use the raw value
+            }
           }
         }
         if (!decode || val == null) {
@@ -329,6 +561,18 @@ public class XMLExporter extends Observable {
     bw.write("</info>\n");    
   }
 
+  /**
+   * Get the decoder for a field - either the one explicitly set, or the
+   * default one for the detected field type.
+   */
+  private Decoder getDecoder(String field) {
+    Decoder d = decoders != null ? decoders.get(field) : null;
+    if (d == null) {
+      d = profile.getDefaultDecoder(field);
+    }
+    return d;
+  }
+
   /**
    * @return the running
    */
@@ -338,11 +582,14 @@ public class XMLExporter extends Observable {
   
   public static void main(String[] args) throws Exception {
     if (args.length < 2) {
-      System.err.println("Usage: XMLExporter <indexPath> <outputFile> [-gzip] [-onlyInfo] [-range ..expr..]");
+      System.err.println("Usage: XMLExporter <indexPath> <outputFile> [-gzip] [-onlyInfo] [-threads N] [-format xml|jsonl|bin] [-range ..expr..]");
       System.err.println("\tindexPath\tname of the directory containing the index");
       System.err.println("\toutputFile\toutput file, or '-' for System.out");
       System.err.println("\tgzip\tcompress output using gzip compression");
       System.err.println("\tonlyInfo\texport only the overall information about the index");
+      System.err.println("\tthreads\tload and serialize documents using N threads");
+      System.err.println("\tformat\toutput format: xml (default), jsonl (JSON lines) or bin (binary).");
+      System.err.println("\t\tOnly xml includes the index info section.");
       System.err.println("\trange\tspecify ranges of documents to export. Expressions cannot contain whitespace!");
       System.err.println("\t\tExample: 0-5,15,32-100,101,103,105-500");
       System.exit(-1);
@@ -361,6 +608,8 @@ public class XMLExporter extends Observable {
     boolean gzip = false;
     Ranges ranges = null;
     boolean onlyInfo = false;
+    int numThreads = 1;
+    DocumentFormat format = null;
     for (int i = 2; i < args.length; i++) {
       if (args[i].equals("-gzip")) {
         gzip = true;
@@ -368,12 +617,23 @@ public class XMLExporter extends Observable {
         ranges = Ranges.parse(args[++i]);
       } else if (args[i].equals("-onlyInfo")) {
         onlyInfo = true;
+      } else if (args[i].equals("-threads")) {
+        numThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-format")) {
+        String name = args[++i];
+        if (!name.equals("xml")) {
+          format = DocumentFormat.forName(name);
+          if (format == null) {
+            throw new Exception("Unknown format: '" + name + "'");
+          }
+        }
       } else {
         throw new Exception("Unknown argument: '" + args[i] + "'");
       }
     }
     DirectoryReader reader = DirectoryReader.open(dir);
     XMLExporter exporter = new XMLExporter(reader, args[0], null);
+    exporter.setNumThreads(numThreads);
     OutputStream os;
     if (out == null) {
       os = System.out;
@@ -381,12 +641,18 @@ public class XMLExporter extends Observable {
       os = new FileOutputStream(out);
     }
     if (gzip) {
-      os = new GZIPOutputStream(os);
+      os = new GZIPOutputStream(os, GZIP_BUFFER_SIZE);
+    } else {
+      os = new BufferedOutputStream(os);
     }
     if (onlyInfo) {
       ranges = new Ranges();
     }
-    exporter.export(os, false, false, true, "index", ranges);
+    if (format != null) {
+      exporter.export(os, format, ranges);
+    } else {
+      exporter.export(os, false, false, true, "index", ranges);
+    }
     os.flush();
     os.close();
     System.exit(0);
@@ -0,0 +1,357 @@
+package org.getopt.luke.plugins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+/**
+ * Measures the throughput of analyzers, as when indexing: values from the
+ * input are streamed through the analyzer one by one, reusing its
+ * TokenStream, and the terms of all tokens are converted to bytes.
+ * Each analyzer is warmed up on the first values of the input before the
+ * measured pass. The bytes allocated per token are measured on JVMs that
+ * report per-thread allocations, after subtracting the allocations made
+ * by reading the input.
+ */
+public class AnalyzerBenchmark {
+  /** Number of values used to warm up each analyzer. */
+  public static final int WARMUP_VALUES = 1000;
+
+  private static ThreadMXBean threadBean = null;
+  private static Method allocatedBytes = null;
+
+  static {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      Class<?> clazz = Class.forName("com.sun.management.ThreadMXBean");
+      if (clazz.isInstance(bean)) {
+        Method supported = clazz.getMethod("isThreadAllocatedMemorySupported");
+        if ((Boolean)supported.invoke(bean)) {
+          allocatedBytes = clazz.getMethod("getThreadAllocatedBytes", long.class);
+          threadBean = bean;
+        }
+      }
+    } catch (Throwable t) {
+      // not available on this JVM
+    }
+  }
+
+  /**
+   * @return bytes allocated so far by the current thread, or -1 if unknown
+   */
+  static long allocatedBytes() {
+    if (allocatedBytes == null) {
+      return -1;
+    }
+    try {
+      return (Long)allocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+    } catch (Exception e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Source of field values. Each pass starts with {@link #open()}.
+   */
+  public static abstract class Input {
+    protected String field;
+    protected String value;
+
+    public abstract void open() throws IOException;
+
+    /** @return false if there are no more values in this pass */
+    public abstract boolean next() throws IOException;
+
+    public abstract void close() throws IOException;
+
+    /** @return size of the values of a pass, in UTF-8 bytes */
+    public abstract long getBytes();
+
+    public String getField() {
+      return field;
+    }
+
+    public String getValue() {
+      return value;
+    }
+  }
+
+  /**
+   * Input that streams the lines of a UTF-8 text file, each line as one
+   * value of the given field.
+   */
+  public static class FileInput extends Input {
+    private File file;
+    private BufferedReader in = null;
+
+    public FileInput(File file, String field) {
+      this.file = file;
+      this.field = field;
+    }
+
+    public void open() throws IOException {
+      close();
+      in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"), 65536);
+    }
+
+    public boolean next() throws IOException {
+      value = in.readLine();
+      return value != null;
+    }
+
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+        in = null;
+      }
+    }
+
+    public long getBytes() {
+      return file.length();
+    }
+  }
+
+  /**
+   * Input of stored string values, from documents sampled evenly from an
+   * index. The values are loaded once and kept in memory.
+   */
+  public static class SampleInput extends Input {
+    private List<String> fields = new ArrayList<String>();
+    private List<String> values = new ArrayList<String>();
+    private long bytes = 0;
+    private int pos;
+    private int docs = 0;
+
+    /**
+     * @param maxDocs maximum number of documents to sample
+     */
+    public SampleInput(IndexReader reader, int maxDocs) throws IOException {
+      int maxDoc = reader.maxDoc();
+      Bits live = MultiFields.getLiveDocs(reader);
+      int step = Math.max(1, maxDoc / Math.max(1, maxDocs));
+      for (int i = 0; i < maxDoc && docs < maxDocs; i += step) {
+        if (live != null && !live.get(i)) {
+          continue;
+        }
+        Document doc = reader.document(i);
+        for (IndexableField f : doc.getFields()) {
+          String v = f.stringValue();
+          if (v == null) {
+            continue;
+          }
+          fields.add(f.name());
+          values.add(v);
+          bytes += utf8Length(v);
+        }
+        docs++;
+      }
+    }
+
+    private static int utf8Length(String s) {
+      int len = 0;
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        if (c < 0x80) {
+          len++;
+        } else if (c < 0x800) {
+          len += 2;
+        } else if (Character.isHighSurrogate(c)) {
+          len += 4;
+          i++;
+        } else {
+          len += 3;
+        }
+      }
+      return len;
+    }
+
+    public void open() {
+      pos = 0;
+    }
+
+    public boolean next() {
+      if (pos >= values.size()) {
+        return false;
+      }
+      field = fields.get(pos);
+      value = values.get(pos);
+      pos++;
+      return true;
+    }
+
+    public void close() {
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    /** @return number of sampled documents */
+    public int getDocs() {
+      return docs;
+    }
+
+    /** @return number of sampled values */
+    public int getValues() {
+      return values.size();
+    }
+  }
+
+  /**
+   * Result of a measured pass.
+   */
+  public static class Result {
+    public String name;
+    public long values;
+    public long tokens;
+    public long bytes;
+    public long elapsed;
+    /** bytes allocated by the analysis, or -1 if unknown */
+    public long allocated = -1;
+
+    public double getTokensPerSec() {
+      return elapsed == 0 ? 0 : tokens * 1e9 / elapsed;
+    }
+
+    public double getMBPerSec() {
+      return elapsed == 0 ? 0 : bytes * 1e9 / elapsed / (1024 * 1024);
+    }
+
+    /** @return bytes allocated per token, or -1 if unknown */
+    public double getBytesPerToken() {
+      if (allocated < 0) {
+        return -1;
+      }
+      return tokens == 0 ? 0 : (double)allocated / tokens;
+    }
+  }
+
+  /** Reader over a string, that can be reset to another string. */
+  private static class ReusableStringReader extends Reader {
+    private String s = null;
+    private int pos = 0;
+
+    void setValue(String s) {
+      this.s = s;
+      pos = 0;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+      if (pos >= s.length()) {
+        return -1;
+      }
+      int n = Math.min(len, s.length() - pos);
+      s.getChars(pos, pos + n, cbuf, off);
+      pos += n;
+      return n;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  private Input input;
+  private Result baseline = null;
+  private final ReusableStringReader reader = new ReusableStringReader();
+  // the last TokenStream, and its term attribute
+  private TokenStream lastStream = null;
+  private TermToBytesRefAttribute termAtt = null;
+
+  public AnalyzerBenchmark(Input input) {
+    this.input = input;
+  }
+
+  /**
+   * Measure reading the input, without analysis. This is subtracted from
+   * the allocations of analyzers.
+   */
+  public Result getBaseline() throws IOException {
+    if (baseline == null) {
+      pass(null, Integer.MAX_VALUE, new Result());
+      baseline = new Result();
+      baseline.name = "(input only)";
+      pass(null, Integer.MAX_VALUE, baseline);
+    }
+    return baseline;
+  }
+
+  /**
+   * Warm up the analyzer, then measure a pass over the whole input.
+   * @param name name of the analyzer in the result
+   */
+  public Result run(String name, Analyzer analyzer) throws IOException {
+    Result base = getBaseline();
+    pass(analyzer, WARMUP_VALUES, new Result());
+    Result res = new Result();
+    res.name = name;
+    pass(analyzer, Integer.MAX_VALUE, res);
+    if (res.allocated >= 0 && base.allocated >= 0) {
+      res.allocated = Math.max(0, res.allocated - base.allocated);
+    }
+    return res;
+  }
+
+  private void pass(Analyzer analyzer, int maxValues, Result res) throws IOException {
+    long alloc = allocatedBytes();
+    long start = System.nanoTime();
+    long values = 0;
+    long tokens = 0;
+    input.open();
+    try {
+      while (values < maxValues && input.next()) {
+        values++;
+        if (analyzer != null) {
+          tokens += analyze(analyzer, input.getField(), input.getValue());
+        }
+      }
+    } finally {
+      input.close();
+    }
+    res.elapsed = System.nanoTime() - start;
+    long allocEnd = allocatedBytes();
+    res.allocated = alloc < 0 || allocEnd < 0 ? -1 : allocEnd - alloc;
+    res.values = values;
+    res.tokens = tokens;
+    res.bytes = input.getBytes();
+  }
+
+  private int analyze(Analyzer analyzer, String field, String value) throws IOException {
+    reader.setValue(value);
+    TokenStream ts = analyzer.tokenStream(field, reader);
+    if (ts != lastStream) {
+      lastStream = ts;
+      termAtt = ts.hasAttribute(TermToBytesRefAttribute.class) ?
+          ts.getAttribute(TermToBytesRefAttribute.class) : null;
+    }
+    int tokens = 0;
+    ts.reset();
+    while (ts.incrementToken()) {
+      if (termAtt != null) {
+        termAtt.fillBytesRef();
+      }
+      tokens++;
+    }
+    ts.end();
+    ts.close();
+    return tokens;
+  }
+}
@@ -1,8 +1,11 @@
 package org.getopt.luke.plugins;
 
+import java.io.File;
 import java.io.StringReader;
 import java.lang.reflect.Constructor;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.Token;
@@ -19,6 +22,7 @@ import org.apache.lucene.util.AttributeSource;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
 import org.getopt.luke.LukePlugin;
+import org.getopt.luke.SlowThread;
 import org.getopt.luke.Util;
 
 public class AnalyzerToolPlugin extends LukePlugin {
@@ -67,6 +71,13 @@ public class AnalyzerToolPlugin extends LukePlugin {
       }
       app.add(combobox, choice);
     }
+    Object benchList = app.find(myUi, "benchAnalyzers");
+    app.removeAll(benchList);
+    for (int i = 0; i < analyzers.length; i++) {
+      Object item = app.create("item");
+      app.setString(item, "text", analyzers[i].getName());
+      app.add(benchList, item);
+    }
     app.setInteger(combobox, "selected", 0);
     app.setString(combobox, "text", firstClass);
     Object aVersion = app.find(myUi, "aVersion");
@@ -85,6 +96,29 @@ public class AnalyzerToolPlugin extends LukePlugin {
     return true;
   }
   
+  /**
+   * Create an analyzer, using the constructor that takes a Version if there
+   * is one.
+   * @return the analyzer, or null if it can't be created
+   */
+  private Analyzer createAnalyzer(String classname, Version v) throws Exception {
+    Class clazz = Class.forName(classname);
+    try {
+      Constructor<Analyzer> c = clazz.getConstructor(Version.class);
+      return c.newInstance(v);
+    } catch (Throwable t) {
+      try {
+        // no constructor with Version ?
+        return (Analyzer)clazz.newInstance();
+      } catch (Throwable t1) {
+        t1.printStackTrace();
+        app
+              .showStatus("Couldn't instantiate analyzer - public 0-arg or 1-arg constructor(Version) required");
+        return null;
+      }
+    }
+  }
+
   public void analyze() {
     try {
       Object combobox = app.find(myUi, "analyzers");
@@ -93,21 +127,9 @@ public class AnalyzerToolPlugin extends LukePlugin {
       String classname = app.getString(combobox, "text");
       Object choice = app.getSelectedItem(app.find(myUi, "aVersion"));
       Version v = (Version)app.getProperty(choice, "version");
-      Class clazz = Class.forName(classname);
-      Analyzer analyzer = null;
-      try {
-        Constructor<Analyzer> c = clazz.getConstructor(Version.class);
-        analyzer = c.newInstance(v);
-      } catch (Throwable t) {
-        try {
-          // no constructor with Version ?
-          analyzer = (Analyzer)clazz.newInstance();
-        } catch (Throwable t1) {
-          t1.printStackTrace();
-          app
-                .showStatus("Couldn't instantiate analyzer - public 0-arg or 1-arg constructor(Version) required");
-          return;
-        }
+      Analyzer analyzer = createAnalyzer(classname, v);
+      if (analyzer == null) {
+        return;
       }
       TokenStream ts = analyzer.tokenStream("text", new StringReader(app
               .getString(inputText, "text")));
@@ -126,6 +148,96 @@ public class AnalyzerToolPlugin extends LukePlugin {
     tokenChange();
   }
 
+  /**
+   * Measure the throughput of the selected analyzer, and of the analyzers
+   * selected for comparison, on a corpus file or on stored values sampled
+   * from the index.
+   */
+  public void benchmark() {
+    final Object table = app.find(myUi, "benchTable");
+    final Object status = app.find(myUi, "benchStatus");
+    final List<String> names = new ArrayList<String>();
+    names.add(app.getString(app.find(myUi, "analyzers"), "text"));
+    for (Object item : app.getSelectedItems(app.find(myUi, "benchAnalyzers"))) {
+      String name = app.getString(item, "text");
+      if (!names.contains(name)) {
+        names.add(name);
+      }
+    }
+    Object choice = app.getSelectedItem(app.find(myUi, "aVersion"));
+    final Version v = (Version)app.getProperty(choice, "version");
+    final boolean fromFile = app.getBoolean(app.find(myUi, "benchSrcFile"), "selected");
+    final String path = app.getString(app.find(myUi, "benchFile"), "text").trim();
+    final int maxDocs = app.getInteger(app.find(myUi, "benchDocs"), "value");
+    if (fromFile) {
+      if (path.length() == 0 || !new File(path).isFile()) {
+        app.errorMsg("Corpus file not found: '" + path + "'");
+        return;
+      }
+    } else if (ir == null) {
+      app.showStatus("No index loaded");
+      return;
+    }
+    app.removeAll(table);
+    SlowThread st = new SlowThread(app) {
+      public void execute() {
+        try {
+          AnalyzerBenchmark.Input input;
+          String source;
+          if (fromFile) {
+            input = new AnalyzerBenchmark.FileInput(new File(path), "text");
+            source = path;
+          } else {
+            AnalyzerBenchmark.SampleInput sample = new AnalyzerBenchmark.SampleInput(ir, maxDocs);
+            input = sample;
+            source = sample.getValues() + " values from " + sample.getDocs() + " docs";
+          }
+          AnalyzerBenchmark bench = new AnalyzerBenchmark(input);
+          addBenchRow(table, bench.getBaseline());
+          for (int i = 0; i < names.size(); i++) {
+            app.setString(status, "text", "Running " + (i + 1) + " of " + names.size() + "...");
+            Analyzer a = createAnalyzer(names.get(i), v);
+            if (a == null) {
+              continue;
+            }
+            addBenchRow(table, bench.run(names.get(i), a));
+            a.close();
+          }
+          app.setString(status, "text", Util.normalizeSize(input.getBytes()) +
+              Util.normalizeUnit(input.getBytes()) + " - " + source);
+        } catch (Throwable t) {
+          t.printStackTrace();
+          app.setString(status, "text", "");
+          app.showStatus("ERROR: " + t.getMessage());
+        }
+      }
+    };
+    st.start();
+  }
+
+  private void addBenchRow(Object table, AnalyzerBenchmark.Result res) {
+    String name = res.name;
+    if (name.startsWith("org.apache.lucene.analysis.")) {
+      name = name.substring("org.apache.lucene.analysis.".length());
+    }
+    double bpt = res.getBytesPerToken();
+    String[] texts = new String[] {
+        name,
+        String.valueOf(res.tokens),
+        Util.formatNanos(res.elapsed),
+        res.tokens == 0 ? "-" : String.format("%.0f", res.getTokensPerSec()),
+        String.format("%.1f", res.getMBPerSec()),
+        res.tokens == 0 ? "-" : (bpt < 0 ? "n/a" : String.format("%.1f", bpt))
+    };
+    Object row = app.create("row");
+    for (String t : texts) {
+      Object cell = app.create("cell");
+      app.setString(cell, "text", t);
+      app.add(row, cell);
+    }
+    app.add(table, row);
+  }
+
   public void tokenChange() {
     Object table = app.find(myUi, "tokenAtts");
     app.removeAll(table);
@@ -0,0 +1,161 @@
+package org.getopt.luke.plugins;
+
+import java.util.Arrays;
+
+/**
+ * Distribution of term document frequencies, collected in bounded memory.
+ * Most terms have a low df, so dfs up to a limit are counted in a fixed
+ * histogram. Higher dfs are kept in a heap of the top K values; dfs pushed
+ * out of the heap are only counted and summed, by powers of two. The
+ * distribution is exact as long as no more than K terms exceed the
+ * histogram.
+ */
+class DfDistribution {
+  public static final int DEFAULT_HISTOGRAM_SIZE = 65536;
+  public static final int DEFAULT_TOP_K = 10000;
+
+  // histogram[df - 1] = number of terms with this df
+  private final int[] histogram;
+  // min-heap of the highest dfs above the histogram
+  private final int[] heap;
+  private int heapSize = 0;
+  // counts and sums of dfs pushed out of the heap, by floor(log2(df))
+  private final long[] overflowCounts = new long[32];
+  private final long[] overflowSums = new long[32];
+  private long numTerms = 0;
+
+  public DfDistribution() {
+    this(DEFAULT_HISTOGRAM_SIZE, DEFAULT_TOP_K);
+  }
+
+  public DfDistribution(int histogramSize, int topK) {
+    histogram = new int[histogramSize];
+    heap = new int[topK];
+  }
+
+  public void add(int df) {
+    numTerms++;
+    if (df <= histogram.length) {
+      histogram[Math.max(df, 1) - 1]++;
+      return;
+    }
+    if (heapSize < heap.length) {
+      heap[heapSize] = df;
+      upHeap(heapSize++);
+      return;
+    }
+    int evicted = df;
+    if (df > heap[0]) {
+      evicted = heap[0];
+      heap[0] = df;
+      downHeap(0);
+    }
+    int b = 31 - Integer.numberOfLeadingZeros(evicted);
+    overflowCounts[b]++;
+    overflowSums[b] += evicted;
+  }
+
+  private void upHeap(int i) {
+    int v = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (heap[parent] <= v) break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = v;
+  }
+
+  private void downHeap(int i) {
+    int v = heap[i];
+    while (true) {
+      int child = 2 * i + 1;
+      if (child >= heapSize) break;
+      if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+        child++;
+      }
+      if (heap[child] >= v) break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = v;
+  }
+
+  public long getNumTerms() {
+    return numTerms;
+  }
+
+  /** @return true if dfs were pushed out of the heap, so the result is approximate */
+  public boolean isApproximate() {
+    for (long c : overflowCounts) {
+      if (c > 0) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Split the terms, ordered by descending df, into buckets of equal
+   * numbers of terms.
+   * @return average df of the terms in each bucket
+   */
+  public float[] getBucketAverages(int numBuckets) {
+    if (numTerms == 0) {
+      return new float[0];
+    }
+    long termsPerBucket = Math.max(1, numTerms / numBuckets);
+    Buckets buckets = new Buckets((int)Math.min(numTerms / termsPerBucket + 1, Integer.MAX_VALUE), termsPerBucket);
+    int[] top = Arrays.copyOf(heap, heapSize);
+    Arrays.sort(top);
+    for (int i = top.length - 1; i >= 0; i--) {
+      buckets.add(top[i], 1);
+    }
+    for (int b = overflowCounts.length - 1; b >= 0; b--) {
+      if (overflowCounts[b] > 0) {
+        buckets.add((double)overflowSums[b] / overflowCounts[b], overflowCounts[b]);
+      }
+    }
+    for (int i = histogram.length - 1; i >= 0; i--) {
+      if (histogram[i] > 0) {
+        buckets.add(i + 1, histogram[i]);
+      }
+    }
+    return buckets.getAverages();
+  }
+
+  private static class Buckets {
+    private final double[] totals;
+    private final long[] counts;
+    private final long termsPerBucket;
+    private int current = 0;
+
+    Buckets(int size, long termsPerBucket) {
+      totals = new double[size];
+      counts = new long[size];
+      this.termsPerBucket = termsPerBucket;
+    }
+
+    // add n terms of this df, starting new buckets as they fill up
+    void add(double df, long n) {
+      while (n > 0) {
+        // the last bucket takes any remainder
+        long room = current == counts.length - 1 ? n : termsPerBucket - counts[current];
+        long take = Math.min(n, room);
+        totals[current] += df * take;
+        counts[current] += take;
+        n -= take;
+        if (counts[current] >= termsPerBucket && current < counts.length - 1) {
+          current++;
+        }
+      }
+    }
+
+    float[] getAverages() {
+      int len = counts[current] == 0 ? current : current + 1;
+      float[] res = new float[len];
+      for (int i = 0; i < len; i++) {
+        res[i] = (float)(totals[i] / counts[i]);
+      }
+      return res;
+    }
+  }
+}
@@ -24,25 +24,14 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Collection;
 import java.util.Random;
 
-import net.sf.ehcache.Cache;
-import net.sf.ehcache.CacheManager;
-import net.sf.ehcache.Element;
-import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
-
-import org.apache.log4j.Level;
-import org.apache.log4j.LogManager;
 import org.apache.lucene.store.*;
 import org.apache.hadoop.fs.*;
 import org.apache.hadoop.util.StringUtils;
 import org.apache.hadoop.conf.Configuration;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /** Reads a Lucene index stored in DFS. This is a modified version of a class
  * with the same purpose found in org.apache.nutch.indexer. */
 public class FsDirectory extends Directory {
-  private static final Logger LOG = LoggerFactory.getLogger(FsDirectory.class);
-
   private FileSystem fs;
   private Path directory;
   private int ioFileBufferSize;
@@ -52,12 +41,25 @@ public class FsDirectory extends Directory {
     public void reportIO(String name, long bytes, boolean read) { }
     @Override
     public void reportStatus(String msg) { }
+    @Override
+    public void reportCache(long hits, long misses) { }
   }
   
   public static final IOReporter NULL_REPORTER = new NullReporter();
 
   private IOReporter reporter;
-  Cache cache;
+  private PageCache cache;
+  
+  /** Default size of aligned blocks read from the file system. */
+  public static final int DEFAULT_BLOCK_SIZE = 32768;
+  /** Default number of blocks to read at once on sequential access. */
+  public static final int DEFAULT_READ_AHEAD = 4;
+  
+  private int readAheadBlocks = DEFAULT_READ_AHEAD;
+  
+  /** Minimum interval between reports of the cache counters, in ms. */
+  public static final long CACHE_REPORT_INTERVAL = 500;
+  private volatile long nextCacheReport = System.nanoTime();
   
   public FsDirectory(FileSystem fs, Path directory, boolean create, Configuration conf,
           IOReporter reporter, int bufSize)
@@ -66,19 +68,7 @@ public class FsDirectory extends Directory {
     this.directory = directory;
     this.reporter = reporter;
     this.ioFileBufferSize = bufSize;
-    String diskCacheDir = new File(conf.get("hadoop.tmp.dir"), "fsdir-cache").toString();
-    LogManager.getLogger(FsDirectory.class).setLevel(Level.WARN);
-    CacheManager mgr = CacheManager.create();
-    synchronized(mgr) {
-      cache = mgr.getCache("dfsin");
-      if (cache == null) {
-        cache = new Cache("dfsin", 2000, MemoryStoreEvictionPolicy.LFU,
-                true, diskCacheDir, false, 1800, 600, false, 300, null);
-        mgr.addCache(cache);
-        cache = mgr.getCache("dfsin");
-        LOG.info("Created cache: " + cache.toString());
-      }
-    }
+    this.cache = PageCache.getDefault();
     if (create) {
       create();
     }
@@ -186,6 +176,29 @@ public class FsDirectory extends Directory {
     };
   }
 
+  /**
+   * Set the cache of blocks read by this directory. Blocks are aligned
+   * to the page size of the cache.
+   */
+  public void setPageCache(PageCache cache) {
+    this.cache = cache;
+  }
+  
+  public PageCache getPageCache() {
+    return cache;
+  }
+  
+  /**
+   * Set the number of blocks to read at once when reading sequentially.
+   */
+  public void setReadAheadBlocks(int readAheadBlocks) {
+    this.readAheadBlocks = Math.max(1, readAheadBlocks);
+  }
+  
+  public int getReadAheadBlocks() {
+    return readAheadBlocks;
+  }
+
   public synchronized void close() throws IOException {
     fs.close();
   }
@@ -194,76 +207,92 @@ public class FsDirectory extends Directory {
     return this.getClass().getName() + "@" + directory;
   }
 
+  /**
+   * Reads aligned blocks, one page of the {@link PageCache} each, using
+   * positional reads, so that clones never contend for a shared stream
+   * position. Sequential access triggers reading several blocks ahead in
+   * one request.
+   */
   private class DfsIndexInput extends BufferedIndexInput {
 
-    /** Shared by clones. */
-    private class Descriptor {
-      public FSDataInputStream in;
-      public long position;                       // cache of in.getPos()
-      public Descriptor(Path file, int ioFileBufferSize) throws IOException {
-        this.in = fs.open(file);
-      }
-    }
-
-    private final Descriptor descriptor;
+    /** Shared by clones, only positional reads are used. */
+    private final FSDataInputStream in;
     private final long length;
+    private final PageCache cache;
+    private final int blockSize;
+    private final int fileId;
     private boolean isClone;
     private IOReporter reporter;
     private String name;
-    private String keyPrefix;
+    private long lastBlock = -2;
+    private byte[] readBuffer = null;
 
     public DfsIndexInput(Path path, int ioFileBufferSize, IOReporter reporter) throws IOException {
       super(path.getName(), ioFileBufferSize);
-      descriptor = new Descriptor(path,ioFileBufferSize);
-      length = fs.getFileStatus(path).getLen();
+      FileStatus stat = fs.getFileStatus(path);
+      in = fs.open(path);
+      length = stat.getLen();
+      cache = FsDirectory.this.cache;
+      blockSize = cache.getPageSize();
+      fileId = cache.getFileId(stat.getPath().toString(), stat.getModificationTime(), length);
       this.reporter = reporter;
       this.name = path.getName();
-      keyPrefix = path.toString() + ":";
     }
 
     protected void readInternal(byte[] b, int offset, int len)
       throws IOException {
-      synchronized (descriptor) {
-        long position = getFilePointer();
-        // check cache
-        String key = keyPrefix + position + "+" + len;
-        //LOG.info("check key=" + key);
-        Element el = cache.get(key);
-        if (el != null) {
-          LOG.info(cache.getStatistics().toString());
-          //LOG.info("cache hit, key=" + key);
-          byte[] data = (byte[])el.getObjectValue();
-          assert data.length == len;
-          System.arraycopy(data, 0, b, offset, len);
-          reporter.reportIO(name, len, false);
-          return;
-        }
-        //LOG.info("cache miss, key=" + key);
-        if (position != descriptor.position) {
-          //reporter.reportStatus("seek " + name + ": " + descriptor.position + " -> " + position
-          //        + " (delta " + (position - descriptor.position) + ")");
-          descriptor.in.seek(position);
-          descriptor.position = position;
+      long position = getFilePointer();
+      if (position + len > length) {
+        throw new IOException("read past EOF");
+      }
+      while (len > 0) {
+        long blockNum = position / blockSize;
+        int blockOff = (int)(position % blockSize);
+        int n = Math.min(len, blockSize - blockOff);
+        if (cache.read(fileId, blockNum, blockOff, b, offset, n)) {
+          reporter.reportIO(name, n, false);
+        } else {
+          readBlocks(blockNum);
+          System.arraycopy(readBuffer, blockOff, b, offset, n);
         }
-        int total = 0;
-        do {
-          int i = descriptor.in.read(b, offset+total, len-total);
-          reporter.reportIO(name, i, true);
-          if (i == -1)
-            throw new IOException("read past EOF");
-          descriptor.position += i;
-          total += i;
-        } while (total < len);
-        // add this data to cache
-        byte[] data = new byte[len];
-        System.arraycopy(b, offset, data, 0, len);
-        cache.put(new Element(key, data));
+        lastBlock = blockNum;
+        position += n;
+        offset += n;
+        len -= n;
+      }
+      // summing the counters locks every stripe of the cache, so report
+      // them only now and then
+      long now = System.nanoTime();
+      if (now - nextCacheReport >= 0) {
+        nextCacheReport = now + CACHE_REPORT_INTERVAL * 1000000L;
+        reporter.reportCache(cache.getHits(), cache.getMisses());
+      }
+    }
+
+    /**
+     * Read a block, and on sequential access also the following blocks,
+     * into the read buffer and the cache.
+     */
+    private void readBlocks(long blockNum) throws IOException {
+      int numBlocks = 1;
+      if (blockNum == lastBlock + 1) { // sequential access, read ahead
+        numBlocks = readAheadBlocks;
+      }
+      long start = blockNum * blockSize;
+      int total = (int)Math.min((long)numBlocks * blockSize, length - start);
+      if (readBuffer == null || readBuffer.length < total) {
+        readBuffer = new byte[total];
+      }
+      in.readFully(start, readBuffer, 0, total);
+      reporter.reportIO(name, total, true);
+      for (int i = 0, off = 0; off < total; i++, off += blockSize) {
+        cache.put(fileId, blockNum + i, readBuffer, off, Math.min(blockSize, total - off));
       }
     }
 
     public void close() throws IOException {
       if (!isClone) {
-        descriptor.in.close();
+        in.close();
       }
     }
 
@@ -281,6 +310,8 @@ public class FsDirectory extends Directory {
     public BufferedIndexInput clone() {
       DfsIndexInput clone = (DfsIndexInput)super.clone();
       clone.isClone = true;
+      clone.lastBlock = -2;
+      clone.readBuffer = null;
       return clone;
     }
   }
@@ -5,6 +5,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.TreeMap;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
@@ -17,6 +22,7 @@ import org.apache.lucene.index.MultiReader;
 import org.getopt.luke.IntPair;
 import org.getopt.luke.LukePlugin;
 import org.getopt.luke.SlowThread;
+import org.getopt.luke.Util;
 
 public class HadoopPlugin extends LukePlugin {
   
@@ -28,9 +34,17 @@ public class HadoopPlugin extends LukePlugin {
   private Object indexUri;
   private Object total;
   private Object bufSize;
+  private Object blockSizeField;
+  private Object readAheadField;
+  private Object cacheSizeField;
+  private Object cacheStats;
   private IndexReader myIr = null;
   private int parts = 0;
   private int bufferSize = 4096;
+  private int blockSize = FsDirectory.DEFAULT_BLOCK_SIZE;
+  private long cacheSize = PageCache.DEFAULT_CAPACITY;
+  private int readAhead = FsDirectory.DEFAULT_READ_AHEAD;
+  private AtomicInteger opened = new AtomicInteger();
 
   @Override
   public String getPluginHome() {
@@ -62,6 +76,10 @@ public class HadoopPlugin extends LukePlugin {
     indexUri = app.find(myUi, "indexUri");
     total = app.find(myUi, "totalBytes");
     bufSize = app.find(myUi, "bufSize");
+    blockSizeField = app.find(myUi, "blockSize");
+    readAheadField = app.find(myUi, "readAhead");
+    cacheSizeField = app.find(myUi, "cacheSize");
+    cacheStats = app.find(myUi, "cacheStats");
     if (ir != myIr) {
       // reset ui
       lastMsg = "?";
@@ -70,6 +88,7 @@ public class HadoopPlugin extends LukePlugin {
       app.setInteger(bar, "value", 0);
       totalBytes = 0;
       app.setString(total, "text", "");
+      app.setString(cacheStats, "text", "");
     }
     app.setString(status, "text", lastMsg);
     return false;
@@ -95,6 +114,21 @@ public class HadoopPlugin extends LukePlugin {
     } catch (Exception e) {
       //
     }
+    try {
+      blockSize = Integer.parseInt(app.getString(blockSizeField, "text"));
+    } catch (Exception e) {
+      //
+    }
+    try {
+      readAhead = Integer.parseInt(app.getString(readAheadField, "text"));
+    } catch (Exception e) {
+      //
+    }
+    try {
+      cacheSize = Long.parseLong(app.getString(cacheSizeField, "text")) * 1024 * 1024;
+    } catch (Exception e) {
+      //
+    }
     SlowThread st = new SlowThread(app) {
       public void execute() {
         openIndex(uriTxt);
@@ -111,6 +145,10 @@ public class HadoopPlugin extends LukePlugin {
     parts = 0;
     myIr = null;
     try {
+      PageCache cache = PageCache.getDefault();
+      if (cache.getPageSize() != blockSize || cache.getCapacity() != cacheSize) {
+        PageCache.setDefault(new PageCache(blockSize, cacheSize));
+      }
       Configuration conf = new Configuration();
       Path path = new Path(uriTxt);
       FileSystem fs = path.getFileSystem(conf);
@@ -132,27 +170,18 @@ public class HadoopPlugin extends LukePlugin {
       }
       if (hasParts) {
         parts = stats.length;
-        List<IndexReader> readers = new ArrayList<IndexReader>(stats.length);
-        for (int i = 0; i < stats.length; i++) {
-          app.setString(status, "text", "Opening part " + (i + 1) + " of " + stats.length + " ...");
-          app.putProperty(bar, "part", new Integer(i));
-          FsDirectory fsdir = 
-            new FsDirectory(fs, stats[i].getPath(), false, conf,
-                    new DataReporter(stats[i].getPath()), bufferSize);
-          IndexReader reader = DirectoryReader.open(fsdir);
-          readers.add(reader);
-        }
-        r = new MultiReader((IndexReader[])readers.toArray(new IndexReader[readers.size()]));
-        lastMsg = "OK - sharded index (" + readers.size() + " parts)";
+        r = new MultiReader(openParts(fs, conf, stats));
+        lastMsg = "OK - sharded index (" + parts + " parts)";
       } else {
         parts = 1;
         app.setString(status, "text", "Opening single index ...");
-        FsDirectory fsdir = 
-          new FsDirectory(fs, path, false, conf, new DataReporter(path), bufferSize);
-        r = DirectoryReader.open(fsdir);
+        r = DirectoryReader.open(newDirectory(fs, path, conf));
         lastMsg = "OK - single index.";
       }
       myIr = r;
+      // reads report the cache counters only periodically
+      cache = PageCache.getDefault();
+      updateCacheStats(cache.getHits(), cache.getMisses());
       app.setSlowAccess(true);
       app.setIndexReader(r, path.toUri().toString());
       app.showStatus(lastMsg);
@@ -166,6 +195,69 @@ public class HadoopPlugin extends LukePlugin {
     }
   }
   
+  private FsDirectory newDirectory(FileSystem fs, Path path, Configuration conf)
+      throws Exception {
+    FsDirectory fsdir = new FsDirectory(fs, path, false, conf,
+        new DataReporter(path), bufferSize);
+    fsdir.setReadAheadBlocks(readAhead);
+    return fsdir;
+  }
+  
+  /**
+   * Open all parts of a sharded index concurrently. Readers are returned
+   * in the order of parts, and if any part fails all others are closed.
+   */
+  private IndexReader[] openParts(final FileSystem fs, final Configuration conf,
+      FileStatus[] stats) throws Exception {
+    opened.set(0);
+    app.setString(status, "text", "Opening " + stats.length + " parts ...");
+    ExecutorService pool = Util.newExecutor("HadoopPlugin",
+        Math.min(Util.defaultThreads(), stats.length));
+    List<Future<IndexReader>> futures = new ArrayList<Future<IndexReader>>(stats.length);
+    try {
+      for (int i = 0; i < stats.length; i++) {
+        final Path partPath = stats[i].getPath();
+        futures.add(pool.submit(new Callable<IndexReader>() {
+          public IndexReader call() throws Exception {
+            IndexReader reader = DirectoryReader.open(newDirectory(fs, partPath, conf));
+            partOpened();
+            return reader;
+          }
+        }));
+      }
+      IndexReader[] readers = new IndexReader[stats.length];
+      Exception error = null;
+      for (int i = 0; i < futures.size(); i++) {
+        try {
+          readers[i] = futures.get(i).get();
+        } catch (ExecutionException ee) {
+          if (error == null) {
+            Throwable t = ee.getCause();
+            error = t instanceof Exception ? (Exception)t : ee;
+            error = new Exception("Error opening " + stats[i].getPath().getName(), error);
+          }
+        }
+      }
+      if (error != null) {
+        for (IndexReader reader : readers) {
+          if (reader != null) {
+            reader.close();
+          }
+        }
+        throw error;
+      }
+      return readers;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+  
+  private synchronized void partOpened() {
+    int cnt = opened.incrementAndGet();
+    app.setString(status, "text", "Opened " + cnt + " of " + parts + " parts ...");
+    app.setInteger(bar, "value", 100 * cnt / parts);
+  }
+  
   private class Row {
     Object tableRow;
     Object counterCell;
@@ -198,21 +290,9 @@ public class HadoopPlugin extends LukePlugin {
   boolean opening = false;
   long totalBytes = 0L;
   
-  private void updateStatus(Path dir, String name, long bytes, boolean read) {
-    if (opening) {
-      Integer Part = (Integer)app.getProperty(bar, "part");
-      if (parts > 1) {
-        int delta = 100 / parts;
-        int part = flip ? Part.intValue() : Part.intValue() + 1;
-        int val = delta * part;
-        app.setInteger(bar, "value", val);
-      } else {
-        if (flip) {
-          app.setInteger(bar, "value", 100);
-        } else {
-          app.setInteger(bar, "value", 10);        
-        }
-      }
+  private synchronized void updateStatus(Path dir, String name, long bytes, boolean read) {
+    if (opening && parts == 1) {
+      app.setInteger(bar, "value", flip ? 100 : 10);
       flip = !flip;
     }
     String key;
@@ -243,6 +323,12 @@ public class HadoopPlugin extends LukePlugin {
     app.showSlowStatus("Read", bytes);
   }
   
+  private synchronized void updateCacheStats(long hits, long misses) {
+    long total = hits + misses;
+    app.setString(cacheStats, "text", hits + " hits, " + misses + " misses"
+        + (total > 0 ? " (" + (hits * 100 / total) + "%)" : ""));
+  }
+  
   private class DataReporter implements IOReporter {
     private Path path;
     private String pathName;
@@ -257,6 +343,11 @@ public class HadoopPlugin extends LukePlugin {
       updateStatus(this.path, name, bytes, read);
     }
 
+    @Override
+    public void reportCache(long hits, long misses) {
+      updateCacheStats(hits, misses);
+    }
+
     @Override
     public void reportStatus(String msg) {
       //System.out.println("- DIR " + pathName + ": " + msg);
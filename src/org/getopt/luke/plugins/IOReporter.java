@@ -6,4 +6,6 @@ package org.getopt.luke.plugins;
 public interface IOReporter {
   public void reportStatus(String msg);
   public void reportIO(String name, long bytes, boolean read);
+  /** Report the current hit and miss counts of the block cache. */
+  public void reportCache(long hits, long misses);
 }
\ No newline at end of file
@@ -0,0 +1,275 @@
+package org.getopt.luke.plugins;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache of fixed-size file pages, stored off-heap in direct buffers. Pages
+ * are keyed by (file, page number) and evicted using the CLOCK algorithm.
+ * One instance can be shared by any number of directories and inputs.
+ * <p>The cache is split into stripes by a hash of the key, each with its
+ * own slots, buffers, CLOCK hand and lock, so that concurrent readers
+ * rarely wait for each other.
+ */
+public class PageCache {
+  /** Default total size of the cache. */
+  public static final long DEFAULT_CAPACITY = 64L * 1024 * 1024;
+  /** Maximum number of stripes. */
+  public static final int MAX_STRIPES = 64;
+
+  private static final int MAX_SLAB_SIZE = 1 << 30;
+  private static final int PAGE_BITS = 36;
+
+  private static PageCache defaultCache = null;
+
+  private final int pageSize;
+  private final int numSlots;
+  private final Stripe[] stripes;
+  private final Map<String,Integer> fileIds = new HashMap<String,Integer>();
+
+  /**
+   * Part of the cache, holding the pages whose keys hash to it. All
+   * methods must be called while holding the stripe's lock.
+   */
+  private static class Stripe {
+    private final int pageSize;
+    private final int numSlots;
+    private final int slotsPerSlab;
+    private final ByteBuffer[] slabs;
+    private final Map<Long,Integer> slotIndex = new HashMap<Long,Integer>();
+    private final long[] slotKeys;
+    private final int[] slotLengths;
+    private final boolean[] referenced;
+    private int used = 0;
+    private int hand = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    Stripe(int pageSize, int numSlots) {
+      this.pageSize = pageSize;
+      this.numSlots = numSlots;
+      slotsPerSlab = Math.max(1, Math.min(numSlots, MAX_SLAB_SIZE / pageSize));
+      slabs = new ByteBuffer[(numSlots + slotsPerSlab - 1) / slotsPerSlab];
+      for (int i = 0; i < slabs.length; i++) {
+        int slots = Math.min(slotsPerSlab, numSlots - i * slotsPerSlab);
+        slabs[i] = ByteBuffer.allocateDirect(slots * pageSize);
+      }
+      slotKeys = new long[numSlots];
+      slotLengths = new int[numSlots];
+      referenced = new boolean[numSlots];
+    }
+
+    boolean read(long key, int pageOff, byte[] b, int off, int len) {
+      Integer slot = slotIndex.get(key);
+      if (slot == null || pageOff + len > slotLengths[slot]) {
+        misses++;
+        return false;
+      }
+      hits++;
+      referenced[slot] = true;
+      ByteBuffer slab = slabs[slot / slotsPerSlab];
+      slab.position((slot % slotsPerSlab) * pageSize + pageOff);
+      slab.get(b, off, len);
+      return true;
+    }
+
+    void put(long key, byte[] b, int off, int len) {
+      Integer slot = slotIndex.get(key);
+      if (slot == null) {
+        slot = allocate();
+        slotIndex.put(key, slot);
+        slotKeys[slot] = key;
+      }
+      slotLengths[slot] = len;
+      referenced[slot] = true;
+      ByteBuffer slab = slabs[slot / slotsPerSlab];
+      slab.position((slot % slotsPerSlab) * pageSize);
+      slab.put(b, off, len);
+    }
+
+    private int allocate() {
+      if (used < numSlots) {
+        return used++;
+      }
+      // CLOCK: skip recently referenced pages, clearing their bits
+      while (referenced[hand]) {
+        referenced[hand] = false;
+        hand = (hand + 1) % numSlots;
+      }
+      int slot = hand;
+      hand = (hand + 1) % numSlots;
+      slotIndex.remove(slotKeys[slot]);
+      evictions++;
+      return slot;
+    }
+
+    void clear() {
+      slotIndex.clear();
+      used = 0;
+      hand = 0;
+      hits = misses = evictions = 0;
+    }
+  }
+
+  /**
+   * Create a cache.
+   * @param pageSize size of pages in bytes
+   * @param capacity total size of the cache in bytes, rounded down to
+   * a whole number of pages (at least one).
+   */
+  public PageCache(int pageSize, long capacity) {
+    if (pageSize <= 0) {
+      throw new IllegalArgumentException("Invalid page size: " + pageSize);
+    }
+    this.pageSize = pageSize;
+    numSlots = (int)Math.max(1, Math.min(Integer.MAX_VALUE, capacity / pageSize));
+    stripes = new Stripe[Math.min(MAX_STRIPES, numSlots)];
+    for (int i = 0; i < stripes.length; i++) {
+      int slots = numSlots / stripes.length + (i < numSlots % stripes.length ? 1 : 0);
+      stripes[i] = new Stripe(pageSize, slots);
+    }
+  }
+
+  /**
+   * @return the cache shared by default by all {@link FsDirectory}-s
+   */
+  public static synchronized PageCache getDefault() {
+    if (defaultCache == null) {
+      defaultCache = new PageCache(FsDirectory.DEFAULT_BLOCK_SIZE, DEFAULT_CAPACITY);
+    }
+    return defaultCache;
+  }
+
+  /** Replace the default cache, e.g. to change its page size or capacity. */
+  public static synchronized void setDefault(PageCache cache) {
+    defaultCache = cache;
+  }
+
+  /**
+   * Get a numeric id for a file. Modification time and length are part
+   * of the file's identity, so that pages of a file that was replaced are
+   * never returned.
+   */
+  public int getFileId(String path, long modified, long length) {
+    String key = path + ":" + modified + ":" + length;
+    synchronized (fileIds) {
+      Integer id = fileIds.get(key);
+      if (id == null) {
+        id = fileIds.size();
+        fileIds.put(key, id);
+      }
+      return id;
+    }
+  }
+
+  private static long key(int fileId, long page) {
+    return ((long)fileId << PAGE_BITS) | page;
+  }
+
+  private Stripe stripe(long key) {
+    // mix the bits, so that consecutive pages go to different stripes
+    long h = key * 0x9E3779B97F4A7C15L;
+    return stripes[(int)((h >>> 32) % stripes.length)];
+  }
+
+  /**
+   * Copy data from a cached page.
+   * @param fileId file id
+   * @param page page number
+   * @param pageOff offset within the page
+   * @param b destination
+   * @param off offset in the destination
+   * @param len number of bytes to copy. The range must be within the page.
+   * @return true if the page was found, false otherwise
+   */
+  public boolean read(int fileId, long page, int pageOff, byte[] b, int off, int len) {
+    long key = key(fileId, page);
+    Stripe s = stripe(key);
+    synchronized (s) {
+      return s.read(key, pageOff, b, off, len);
+    }
+  }
+
+  /**
+   * Add a page, evicting another one if the cache is full.
+   * @param len length of the page data, less than page size only for the
+   * last page of a file
+   */
+  public void put(int fileId, long page, byte[] b, int off, int len) {
+    if (len > pageSize) {
+      throw new IllegalArgumentException("Page too large: " + len);
+    }
+    long key = key(fileId, page);
+    Stripe s = stripe(key);
+    synchronized (s) {
+      s.put(key, b, off, len);
+    }
+  }
+
+  /** Remove all pages, and reset the counters. */
+  public void clear() {
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        s.clear();
+      }
+    }
+  }
+
+  public int getPageSize() {
+    return pageSize;
+  }
+
+  /** @return capacity in bytes */
+  public long getCapacity() {
+    return (long)numSlots * pageSize;
+  }
+
+  /** @return number of cached pages */
+  public int size() {
+    int size = 0;
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        size += s.slotIndex.size();
+      }
+    }
+    return size;
+  }
+
+  public long getHits() {
+    long hits = 0;
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        hits += s.hits;
+      }
+    }
+    return hits;
+  }
+
+  public long getMisses() {
+    long misses = 0;
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        misses += s.misses;
+      }
+    }
+    return misses;
+  }
+
+  public long getEvictions() {
+    long evictions = 0;
+    for (Stripe s : stripes) {
+      synchronized (s) {
+        evictions += s.evictions;
+      }
+    }
+    return evictions;
+  }
+
+  public String toString() {
+    return "PageCache: " + size() + " of " + numSlots + " pages x " + pageSize
+      + " bytes in " + stripes.length + " stripes, hits=" + getHits()
+      + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+  }
+}
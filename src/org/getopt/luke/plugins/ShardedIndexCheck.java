@@ -0,0 +1,276 @@
+package org.getopt.luke.plugins;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.getopt.luke.Util;
+
+/**
+ * Opens a sharded index on a local filesystem both through {@link FsDirectory}
+ * and a <code>file://</code> Hadoop filesystem, with the <code>part-*</code>
+ * readers opened in parallel as {@link HadoopPlugin} does, and through
+ * {@link FSDirectory}, with the parts opened one by one. Then compares the
+ * terms, postings statistics, stored fields and the results of term queries
+ * of the two readers, reading the stored fields from several threads at once.
+ */
+public class ShardedIndexCheck {
+  /** Number of terms per field that are also searched for. */
+  private static final int QUERIES_PER_FIELD = 20;
+
+  private static class NullReporter implements IOReporter {
+    public void reportStatus(String msg) {
+    }
+
+    public void reportIO(String name, long bytes, boolean read) {
+    }
+
+    public void reportCache(long hits, long misses) {
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: ShardedIndexCheck <indexDir> [threads] [readAheadBlocks]");
+      System.exit(-1);
+    }
+    File dir = new File(args[0]).getAbsoluteFile();
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Util.defaultThreads();
+    int readAhead = args.length > 2 ? Integer.parseInt(args[2]) : FsDirectory.DEFAULT_READ_AHEAD;
+    Configuration conf = new Configuration();
+    Path path = new Path("file://" + dir.getPath());
+    FileSystem fs = path.getFileSystem(conf);
+    FileStatus[] stats = fs.listStatus(path);
+    List<Path> parts = new ArrayList<Path>();
+    for (FileStatus s : stats) {
+      if (s.isDir() && s.getPath().getName().startsWith("part-")) {
+        parts.add(s.getPath());
+      }
+    }
+    if (parts.isEmpty()) {
+      System.err.println("No part-* directories in " + path);
+      System.exit(-1);
+    }
+    // listStatus doesn't guarantee any order
+    Path[] sorted = parts.toArray(new Path[parts.size()]);
+    Arrays.sort(sorted);
+
+    long start = System.nanoTime();
+    IndexReader dfs = new MultiReader(openParts(fs, conf, sorted, threads, readAhead));
+    System.out.println("FsDirectory: " + sorted.length + " parts opened in "
+        + (System.nanoTime() - start) / 1000000 + " ms, " + threads + " threads");
+    start = System.nanoTime();
+    IndexReader[] locals = new IndexReader[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      locals[i] = DirectoryReader.open(FSDirectory.open(new File(dir, sorted[i].getName())));
+    }
+    IndexReader local = new MultiReader(locals);
+    System.out.println("FSDirectory: " + sorted.length + " parts opened in "
+        + (System.nanoTime() - start) / 1000000 + " ms");
+
+    List<String> errors = new ArrayList<String>();
+    try {
+      compare(dfs, local, threads, errors);
+    } finally {
+      dfs.close();
+      local.close();
+    }
+    System.out.println(PageCache.getDefault());
+    if (!errors.isEmpty()) {
+      for (String e : errors) {
+        System.out.println("ERROR: " + e);
+      }
+      System.exit(1);
+    }
+    System.out.println("OK");
+  }
+
+  private static IndexReader[] openParts(final FileSystem fs, final Configuration conf,
+      Path[] parts, int threads, final int readAhead) throws Exception {
+    ExecutorService pool = Util.newExecutor("ShardedIndexCheck", threads);
+    try {
+      List<Future<IndexReader>> futures = new ArrayList<Future<IndexReader>>();
+      for (final Path part : parts) {
+        futures.add(pool.submit(new Callable<IndexReader>() {
+          public IndexReader call() throws Exception {
+            FsDirectory dir = new FsDirectory(fs, part, false, conf, new NullReporter(), 4096);
+            dir.setReadAheadBlocks(readAhead);
+            return DirectoryReader.open(dir);
+          }
+        }));
+      }
+      IndexReader[] readers = new IndexReader[parts.length];
+      for (int i = 0; i < readers.length; i++) {
+        readers[i] = futures.get(i).get();
+      }
+      return readers;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static void compare(IndexReader a, IndexReader b, int threads,
+      List<String> errors) throws Exception {
+    check(errors, a.maxDoc() == b.maxDoc(), "maxDoc " + a.maxDoc() + " != " + b.maxDoc());
+    check(errors, a.numDocs() == b.numDocs(), "numDocs " + a.numDocs() + " != " + b.numDocs());
+    if (!errors.isEmpty()) {
+      return;
+    }
+    compareTerms(a, b, errors);
+    compareDocs(a, b, threads, errors);
+    System.out.println("Compared " + a.maxDoc() + " docs");
+  }
+
+  private static void compareTerms(IndexReader a, IndexReader b, List<String> errors)
+      throws Exception {
+    Fields fa = MultiFields.getFields(a);
+    Fields fb = MultiFields.getFields(b);
+    if (fa == null || fb == null) {
+      check(errors, fa == fb, "fields missing in one of the readers");
+      return;
+    }
+    IndexSearcher sa = new IndexSearcher(a);
+    IndexSearcher sb = new IndexSearcher(b);
+    long total = 0;
+    int fields = 0;
+    for (String field : fb) {
+      check(errors, fa.terms(field) != null, "extra field " + field);
+    }
+    for (String field : fa) {
+      fields++;
+      Terms ta = fa.terms(field);
+      Terms tb = fb.terms(field);
+      if (tb == null) {
+        errors.add("field " + field + " missing");
+        continue;
+      }
+      TermsEnum ea = ta.iterator(null);
+      TermsEnum eb = tb.iterator(null);
+      long count = 0;
+      long step = Math.max(1, estimateTerms(a, field) / QUERIES_PER_FIELD);
+      BytesRef term;
+      while ((term = ea.next()) != null) {
+        BytesRef other = eb.next();
+        if (!term.equals(other)) {
+          errors.add(field + ": term " + term.utf8ToString() + " != "
+              + (other == null ? "end" : other.utf8ToString()));
+          break;
+        }
+        if (ea.docFreq() != eb.docFreq() || ea.totalTermFreq() != eb.totalTermFreq()) {
+          errors.add(field + ":" + term.utf8ToString() + " freqs differ");
+        }
+        if (count++ % step == 0) {
+          TermQuery q = new TermQuery(new Term(field, BytesRef.deepCopyOf(term)));
+          TopDocs da = sa.search(q, 100);
+          TopDocs db = sb.search(q, 100);
+          boolean same = da.totalHits == db.totalHits && da.scoreDocs.length == db.scoreDocs.length;
+          for (int i = 0; same && i < da.scoreDocs.length; i++) {
+            same = da.scoreDocs[i].doc == db.scoreDocs[i].doc;
+          }
+          check(errors, same, "results of " + q + " differ");
+        }
+      }
+      if (term == null) {
+        check(errors, eb.next() == null, field + ": extra terms");
+      }
+      total += count;
+    }
+    System.out.println("Compared " + total + " terms in " + fields + " fields");
+  }
+
+  /** Merged terms don't know their number, so sum it over segments. */
+  private static long estimateTerms(IndexReader reader, String field) throws Exception {
+    long size = 0;
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      Terms terms = ctx.reader().terms(field);
+      if (terms != null) {
+        size += Math.max(0, terms.size());
+      }
+    }
+    return size;
+  }
+
+  /** Compare stored fields, each thread taking every n-th doc. */
+  private static void compareDocs(final IndexReader a, final IndexReader b, final int threads,
+      final List<String> errors) throws Exception {
+    ExecutorService pool = Util.newExecutor("ShardedIndexCheck", threads);
+    try {
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (int t = 0; t < threads; t++) {
+        final int first = t;
+        futures.add(pool.submit(new Callable<Object>() {
+          public Object call() throws Exception {
+            for (int i = first; i < a.maxDoc(); i += threads) {
+              if (!sameDoc(a.document(i), b.document(i))) {
+                synchronized (errors) {
+                  errors.add("stored fields of doc " + i + " differ");
+                }
+                break;
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Object> f : futures) {
+        f.get();
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  private static boolean sameDoc(Document a, Document b) {
+    List<IndexableField> fa = a.getFields();
+    List<IndexableField> fb = b.getFields();
+    if (fa.size() != fb.size()) {
+      return false;
+    }
+    for (int i = 0; i < fa.size(); i++) {
+      IndexableField x = fa.get(i);
+      IndexableField y = fb.get(i);
+      if (!x.name().equals(y.name())) {
+        return false;
+      }
+      String sx = x.stringValue();
+      if (sx != null ? !sx.equals(y.stringValue()) : y.stringValue() != null) {
+        return false;
+      }
+      BytesRef bx = x.binaryValue();
+      if (bx != null ? !bx.equals(y.binaryValue()) : y.binaryValue() != null) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void check(List<String> errors, boolean ok, String msg) {
+    if (!ok) {
+      errors.add(msg);
+    }
+  }
+}
@@ -9,15 +9,24 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.swing.JFileChooser;
 
 import org.apache.lucene.index.FieldInvertState;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.search.CollectionStatistics;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermStatistics;
 import org.getopt.luke.LukePlugin;
+import org.getopt.luke.SlowThread;
+import org.getopt.luke.Util;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.Function;
 import org.mozilla.javascript.Scriptable;
@@ -61,7 +70,10 @@ public class SimilarityDesignerPlugin extends LukePlugin {
     }
     
     public boolean init() throws Exception {
-      if (similarity != null) app.setCustomSimilarity(similarity);
+      if (similarity != null) {
+        similarity.clearCache();
+        app.setCustomSimilarity(similarity);
+      }
       return true;
     }
     
@@ -122,9 +134,10 @@ public class SimilarityDesignerPlugin extends LukePlugin {
         ScriptableObject scope = cx.initStandardObjects();
         cx.evaluateString(scope, script, "<cmd>", 1, null);
         if (similarity != null) similarity.destroy();
-        similarity = new CustomSimilarity(cx, scope, out);
+        // cache results only when nothing is traced, so that print() sees every call
+        similarity = new CustomSimilarity(cx, scope, out, out == null);
         app.setCustomSimilarity(similarity);
-        app.setString(simStatus, "text", "OK");
+        app.setString(simStatus, "text", "OK" + (level < 0 ? " (interpreted)" : " (compiled)"));
         app.setColor(simStatus, "foreground", Color.green);
       } catch (Exception e) {
         e.printStackTrace();
@@ -135,6 +148,86 @@ public class SimilarityDesignerPlugin extends LukePlugin {
       }
     }
     
+    /** Number of untimed runs of each similarity in a comparison. */
+    public static final int COMPARE_WARMUP = 10;
+    /** Number of timed runs of each similarity in a comparison. */
+    public static final int COMPARE_RUNS = 20;
+
+    /**
+     * Time the query from the 'Search' tab with DefaultSimilarity and with
+     * the compiled similarity, and show the median latency of each.
+     */
+    public void actionCompare() {
+      final Object cmpStatus = app.find(myUi, "cmpStatus");
+      final IndexReader reader = getReader();
+      if (reader == null) {
+        app.showStatus("No index loaded");
+        return;
+      }
+      if (similarity == null) {
+        app.errorMsg("Compile the similarity first.");
+        return;
+      }
+      String queryS = app.getString(app.find("qField"), "text");
+      if (queryS.trim().equals("")) {
+        app.errorMsg("Enter a query in the 'Search' tab first.");
+        return;
+      }
+      final Query q;
+      try {
+        q = app.createQuery(queryS);
+      } catch (Exception e) {
+        app.errorMsg("Invalid query: " + e.getMessage());
+        return;
+      }
+      if (q == null) {
+        return;
+      }
+      final CustomSimilarity custom = similarity;
+      SlowThread st = new SlowThread(app) {
+        public void execute() {
+          try {
+            IndexSearcher def = new IndexSearcher(reader);
+            def.setSimilarity(new DefaultSimilarity());
+            IndexSearcher cust = new IndexSearcher(reader);
+            cust.setSimilarity(custom);
+            for (int i = 0; i < COMPARE_WARMUP; i++) {
+              def.search(q, 10);
+              cust.search(q, 10);
+            }
+            // alternate the runs, so that both see the same JIT and cache state
+            long[] defTimes = new long[COMPARE_RUNS];
+            long[] custTimes = new long[COMPARE_RUNS];
+            int hits = 0;
+            for (int i = 0; i < COMPARE_RUNS; i++) {
+              long start = System.nanoTime();
+              hits = def.search(q, 10).totalHits;
+              defTimes[i] = System.nanoTime() - start;
+              start = System.nanoTime();
+              cust.search(q, 10);
+              custTimes[i] = System.nanoTime() - start;
+            }
+            Arrays.sort(defTimes);
+            Arrays.sort(custTimes);
+            long defMedian = defTimes[COMPARE_RUNS / 2];
+            long custMedian = custTimes[COMPARE_RUNS / 2];
+            app.setString(cmpStatus, "text", "DefaultSimilarity: " + Util.formatNanos(defMedian) +
+                ", custom: " + Util.formatNanos(custMedian) + " (" +
+                String.format("%.1f", (double)custMedian / Math.max(1, defMedian)) + "x), " +
+                hits + " hits, median of " + COMPARE_RUNS + " runs");
+          } catch (Exception e) {
+            e.printStackTrace();
+            app.errorMsg("Comparison failed: " + e.getMessage());
+          }
+        }
+      };
+      if (app.isSlowAccess()) {
+        st.start();
+      } else {
+        st.execute();
+      }
+    }
+    
     public void actionSaveFile() {
       fd.setDialogType(JFileChooser.SAVE_DIALOG);
       fd.setDialogTitle("Select Output File");
@@ -223,12 +316,28 @@ class CustomSimilarity extends DefaultSimilarity {
   private Function[] abstractMethods = new Function[M_A_MAX];
   private Function[] otherMethods = new Function[M_MAX];
   
+  /** Number of small integer arguments of tf and sloppyFreq whose results are cached. */
+  static final int CACHE_SIZE = 256;
+
   private ScriptableObject scope = null;
   private Context cx = null;
+  private boolean cache;
+  private float[] tfCache = null;
+  private float[] sloppyFreqCache = null;
+  // idf by field and docFreq, for the current number of docs
+  private final Map<String, Map<Long, Float>> idfCache = new HashMap<String, Map<Long, Float>>();
+  private long idfNumDocs = -1;
   
-  public CustomSimilarity(Context cx, ScriptableObject scope, PrintStream printStream) throws Exception {
+  /**
+   * @param cache if true, results of tf and sloppyFreq for small integers
+   * and of idf are computed once and cached. Scripts are then assumed to
+   * be pure functions of their arguments.
+   */
+  public CustomSimilarity(Context cx, ScriptableObject scope, PrintStream printStream,
+          boolean cache) throws Exception {
     this.scope = scope;
     this.cx = cx;
+    this.cache = cache;
     for (int i = 0; i < abstractIds.length; i++) {
       Object m = scope.get(abstractIds[i], scope);
       if (m == null || m == cx.getUndefinedValue() || m == Scriptable.NOT_FOUND) {
@@ -248,6 +357,18 @@ class CustomSimilarity extends DefaultSimilarity {
     }
     scope.defineFunctionProperties(new String[]{"print"}, CustomSimilarity.class, ScriptableObject.DONTENUM);
     scope.putProperty(scope, "stdout", printStream);
+    if (cache) {
+      tfCache = new float[CACHE_SIZE];
+      sloppyFreqCache = new float[CACHE_SIZE];
+      for (int i = 0; i < CACHE_SIZE; i++) {
+        tfCache[i] = computeTf(i);
+        sloppyFreqCache[i] = call(abstractMethods[M_A_SLOPPYFREQ], new Integer(i));
+      }
+    }
+  }
+
+  public boolean isCaching() {
+    return cache;
   }
   
   public static void print(Context cx, Scriptable thisObj, Object[] args, Function funObj) {
@@ -287,78 +408,121 @@ class CustomSimilarity extends DefaultSimilarity {
   
   @Override
   public float idf(long docFreq, long numDocs) {
-    Object[] args = new Object[]{new Long(docFreq), new Long(numDocs)};
-    Object res = abstractMethods[M_A_IDF].call(cx, scope, scope, args);
-    if (res instanceof Number) { // back-compat
-      return ((Number)res).floatValue();
-    } else {
-      return 0f;
+    return call(abstractMethods[M_A_IDF], new Long(docFreq), new Long(numDocs));
+  }
+
+  /**
+   * Return the idf of a term, from the cache of its field if caching is
+   * enabled. The caches are dropped when the number of docs changes.
+   */
+  private float idf(String field, long docFreq, long numDocs) {
+    if (!cache) {
+      return idf(docFreq, numDocs);
+    }
+    synchronized (idfCache) {
+      if (numDocs != idfNumDocs) {
+        idfCache.clear();
+        idfNumDocs = numDocs;
+      }
+      Map<Long, Float> fieldCache = idfCache.get(field);
+      if (fieldCache == null) {
+        fieldCache = new HashMap<Long, Float>();
+        idfCache.put(field, fieldCache);
+      }
+      Float idf = fieldCache.get(docFreq);
+      if (idf == null) {
+        idf = idf(docFreq, numDocs);
+        fieldCache.put(docFreq, idf);
+      }
+      return idf;
     }
   }
 
+  /**
+   * Drop the cached idf values, e.g. when a different index is open.
+   */
+  public void clearCache() {
+    synchronized (idfCache) {
+      idfCache.clear();
+      idfNumDocs = -1;
+    }
+  }
+
+  @Override
+  public Explanation idfExplain(CollectionStatistics collectionStats, TermStatistics termStats) {
+    final long df = termStats.docFreq();
+    final long max = collectionStats.maxDoc();
+    final float idf = idf(collectionStats.field(), df, max);
+    return new Explanation(idf, "idf(docFreq=" + df + ", maxDocs=" + max + ")");
+  }
+
+  @Override
+  public Explanation idfExplain(CollectionStatistics collectionStats, TermStatistics termStats[]) {
+    final long max = collectionStats.maxDoc();
+    float idf = 0.0f;
+    final Explanation exp = new Explanation();
+    exp.setDescription("idf(), sum of:");
+    for (final TermStatistics stat : termStats) {
+      final long df = stat.docFreq();
+      final float termIdf = idf(collectionStats.field(), df, max);
+      exp.addDetail(new Explanation(termIdf, "idf(docFreq=" + df + ", maxDocs=" + max + ")"));
+      idf += termIdf;
+    }
+    exp.setValue(idf);
+    return exp;
+  }
+
   // A
   public float computeNorm(String field, FieldInvertState state) {
-    Object[] args = new Object[]{field, new Integer(state.getLength())};
-    Object res = abstractMethods[M_A_LENGTHNORM].call(cx, scope, scope, args);
-    float f = 0.0f;
-    try {
-      f = Float.parseFloat(res.toString());
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-    return f;
+    return call(abstractMethods[M_A_LENGTHNORM], field, new Integer(state.getLength()));
   }
   
   // A
   public float queryNorm(float arg0) {
-    Object[] args = new Object[]{new Float(arg0)};
-    Object res = abstractMethods[M_A_QUERYNORM].call(cx, scope, scope, args);
-    float f = 0.0f;
-    try {
-      f = Float.parseFloat(res.toString());
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-    return f;
+    return call(abstractMethods[M_A_QUERYNORM], new Float(arg0));
   }
   
   // A
   public float sloppyFreq(int arg0) {
-    Object[] args = new Object[]{new Integer(arg0)};
-    Object res = abstractMethods[M_A_SLOPPYFREQ].call(cx, scope, scope, args);
-    float f = 0.0f;
-    try {
-      f = Float.parseFloat(res.toString());
-    } catch (Exception e) {
-      e.printStackTrace();
+    if (sloppyFreqCache != null && arg0 >= 0 && arg0 < CACHE_SIZE) {
+      return sloppyFreqCache[arg0];
     }
-    return f;
+    return call(abstractMethods[M_A_SLOPPYFREQ], new Integer(arg0));
   }
   
   // A
   public float tf(float arg0) {
-    Object[] args = new Object[]{new Float(arg0)};
-    Object res = abstractMethods[M_A_TF].call(cx, scope, scope, args);
-    float f = 0.0f;
-    try {
-      f = Float.parseFloat(res.toString());
-    } catch (Exception e) {
-      e.printStackTrace();
-    }
-    return f;
+    return call(abstractMethods[M_A_TF], new Float(arg0));
   }
   
   public float tf(int arg0) {
+    if (tfCache != null && arg0 >= 0 && arg0 < CACHE_SIZE) {
+      return tfCache[arg0];
+    }
+    return computeTf(arg0);
+  }
+
+  private float computeTf(int freq) {
     Function func = otherMethods[M_TF_I];
-    if (func == null) return super.tf(arg0);
-    Object[] args = new Object[]{new Integer(arg0)};
+    if (func == null) return super.tf(freq);
+    return call(func, new Integer(freq));
+  }
+
+  /**
+   * Call a script function. Calls are serialized, because the context
+   * isn't thread-safe and searches may score segments concurrently.
+   */
+  private synchronized float call(Function func, Object... args) {
     Object res = func.call(cx, scope, scope, args);
+    if (res instanceof Number) {
+      return ((Number)res).floatValue();
+    }
     float f = 0.0f;
     try {
-      f = Float.parseFloat(res.toString());
+      f = Float.parseFloat(Context.toString(res));
     } catch (Exception e) {
       e.printStackTrace();
     }
     return f;
   }
-}
\ No newline at end of file
+}
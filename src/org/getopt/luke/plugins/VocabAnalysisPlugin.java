@@ -3,14 +3,8 @@ package org.getopt.luke.plugins;
 import java.util.Collection;
 import java.util.Iterator;
 
-import org.apache.lucene.index.DirectoryReader;
-import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.MultiFields;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.index.TermsEnum;
 import org.getopt.luke.LukePlugin;
-import org.getopt.luke.SlowThread;
 import org.getopt.luke.Util;
 
 import thinlet.Thinlet;
@@ -18,6 +12,10 @@ import thinlet.Thinlet;
 public class VocabAnalysisPlugin extends LukePlugin {
   VocabChart chart = null;
 
+  // the scan in progress, and the last counts of terms by age
+  private volatile VocabGrowthScan scanning = null;
+  private volatile float[] lastAges = null;
+
   String selectedField;
 
   /** Default constructor. Initialize analyzers list. */
@@ -52,6 +50,8 @@ public class VocabAnalysisPlugin extends LukePlugin {
   }
 
   public boolean init() throws Exception {
+    cancelScan();
+    lastAges = null;
     Object combobox = app.find(myUi, "fields");
     app.removeAll(combobox);
     Object maxdoc = app.find(myUi, "maxdoc");
@@ -89,60 +89,98 @@ public class VocabAnalysisPlugin extends LukePlugin {
     app.repaint();
   }
 
+  /**
+   * Start scanning the selected field in the background, cancelling the
+   * scan in progress. The chart is updated while the scan runs.
+   */
   public void analyze() {
     Object combobox = app.find(myUi, "fields");
     final String field = app.getString(combobox, "text");
-    Object ckbox = app.find(myUi, "cumul");
-    final boolean cumul = app.getBoolean(ckbox, "selected");
+    final Object status = app.find(myUi, "status");
+    cancelScan();
     IndexReader reader = getReader();
     if (reader == null) {
       app.showStatus("No index loaded");
       cleanChart();
       return;
     }
-    SlowThread st = new SlowThread(app) {
-      public void execute() {
+    int numBuckets = app.getInteger(app.find(myUi, "buckets"), "value");
+    final int sample = app.getInteger(app.find(myUi, "sample"), "value");
+    final VocabGrowthScan scan = new VocabGrowthScan(reader, field, numBuckets, sample);
+    scanning = scan;
+    lastAges = null;
+    cleanChart();
+    app.setString(status, "text", "Scanning...");
+    Thread t = new Thread() {
+      public void run() {
+        long start = System.nanoTime();
         try {
-          int numAgeGroups = 100;
-          float numDocs = ir.maxDoc();
-          if (numDocs < numAgeGroups) numAgeGroups = ir.maxDoc();
-          float ageTotals[] = new float[numAgeGroups];
-          TermsEnum te = MultiFields.getTerms(ir, field).iterator(null);
-          while (te.next() != null) {
-            DocsEnum td = te.docs(null, null, 0);
-            td.nextDoc();
-            float firstDocId = td.docID();
-            int ageBracket = (int) ((firstDocId / numDocs) * numAgeGroups);
-            ageTotals[ageBracket]++;
-          }
-          float total = 0.0f;
-          float max = 0.0f;
-          for (int i = 0; i < ageTotals.length; i++) {
-            if (ageTotals[i] > max) max = ageTotals[i];
-            total += ageTotals[i];
-            if (i > 0 && cumul) {
-              ageTotals[i] += ageTotals[i - 1]; // make totals cumulative
+          float[] ages = scan.run(Util.defaultThreads(), new VocabGrowthScan.Listener() {
+            public void progress(float[] ages, int rangesDone, int numRanges) {
+              if (scanning != scan) {
+                return;
+              }
+              lastAges = ages;
+              showChart();
+              app.setString(status, "text", "Scanning: " + rangesDone + " of " +
+                  numRanges + " term ranges...");
             }
+          }, 500);
+          if (ages == null || scanning != scan) {
+            return;
           }
-          Object maxpct = app.find(myUi, "maxpct");
-          if (cumul) {
-            app.setString(maxpct, "text", "100 %");
-          } else {
-            app.setString(maxpct, "text", (float)Math.round(max * 10000.0f / total) / 100.0f + " %");
+          float total = 0;
+          for (float f : ages) {
+            total += f;
           }
-          chart.setScores(ageTotals);
-          chart.invalidate();
-          app.repaint();
+          app.setString(status, "text", (int)total + (sample > 1 ? " sampled" : "") + " terms in " +
+              Util.formatNanos(System.nanoTime() - start));
         } catch (Exception e) {
+          app.setString(status, "text", " ");
           app.showStatus("ERROR: " + e.getMessage());
-        }        
+        }
       }
     };
-    if (app.isSlowAccess()) {
-      st.start();
-    } else {
-      st.execute();
+    t.setDaemon(true);
+    t.start();
+  }
+
+  private void cancelScan() {
+    VocabGrowthScan scan = scanning;
+    if (scan != null) {
+      scan.cancel();
+      scanning = null;
+    }
+  }
+
+  /**
+   * Show the last computed counts, cumulative or not.
+   */
+  public void showChart() {
+    float[] counts = lastAges;
+    if (counts == null) {
+      return;
+    }
+    boolean cumul = app.getBoolean(app.find(myUi, "cumul"), "selected");
+    float ageTotals[] = counts.clone();
+    float total = 0.0f;
+    float max = 0.0f;
+    for (int i = 0; i < ageTotals.length; i++) {
+      if (ageTotals[i] > max) max = ageTotals[i];
+      total += ageTotals[i];
+      if (i > 0 && cumul) {
+        ageTotals[i] += ageTotals[i - 1]; // make totals cumulative
+      }
     }
+    Object maxpct = app.find(myUi, "maxpct");
+    if (cumul) {
+      app.setString(maxpct, "text", "100 %");
+    } else if (total > 0) {
+      app.setString(maxpct, "text", (float)Math.round(max * 10000.0f / total) / 100.0f + " %");
+    }
+    chart.setScores(ageTotals);
+    chart.invalidate();
+    app.repaint();
   }
 
   public String getSelectedField() {
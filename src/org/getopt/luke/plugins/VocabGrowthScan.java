@@ -0,0 +1,237 @@
+package org.getopt.luke.plugins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexGate;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.MultiTermsEnum;
+import org.apache.lucene.index.ReaderSlice;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.BytesRef;
+import org.getopt.luke.Util;
+
+/**
+ * Counts the terms of a field by the age of the first document that
+ * contains them, in buckets of equal numbers of doc ids.
+ * <p>The merged terms of all segments are split into ranges, at terms
+ * sampled from the segment with the most terms, and the ranges are walked
+ * in parallel. For each term, the merged enum tells which segments contain
+ * it, and only the postings of the first of them are read, to find the
+ * first doc. Terms can be sampled, by a hash of their bytes, so that the
+ * sample doesn't depend on the ranges.
+ */
+class VocabGrowthScan {
+  /** Number of term ranges per thread, so that uneven ranges balance out. */
+  static final int RANGES_PER_THREAD = 4;
+
+  /**
+   * Receives the counts while the scan runs, and when it's finished.
+   */
+  interface Listener {
+    void progress(float[] ages, int rangesDone, int numRanges);
+  }
+
+  private final IndexReader reader;
+  private final String field;
+  private final int numBuckets;
+  private final int sampleRate;
+  private final AtomicLongArray ages;
+  private final AtomicInteger rangesDone = new AtomicInteger();
+  private volatile boolean cancelled = false;
+  // sub-readers that have the field, and their slices
+  private final List<Terms> subs = new ArrayList<Terms>();
+  private final List<ReaderSlice> slices = new ArrayList<ReaderSlice>();
+
+  /**
+   * @param numBuckets number of age buckets, at most maxDoc
+   * @param sampleRate count one in this many terms, or 1 to count all
+   */
+  VocabGrowthScan(IndexReader reader, String field, int numBuckets, int sampleRate) {
+    this.reader = reader;
+    this.field = field;
+    this.numBuckets = Math.max(1, Math.min(numBuckets, reader.maxDoc()));
+    this.sampleRate = Math.max(1, sampleRate);
+    ages = new AtomicLongArray(this.numBuckets);
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  public void cancel() {
+    cancelled = true;
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  /** @return counts of terms by the bucket of their first doc */
+  public float[] getAges() {
+    float[] res = new float[ages.length()];
+    for (int i = 0; i < res.length; i++) {
+      res[i] = ages.get(i);
+    }
+    return res;
+  }
+
+  /**
+   * Run the scan, notifying the listener periodically, and at the end.
+   * @return counts of terms by the bucket of their first doc, or null if
+   * the scan was cancelled
+   */
+  public float[] run(int numThreads, Listener listener, long intervalMs) throws Exception {
+    numThreads = Math.max(1, numThreads);
+    Terms largest = null;
+    for (AtomicReaderContext ctx : reader.leaves()) {
+      Terms t = ctx.reader().terms(field);
+      if (t == null) {
+        continue;
+      }
+      slices.add(new ReaderSlice(ctx.docBase, ctx.reader().maxDoc(), subs.size()));
+      subs.add(t);
+      if (largest == null || t.size() > largest.size()) {
+        largest = t;
+      }
+    }
+    if (subs.isEmpty()) {
+      return listener == null ? getAges() : done(listener, 0);
+    }
+    final List<BytesRef> splits = splitPoints(largest, numThreads * RANGES_PER_THREAD);
+    final int numRanges = splits.size() + 1;
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for (int i = 0; i < numRanges; i++) {
+      final BytesRef lower = i == 0 ? null : splits.get(i - 1);
+      final BytesRef upper = i == numRanges - 1 ? null : splits.get(i);
+      tasks.add(new Callable<Object>() {
+        public Object call() throws Exception {
+          scanRange(lower, upper);
+          rangesDone.incrementAndGet();
+          return null;
+        }
+      });
+    }
+    ExecutorService pool = Util.newExecutor("VocabScan", Math.min(numThreads, numRanges));
+    try {
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+      for (Callable<Object> task : tasks) {
+        futures.add(pool.submit(task));
+      }
+      pool.shutdown();
+      while (!pool.awaitTermination(intervalMs, TimeUnit.MILLISECONDS)) {
+        if (cancelled) {
+          return null;
+        }
+        if (listener != null) {
+          listener.progress(getAges(), rangesDone.get(), numRanges);
+        }
+      }
+      for (Future<Object> f : futures) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          throw (Exception)e.getCause();
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    if (cancelled) {
+      return null;
+    }
+    return listener == null ? getAges() : done(listener, numRanges);
+  }
+
+  private float[] done(Listener listener, int numRanges) {
+    float[] res = getAges();
+    listener.progress(res, numRanges, numRanges);
+    return res;
+  }
+
+  /**
+   * Pick terms that split the terms of a segment into ranges of about the
+   * same size. This costs one pass over the terms of the segment, without
+   * reading postings.
+   */
+  private List<BytesRef> splitPoints(Terms terms, int numRanges) throws IOException {
+    List<BytesRef> res = new ArrayList<BytesRef>();
+    long size = terms.size();
+    if (numRanges < 2 || size < numRanges) {
+      return res;
+    }
+    long step = size / numRanges;
+    TermsEnum te = terms.iterator(null);
+    long count = 0;
+    BytesRef term;
+    while ((term = te.next()) != null && res.size() < numRanges - 1) {
+      if (++count % step == 0) {
+        res.add(BytesRef.deepCopyOf(term));
+      }
+      if ((count & 0xfff) == 0 && cancelled) {
+        break;
+      }
+    }
+    return res;
+  }
+
+  /**
+   * Count the terms from lower (inclusive, or from the first term if null)
+   * to upper (exclusive, or to the last term if null).
+   */
+  private void scanRange(BytesRef lower, BytesRef upper) throws IOException {
+    MultiTermsEnum te = (MultiTermsEnum)new MultiTerms(subs.toArray(new Terms[subs.size()]),
+        slices.toArray(new ReaderSlice[slices.size()])).iterator(null);
+    Comparator<BytesRef> comp = te.getComparator();
+    BytesRef term;
+    if (lower == null) {
+      term = te.next();
+    } else {
+      term = te.seekCeil(lower, true) == TermsEnum.SeekStatus.END ? null : te.term();
+    }
+    long maxDoc = reader.maxDoc();
+    DocsEnum[] reuse = new DocsEnum[subs.size()];
+    int count = 0;
+    for (; term != null; term = te.next()) {
+      if (upper != null && comp.compare(term, upper) >= 0) {
+        break;
+      }
+      if ((++count & 0xfff) == 0 && cancelled) {
+        return;
+      }
+      if (sampleRate > 1 && (term.hashCode() & 0x7fffffff) % sampleRate != 0) {
+        continue;
+      }
+      // the first doc is in the first segment that has the term
+      int first = 0;
+      for (int i = 1; i < te.getMatchCount(); i++) {
+        if (IndexGate.getMatchIndex(te, i) < IndexGate.getMatchIndex(te, first)) {
+          first = i;
+        }
+      }
+      int sub = IndexGate.getMatchIndex(te, first);
+      DocsEnum de = IndexGate.getMatchTermsEnum(te, first).docs(null, reuse[sub], DocsEnum.FLAG_NONE);
+      reuse[sub] = de;
+      int doc = de.nextDoc();
+      if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+        continue;
+      }
+      int bucket = (int)((long)(slices.get(sub).start + doc) * numBuckets / maxDoc);
+      ages.incrementAndGet(bucket);
+    }
+  }
+}
@@ -3,12 +3,19 @@ package org.getopt.luke.plugins;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.MultiFields;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.getopt.luke.LukePlugin;
 import org.getopt.luke.SlowThread;
@@ -17,8 +24,21 @@ import org.getopt.luke.Util;
 import thinlet.Thinlet;
 
 public class ZipfAnalysisPlugin extends LukePlugin {
+  private static final int NUM_BUCKETS = 100;
+
   VocabChart chart = null;
 
+  // distributions of fields, for the index version in cacheKey
+  private Map<String,FieldStats> cache = new HashMap<String,FieldStats>();
+  private Object cacheKey = null;
+
+  static class FieldStats {
+    long numTerms;
+    boolean approximate;
+    // average df of each bucket of terms, in order of descending df
+    float[] bucketDfs;
+  }
+
   String selectedField;
 
   /** Default constructor. Initialize analyzers list. */
@@ -93,100 +113,27 @@ public class ZipfAnalysisPlugin extends LukePlugin {
   public void analyze() {
     Object combobox = app.find(myUi, "fields");
     final String field = app.getString(combobox, "text");
-    IndexReader reader = getReader();
+    final IndexReader reader = getReader();
     if (reader == null) {
       app.showStatus("No index loaded");
       cleanChart();
       return;
     }
+    FieldStats stats = getCached(reader, field);
+    if (stats != null) {
+      show(stats);
+      return;
+    }
     SlowThread st = new SlowThread(app) {
       public void execute() {
         try {
-          int numBuckets = 100;
-          TermsEnum te = MultiFields.getTerms(ir, field).iterator(null);
-          ArrayList<TermCount> terms = new ArrayList<TermCount>();
-
-          // most terms occur very infrequently - just keep group totals for the DFs
-          // representing these "long tail" terms.
-          int longTailDfStart = 1;
-          int longTailDfEnd = 1000;
-          int longTailTermDfCounts[] = new int[(longTailDfEnd - longTailDfStart) + 1];
-
-          // For "short tail" terms there are less of them and they represent a lot
-          // of different
-          // DFs (typically in the thousands) so unlike long-tail terms we can't
-          // predict what common DF buckets to accumulate counts in. For this reason
-          // we don't attempt
-          // to total them and keep a list of them individually (shouldn't occupy
-          // too much ram)
-
-          int numUniqueTerms = 0;
-          while (te.next() != null) {
-            numUniqueTerms++;
-            int df = te.docFreq();
-            if (df <= longTailDfEnd) {
-              int i = df - longTailDfStart;
-              longTailTermDfCounts[i]++;
-            } else {
-              terms.add(new TermCount(new Term(field, te.term().utf8ToString()), df));
-            }
-          }
-
-          TermCount sortedTerms[] = (TermCount[]) terms.toArray(new TermCount[terms
-              .size()]);
-          Arrays.sort(sortedTerms);
-
-          int termsPerBucket;
-          if (numUniqueTerms < 100) {
-            termsPerBucket = 1;
-            numBuckets = numUniqueTerms;
+          computeAll(reader);
+          FieldStats stats = getCached(reader, field);
+          if (stats != null) {
+            show(stats);
           } else {
-            termsPerBucket = numUniqueTerms / numBuckets;
-          }
-          ArrayList buckets = new ArrayList();
-          Bucket currentBucket = new Bucket();
-          buckets.add(currentBucket);
-          for (int i = 0; i < sortedTerms.length; i++) {
-            currentBucket.addTermDf(sortedTerms[i].df);
-            if (currentBucket.numTermsInThisBucket >= termsPerBucket) {
-              // start a new bucket
-              currentBucket = new Bucket();
-              buckets.add(currentBucket);
-            }
-          }
-          // now work through the aggregated long-tail terms - start from
-          // most common DF down to least common DF
-          for (int i = longTailTermDfCounts.length - 1; i >= 0; i--) {
-            int df = i + longTailDfStart;
-            int numTerms = longTailTermDfCounts[i];
-            for (int t = 0; t < numTerms; t++) {
-              currentBucket.addTermDf(df);
-              if (currentBucket.numTermsInThisBucket >= termsPerBucket) {
-                // start a new bucket
-                currentBucket = new Bucket();
-                buckets.add(currentBucket);
-              }
-            }
-          }
-          if (currentBucket.numTermsInThisBucket == 0) buckets.remove(currentBucket);
-          Bucket bucketsResult[] = (Bucket[]) buckets.toArray(new Bucket[buckets.size()]);
-          float termBucketTotals[] = new float[bucketsResult.length];
-          int maxDf = 0;
-          for (int i = 0; i < bucketsResult.length; i++) {
-            termBucketTotals[i] = bucketsResult[i].getAverageDf();
-            maxDf = (int) Math.max(maxDf, termBucketTotals[i]);
+            cleanChart();
           }
-          // update the GUI
-          Object maxdf = app.find(myUi, "maxdf");
-          app.setString(maxdf, "text", "" + maxDf);
-          Object maxterm = app.find(myUi, "maxterm");
-          Object midterm = app.find(myUi, "midterm");
-          app.setString(maxterm, "text", numUniqueTerms + "");
-          app.setString(midterm, "text", (numUniqueTerms / 2) + "");
-
-          chart.setScores(termBucketTotals);
-          chart.invalidate();
-          app.repaint();
         } catch (Exception e) {
           app.showStatus("ERROR: " + e.getMessage());
         }        
@@ -199,65 +146,111 @@ public class ZipfAnalysisPlugin extends LukePlugin {
     }
   }
 
-  public String getSelectedField() {
-    return selectedField;
+  /**
+   * @return key that changes when the index changes
+   */
+  private static Object readerVersion(IndexReader reader) {
+    if (reader instanceof DirectoryReader) {
+      DirectoryReader dr = (DirectoryReader)reader;
+      return Arrays.asList(dr.directory(), dr.getVersion());
+    }
+    return reader.getCombinedCoreAndDeletesKey();
   }
 
-  public void setSelectedField(String selectedField) {
-    this.selectedField = selectedField;
+  /**
+   * @return the distribution of a field, if it was computed for this
+   * version of the index
+   */
+  private FieldStats getCached(IndexReader reader, String field) {
+    synchronized (cache) {
+      if (!readerVersion(reader).equals(cacheKey)) {
+        cache.clear();
+        cacheKey = readerVersion(reader);
+      }
+      return cache.get(field);
+    }
   }
 
-  static class Bucket {
-    int maxDf;
-
-    int minDf = Integer.MAX_VALUE;
-
-    int totalDf;
-
-    int numTermsInThisBucket;
-
-    public void addTermDf(int df) {
-      totalDf += df;
-      numTermsInThisBucket++;
-      maxDf = Math.max(df, maxDf);
-      minDf = Math.min(df, minDf);
+  /**
+   * Compute the distributions of all indexed fields that aren't cached,
+   * in parallel.
+   */
+  private void computeAll(final IndexReader reader) throws Exception {
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for (final String field : Util.fieldNames(reader, true)) {
+      if (getCached(reader, field) != null) {
+        continue;
+      }
+      tasks.add(new Callable<Object>() {
+        public Object call() throws Exception {
+          FieldStats stats = computeField(reader, field);
+          synchronized (cache) {
+            if (readerVersion(reader).equals(cacheKey)) {
+              cache.put(field, stats);
+            }
+          }
+          return null;
+        }
+      });
     }
-
-    public int getAverageDf() {
-      if (numTermsInThisBucket == 0)
-        return 0;
-      return totalDf / numTermsInThisBucket;
+    if (tasks.isEmpty()) {
+      return;
     }
-
-    public String toString() {
-      return maxDf + " maxDf in " + numTermsInThisBucket + " terms";
+    ExecutorService pool = Util.newExecutor("Zipf", Math.min(Util.defaultThreads(), tasks.size()));
+    try {
+      for (Future<Object> f : pool.invokeAll(tasks)) {
+        try {
+          f.get();
+        } catch (ExecutionException e) {
+          throw (Exception)e.getCause();
+        }
+      }
+    } finally {
+      pool.shutdown();
     }
-
   }
 
-  static class TermCount implements Comparable {
-    int df = 0;
-
-    int termCount = 0;
-
-    private Term term;
-
-    public TermCount(Term term, int df) {
-      super();
-      this.term = term;
-      this.df = df;
+  private static FieldStats computeField(IndexReader reader, String field) throws Exception {
+    DfDistribution dist = new DfDistribution();
+    Terms terms = MultiFields.getTerms(reader, field);
+    if (terms != null) {
+      TermsEnum te = terms.iterator(null);
+      while (te.next() != null) {
+        dist.add(te.docFreq());
+      }
     }
+    FieldStats stats = new FieldStats();
+    stats.numTerms = dist.getNumTerms();
+    stats.approximate = dist.isApproximate();
+    stats.bucketDfs = dist.getBucketAverages(NUM_BUCKETS);
+    return stats;
+  }
 
-    public int compareTo(Object o) {
-      TermCount other = (TermCount) o;
-      if (df > other.df) {
-        return -1;
-      }
-      if (df < other.df) {
-        return 1;
-      }
-      return 0;
+  private void show(FieldStats stats) {
+    int maxDf = 0;
+    for (float df : stats.bucketDfs) {
+      maxDf = (int) Math.max(maxDf, df);
+    }
+    // update the GUI
+    Object maxdf = app.find(myUi, "maxdf");
+    app.setString(maxdf, "text", "" + maxDf);
+    Object maxterm = app.find(myUi, "maxterm");
+    Object midterm = app.find(myUi, "midterm");
+    app.setString(maxterm, "text", stats.numTerms + "");
+    app.setString(midterm, "text", (stats.numTerms / 2) + "");
+    if (stats.approximate) {
+      app.showStatus("Too many frequent terms - the distribution of the most frequent is approximate.");
     }
+    chart.setScores(stats.bucketDfs);
+    chart.invalidate();
+    app.repaint();
   }
 
+  public String getSelectedField() {
+    return selectedField;
+  }
+
+  public void setSelectedField(String selectedField) {
+    this.selectedField = selectedField;
+  }
 }